@@ -0,0 +1,90 @@
+package bsa.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import bsa.BsaWriter;
+
+/**
+ * Writes the synthetic archives the benchmarks read. Contents come from fixed seeds, so every machine benchmarks the same bytes. Archives that already exist
+ * are kept, delete the directory to write them again.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public final class ArchiveGenerator {
+	/**
+	 * Oblivion and Skyrim LE layout, zlib compressed
+	 */
+	static final String ZLIB = "bench104z.bsa";
+	/**
+	 * Skyrim SE layout, LZ4 compressed with embedded names
+	 */
+	static final String LZ4 = "bench105l.bsa";
+	/**
+	 * Skyrim SE layout, uncompressed
+	 */
+	static final String UNCOMPRESSED = "bench105u.bsa";
+	/**
+	 * 100 000 small uncompressed files, for opening and lookups
+	 */
+	static final String MANY = "bench105many.bsa";
+
+	private ArchiveGenerator() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		generate(new File(args.length > 0 ? args[0] : "target/archives"));
+	}
+
+	/**
+	 * Writes all benchmark archives to directory that do not exist yet
+	 *
+	 * @param directory
+	 * @throws IOException
+	 */
+	static void generate(File directory) throws IOException {
+		Files.createDirectories(directory.toPath());
+		write(new File(directory, ZLIB), 104, true, false, 32, 64, 64 * 1024);
+		write(new File(directory, LZ4), 105, true, true, 32, 64, 64 * 1024);
+		write(new File(directory, UNCOMPRESSED), 105, false, false, 32, 64, 64 * 1024);
+		write(new File(directory, MANY), 105, false, false, 400, 250, 512);
+	}
+
+	/**
+	 * Writes one archive with {@link BsaWriter}, folders hold files of the four common extensions
+	 */
+	private static void write(File out, int version, boolean compressed, boolean embedNames, int folderCount, int filesPerFolder, int maxSize)
+			throws IOException {
+		if (out.exists()) {
+			return;
+		}
+		long start = System.nanoTime();
+		Random random = new Random(out.getName().hashCode());
+		BsaWriter writer = new BsaWriter(version);
+		writer.setCompressed(compressed);
+		writer.setEmbedNames(embedNames);
+		String[] extensions = { ".dds", ".nif", ".wav", ".kf" };
+		for (int i = 0; i < folderCount; i++) {
+			for (int j = 0; j < filesPerFolder; j++) {
+				writer.add("textures\\bench\\dir" + i + "\\file" + j + extensions[j % extensions.length], content(random, 16 + random.nextInt(maxSize)));
+			}
+		}
+		writer.write(out);
+		System.out.println("Generated " + out + " with " + folderCount * filesPerFolder + " files in " + ((System.nanoTime() - start) / 1000000000d) + "s");
+	}
+
+	/**
+	 * Texture like bytes, mostly repeating an earlier run of random length with a quarter of the bytes random
+	 */
+	private static byte[] content(Random random, int size) {
+		byte[] data = new byte[size];
+		int period = 1 + random.nextInt(64);
+		for (int i = 0; i < size; i++) {
+			data[i] = i < period || random.nextInt(4) == 0 ? (byte) random.nextInt(256) : data[i - period];
+		}
+		return data;
+	}
+}
@@ -0,0 +1,31 @@
+package bsa.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Locates the generated archives. The directory is taken from the system property bsa.bench.archives and defaults to target/archives, archives missing there
+ * are generated on first use.
+ *
+ * @author Yusaf Ali
+ *
+ */
+final class BenchmarkArchives {
+	private BenchmarkArchives() {
+	}
+
+	/**
+	 * @param name
+	 *            one of the archive names of {@link ArchiveGenerator}
+	 * @return the generated archive
+	 * @throws IOException
+	 */
+	static File file(String name) throws IOException {
+		File directory = new File(System.getProperty("bsa.bench.archives", "target/archives"));
+		File file = new File(directory, name);
+		if (!file.exists()) {
+			ArchiveGenerator.generate(directory);
+		}
+		return file;
+	}
+}
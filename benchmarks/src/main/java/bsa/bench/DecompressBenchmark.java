@@ -0,0 +1,92 @@
+package bsa.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bsa.BsaFile;
+
+/**
+ * Loading files of up to 64 KB from zlib (version 104), LZ4 (version 105) and uncompressed archives, into new arrays, into a reused direct buffer and through
+ * a stream
+ *
+ * @author Yusaf Ali
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DecompressBenchmark {
+	@Param({ ArchiveGenerator.ZLIB, ArchiveGenerator.LZ4, ArchiveGenerator.UNCOMPRESSED })
+	public String archive;
+
+	private BsaFile bsaFile;
+	private String[] paths;
+	private int next;
+	private ByteBuffer buffer;
+
+	@Setup
+	public void setup() throws IOException {
+		bsaFile = new BsaFile(BenchmarkArchives.file(archive));
+		List<String> filenames = new ArrayList<>(bsaFile.getFilenames());
+		Collections.shuffle(filenames, new Random(1));
+		paths = filenames.toArray(new String[0]);
+		int largest = 0;
+		for (String path : paths) {
+			largest = Math.max(largest, bsaFile.getLoadedSize(path));
+		}
+		buffer = ByteBuffer.allocateDirect(largest);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		bsaFile.close();
+	}
+
+	private String nextPath() {
+		String path = paths[next];
+		next = next + 1 == paths.length ? 0 : next + 1;
+		return path;
+	}
+
+	@Benchmark
+	public byte[] load() throws IOException, DataFormatException {
+		return bsaFile.load(nextPath());
+	}
+
+	@Benchmark
+	public int loadIntoDirectBuffer() throws IOException, DataFormatException {
+		buffer.clear();
+		return bsaFile.load(nextPath(), buffer);
+	}
+
+	@Benchmark
+	public long stream() throws IOException {
+		try (InputStream in = bsaFile.openStream(nextPath())) {
+			return in.transferTo(OutputStream.nullOutputStream());
+		}
+	}
+}
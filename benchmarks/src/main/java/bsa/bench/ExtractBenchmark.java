@@ -0,0 +1,78 @@
+package bsa.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bsa.BsaFile;
+
+/**
+ * Unpacking a whole archive with {@link BsaFile#extractAll(File)} against loading and writing file by file
+ *
+ * @author Yusaf Ali
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ExtractBenchmark {
+	@Param({ ArchiveGenerator.ZLIB, ArchiveGenerator.LZ4, ArchiveGenerator.UNCOMPRESSED })
+	public String archive;
+
+	private BsaFile bsaFile;
+	private Path output;
+
+	@Setup
+	public void setup() throws IOException {
+		bsaFile = new BsaFile(BenchmarkArchives.file(archive));
+		output = Files.createTempDirectory("bsa-extract");
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		bsaFile.close();
+		try (Stream<Path> paths = Files.walk(output)) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	@Benchmark
+	public int extractAll() throws IOException {
+		return bsaFile.extractAll(output.toFile());
+	}
+
+	@Benchmark
+	public int loadAndWriteEach() throws IOException, DataFormatException {
+		int written = 0;
+		for (String filename : bsaFile.getFilenames()) {
+			Path path = output.resolve(filename.replace('\\', '/'));
+			Files.createDirectories(path.getParent());
+			Files.write(path, bsaFile.load(filename));
+			written++;
+		}
+		return written;
+	}
+}
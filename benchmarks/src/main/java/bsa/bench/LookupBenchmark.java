@@ -0,0 +1,93 @@
+package bsa.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bsa.BsaFile;
+import bsa.BsaManager;
+import init.Settings;
+
+/**
+ * Finding files among 100 000 entries through {@link BsaManager#getFile(String)} and {@link BsaFile}, paths are visited in random order and half of them in
+ * upper case
+ *
+ * @author Yusaf Ali
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LookupBenchmark {
+	private BsaFile bsaFile;
+	private String[] paths;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		File file = BenchmarkArchives.file(ArchiveGenerator.MANY);
+		Settings.SKYRIM_LOCATION = file.getParent();
+		BsaManager.initializeFilteredBsaLoading((dir, name) -> name.equals(ArchiveGenerator.MANY));
+		List<String> filenames = new ArrayList<>();
+		for (String filename : BsaManager.getAllBsaFileRecords().keySet()) {
+			filenames.add(filenames.size() % 2 == 0 ? filename : filename.toUpperCase());
+		}
+		Collections.shuffle(filenames, new Random(1));
+		paths = filenames.toArray(new String[0]);
+		bsaFile = BsaManager.getFile(paths[0]);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BsaManager.closeAll();
+	}
+
+	private String nextPath() {
+		String path = paths[next];
+		next = next + 1 == paths.length ? 0 : next + 1;
+		return path;
+	}
+
+	@Benchmark
+	public BsaFile managerGetFile() {
+		return BsaManager.getFile(nextPath());
+	}
+
+	@Benchmark
+	public BsaFile managerGetMissingFile() {
+		return BsaManager.getFile("textures\\bench\\missing\\file.dds");
+	}
+
+	@Benchmark
+	public boolean contains() {
+		return bsaFile.contains(nextPath());
+	}
+
+	/**
+	 * Lookup and read of a small uncompressed file
+	 */
+	@Benchmark
+	public byte[] load() throws IOException, DataFormatException {
+		return bsaFile.load(nextPath());
+	}
+}
@@ -0,0 +1,56 @@
+package bsa.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bsa.BsaFile;
+
+/**
+ * Parsing archive headers with {@link BsaFile} construction, mapped against seek and read parsing
+ *
+ * @author Yusaf Ali
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OpenBenchmark {
+	/**
+	 * Version 104 and 105 folder layouts, plus the archive with 100 000 records
+	 */
+	@Param({ ArchiveGenerator.MANY, ArchiveGenerator.ZLIB, ArchiveGenerator.LZ4 })
+	public String archive;
+
+	@Param({ "true", "false" })
+	public boolean mapped;
+
+	private File file;
+
+	@Setup
+	public void setup() throws IOException {
+		file = BenchmarkArchives.file(archive);
+	}
+
+	@Benchmark
+	public BsaFile open() throws IOException {
+		BsaFile bsaFile = new BsaFile(file, mapped);
+		bsaFile.close();
+		return bsaFile;
+	}
+}
@@ -0,0 +1,647 @@
+package bsa;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.DataFormatException;
+
+/**
+ * Reads .ba2 archives of Fallout 4 and Starfield. General archives (GNRL) hold whole files, texture archives (DX10) hold DDS textures without their header,
+ * split into chunks of mip levels that are compressed on their own. Loading a texture writes its DDS header and decompresses the chunks in parallel straight
+ * into one presized destination.<br>
+ * Files are indexed under the BSA hashes of their paths, so archives of both formats mount into the same {@link BsaVirtualFileSystem} and load through
+ * {@link BsaManager#getFileBytes(String)}.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public class Ba2File extends BsaFile {
+	private static final int MAGIC = 0x58445442; // "BTDX"
+	private static final int GNRL = 0x4c524e47; // "GNRL"
+	private static final int DX10 = 0x30315844; // "DX10"
+	private static final int COMPRESSION_LZ4 = 3;
+	/**
+	 * Textures smaller than this once decompressed are decoded on the calling thread
+	 */
+	private static final int PARALLEL_SIZE = 256 * 1024;
+
+	private static volatile Executor chunkExecutor = ForkJoinPool.commonPool();
+
+	private int ba2Version;
+	private boolean textures;
+	private boolean lz4;
+	/**
+	 * Record of every entry in the archive, entries are grouped by folder while records are in archive order
+	 */
+	private int[] records;
+
+	// General records, indexed by record
+	private long[] offsets;
+	private int[] packedSizes;
+	private int[] unpackedSizes;
+
+	// Texture records, indexed by record
+	private int[] firstChunks;
+	private short[] widths;
+	private short[] heights;
+	private byte[] mipCounts;
+	private byte[] formats;
+	private boolean[] cubeMaps;
+
+	// Texture chunks, indexed by chunk, those of a record follow each other
+	private long[] chunkOffsets;
+	private int[] chunkPackedSizes;
+	private int[] chunkUnpackedSizes;
+
+	/**
+	 * Reads the records and name table of a .ba2 archive
+	 *
+	 * @param location
+	 * @throws IOException
+	 *             if the file is not a GNRL or DX10 archive
+	 */
+	public Ba2File(File location) throws IOException {
+		super(location, location.length(), location.lastModified(), 0, 0, new ArrayList<>(), new BsaEntryTable(0));
+		BsaMetrics m = getMetrics();
+		long start = m == null ? 0 : System.nanoTime();
+		boolean parsed = false;
+		try {
+			readHeader();
+			parsed = true;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated records in " + getName(), e);
+		} finally {
+			if (!parsed) {
+				if (m != null) {
+					m.error(getName(), BsaMetrics.Stage.OPEN, BsaMetrics.Codec.NONE);
+				}
+				close();
+			}
+		}
+		if (m != null) {
+			m.record(getName(), BsaMetrics.Stage.OPEN, BsaMetrics.Codec.NONE, System.nanoTime() - start, 0);
+		}
+	}
+
+	/**
+	 * Sets the executor chunks of large textures are decompressed on, defaults to the common fork join pool
+	 *
+	 * @param executor
+	 */
+	public static void setChunkExecutor(Executor executor) {
+		chunkExecutor = executor;
+	}
+
+	private void readHeader() throws IOException {
+		long fileSize = getArchiveSize();
+		ByteBuffer header = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+		header.limit((int) Math.min(36, fileSize));
+		readFully(header, 0);
+		header.flip();
+		if (header.remaining() < 24 || header.getInt() != MAGIC) {
+			throw new IOException("Supporting only BA2 files");
+		}
+		ba2Version = header.getInt();
+		int type = header.getInt();
+		int fileCount = header.getInt();
+		long nameTableOffset = header.getLong();
+		int headerSize = 24;
+		if (ba2Version == 2 || ba2Version == 3) {
+			headerSize += 8;
+		}
+		if (ba2Version == 3) {
+			lz4 = header.remaining() >= 12 && header.getInt(32) == COMPRESSION_LZ4;
+			headerSize += 4;
+		}
+		if (type != GNRL && type != DX10) {
+			throw new IOException("Unsupported BA2 type " + new String(header.array(), 8, 4, StandardCharsets.ISO_8859_1));
+		}
+		textures = type == DX10;
+		if (nameTableOffset <= headerSize || nameTableOffset > fileSize || fileCount < 0 || nameTableOffset - headerSize > Integer.MAX_VALUE
+				|| fileSize - nameTableOffset > Integer.MAX_VALUE) {
+			throw new IOException("Records exceed file size of " + getName());
+		}
+		if (extraLogging) {
+			logger.extra("Version: " + ba2Version + ", Type: " + (textures ? "DX10" : "GNRL") + ", FileCount: " + fileCount);
+		}
+		ByteBuffer recordBlock = ByteBuffer.allocate((int) (nameTableOffset - headerSize)).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(recordBlock, headerSize);
+		recordBlock.flip();
+		if (textures) {
+			readTextureRecords(recordBlock, fileCount);
+		} else {
+			readGeneralRecords(recordBlock, fileCount);
+		}
+
+		ByteBuffer nameTable = ByteBuffer.allocate((int) (fileSize - nameTableOffset)).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(nameTable, nameTableOffset);
+		nameTable.flip();
+		// Entries of a folder have to be contiguous, records are grouped by folder in the order folders first appear
+		Map<String, List<Integer>> folderRecords = new LinkedHashMap<>();
+		String[] fileNames = new String[fileCount];
+		byte[] nameBytes = new byte[0xffff];
+		for (int record = 0; record < fileCount; record++) {
+			int length = Short.toUnsignedInt(nameTable.getShort());
+			nameTable.get(nameBytes, 0, length);
+			String path = new String(nameBytes, 0, length, StandardCharsets.ISO_8859_1).toLowerCase().replace('/', '\\');
+			int separator = path.lastIndexOf('\\');
+			fileNames[record] = path.substring(separator + 1);
+			folderRecords.computeIfAbsent(separator < 0 ? "" : path.substring(0, separator), folder -> new ArrayList<>()).add(record);
+		}
+		List<BsaFolderRecord> folders = new ArrayList<>(folderRecords.size());
+		BsaEntryTable table = new BsaEntryTable(fileCount);
+		records = new int[fileCount];
+		for (Map.Entry<String, List<Integer>> folderEntry : folderRecords.entrySet()) {
+			BsaFolderRecord folder = new BsaFolderRecord();
+			folder.name = folderEntry.getKey();
+			folder.hash = BsaHash.folderHash(folder.name);
+			folder.fileCount = folderEntry.getValue().size();
+			folder.firstFile = table.size();
+			for (int record : folderEntry.getValue()) {
+				int entry = addEntry(table, folders.size(), BsaHash.fileHash(fileNames[record]), record);
+				table.appendName(entry, fileNames[record]);
+				records[entry] = record;
+			}
+			folders.add(folder);
+		}
+		table.buildIndex(folders);
+		setRecords(folders, table);
+	}
+
+	private void readGeneralRecords(ByteBuffer recordBlock, int fileCount) {
+		offsets = new long[fileCount];
+		packedSizes = new int[fileCount];
+		unpackedSizes = new int[fileCount];
+		for (int record = 0; record < fileCount; record++) {
+			// Name hash, extension, directory hash and flags
+			recordBlock.position(recordBlock.position() + 16);
+			offsets[record] = recordBlock.getLong();
+			packedSizes[record] = recordBlock.getInt();
+			unpackedSizes[record] = recordBlock.getInt();
+			recordBlock.getInt(); // 0xBAADF00D
+		}
+	}
+
+	private void readTextureRecords(ByteBuffer recordBlock, int fileCount) throws IOException {
+		firstChunks = new int[fileCount + 1];
+		widths = new short[fileCount];
+		heights = new short[fileCount];
+		mipCounts = new byte[fileCount];
+		formats = new byte[fileCount];
+		cubeMaps = new boolean[fileCount];
+		List<long[]> chunks = new ArrayList<>();
+		for (int record = 0; record < fileCount; record++) {
+			// Name hash, extension, directory hash and an unknown byte
+			recordBlock.position(recordBlock.position() + 13);
+			int chunkCount = Byte.toUnsignedInt(recordBlock.get());
+			recordBlock.getShort(); // chunk header size
+			heights[record] = recordBlock.getShort();
+			widths[record] = recordBlock.getShort();
+			mipCounts[record] = recordBlock.get();
+			formats[record] = recordBlock.get();
+			cubeMaps[record] = (recordBlock.getShort() & 1) != 0;
+			firstChunks[record] = chunks.size();
+			for (int i = 0; i < chunkCount; i++) {
+				long offset = recordBlock.getLong();
+				int packedSize = recordBlock.getInt();
+				int unpackedSize = recordBlock.getInt();
+				// Chunks are decoded one after another, so the levels they hold follow from their sizes alone
+				if (offset < 0 || packedSize < 0 || unpackedSize < 0) {
+					throw new IOException("Invalid chunk of " + packedSize + " bytes at " + offset + " in " + getName());
+				}
+				// First and last mip level, then 0xBAADF00D
+				recordBlock.position(recordBlock.position() + 8);
+				chunks.add(new long[] { offset, packedSize, unpackedSize });
+			}
+		}
+		firstChunks[fileCount] = chunks.size();
+		chunkOffsets = new long[chunks.size()];
+		chunkPackedSizes = new int[chunks.size()];
+		chunkUnpackedSizes = new int[chunks.size()];
+		for (int chunk = 0; chunk < chunks.size(); chunk++) {
+			chunkOffsets[chunk] = chunks.get(chunk)[0];
+			chunkPackedSizes[chunk] = (int) chunks.get(chunk)[1];
+			chunkUnpackedSizes[chunk] = (int) chunks.get(chunk)[2];
+		}
+	}
+
+	/**
+	 * Adds the entry of a record with the range of the archive it is stored in. Textures always need decoding for their header, so they count as compressed.
+	 */
+	private int addEntry(BsaEntryTable table, int folderIndex, long fileHash, int record) {
+		if (!textures) {
+			int storedSize = packedSizes[record] != 0 ? packedSizes[record] : unpackedSizes[record];
+			return table.add(folderIndex, fileHash, offsets[record], storedSize, packedSizes[record] != 0);
+		}
+		long start = storedStart(firstChunks[record], firstChunks[record + 1]);
+		long end = storedEnd(firstChunks[record], firstChunks[record + 1]);
+		return table.add(folderIndex, fileHash, start, (int) (end - start), true);
+	}
+
+	private long storedStart(int fromChunk, int toChunk) {
+		long start = Long.MAX_VALUE;
+		for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+			start = Math.min(start, chunkOffsets[chunk]);
+		}
+		return start == Long.MAX_VALUE ? 0 : start;
+	}
+
+	private long storedEnd(int fromChunk, int toChunk) {
+		long end = 0;
+		for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+			end = Math.max(end, chunkOffsets[chunk] + storedSize(chunk));
+		}
+		return end;
+	}
+
+	private int storedSize(int chunk) {
+		return chunkPackedSizes[chunk] != 0 ? chunkPackedSizes[chunk] : chunkUnpackedSizes[chunk];
+	}
+
+	/**
+	 * @return 128 for textures stored with a legacy FourCC, 148 for textures that need a DX10 header
+	 */
+	private int ddsHeaderSize(int record) {
+		return legacyFourCC(formats[record] & 0xff) != 0 ? BsaDdsHeader.SIZE : BsaDdsHeader.DX10_SIZE;
+	}
+
+	/**
+	 * FourCC of the formats older tools expect in a legacy header, as written by the Creation Kit
+	 */
+	private static int legacyFourCC(int dxgiFormat) {
+		switch (dxgiFormat) {
+		case 71: // BC1_UNORM
+			return 0x31545844; // DXT1
+		case 74: // BC2_UNORM
+			return 0x33545844; // DXT3
+		case 77: // BC3_UNORM
+			return 0x35545844; // DXT5
+		case 80: // BC4_UNORM
+			return 0x31495441; // ATI1
+		case 83: // BC5_UNORM
+			return 0x32495441; // ATI2
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Writes the DDS header of a texture record at the position of destination, advancing it
+	 */
+	private void putDdsHeader(int record, ByteBuffer destination) {
+		int fourCC = legacyFourCC(formats[record] & 0xff);
+		int mipCount = Math.max(mipCounts[record] & 0xff, 1);
+		boolean cubeMap = cubeMaps[record];
+		ByteBuffer header = destination.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x20534444); // "DDS "
+		header.putInt(124);
+		header.putInt(0x1 | 0x2 | 0x4 | 0x1000 | 0x20000); // caps, height, width, pixel format, mip count
+		header.putInt(Short.toUnsignedInt(heights[record]));
+		header.putInt(Short.toUnsignedInt(widths[record]));
+		header.putInt(0); // pitch or linear size
+		header.putInt(0); // depth
+		header.putInt(mipCount);
+		for (int i = 0; i < 11; i++) {
+			header.putInt(0);
+		}
+		// Pixel format
+		header.putInt(32);
+		header.putInt(0x4); // FourCC
+		header.putInt(fourCC != 0 ? fourCC : DX10);
+		for (int i = 0; i < 5; i++) {
+			header.putInt(0);
+		}
+		header.putInt(0x1000 | (mipCount > 1 ? 0x400008 : 0) | (cubeMap ? 0x8 : 0)); // texture, mip map, complex
+		header.putInt(cubeMap ? 0xfe00 : 0); // all six cube faces
+		header.putInt(0);
+		header.putInt(0);
+		header.putInt(0);
+		if (fourCC == 0) {
+			header.putInt(formats[record] & 0xff);
+			header.putInt(3); // 2D texture
+			header.putInt(cubeMap ? 0x4 : 0);
+			header.putInt(1); // array size
+			header.putInt(0);
+		}
+		destination.position(header.position());
+	}
+
+	@Override
+	public int getVersion() {
+		return ba2Version;
+	}
+
+	/**
+	 * @return true for texture archives (DX10), false for general archives (GNRL)
+	 */
+	public boolean isTextureArchive() {
+		return textures;
+	}
+
+	@Override
+	int getLoadedSize(int entry, byte[] stored, int offset) {
+		return getLoadedSize(entry);
+	}
+
+	@Override
+	int getLoadedSize(int entry) {
+		int record = records[entry];
+		if (!textures) {
+			return unpackedSizes[record];
+		}
+		long size = ddsHeaderSize(record);
+		for (int chunk = firstChunks[record]; chunk < firstChunks[record + 1]; chunk++) {
+			size += chunkUnpackedSizes[chunk];
+		}
+		return (int) size;
+	}
+
+	@Override
+	byte[] load(int entry) throws IOException, DataFormatException {
+		byte[] file = new byte[getLoadedSize(entry)];
+		load(entry, ByteBuffer.wrap(file));
+		return file;
+	}
+
+	@Override
+	int load(int entry, ByteBuffer destination) throws IOException, DataFormatException {
+		int loadedSize = getLoadedSize(entry);
+		if (destination.remaining() < loadedSize) {
+			throw new IllegalArgumentException("Destination has room for " + destination.remaining() + " of " + loadedSize + " bytes");
+		}
+		BsaEntryTable entries = getEntries();
+		int record = records[entry];
+		int limit = destination.limit();
+		destination.limit(destination.position() + loadedSize);
+		try {
+			if (!entries.isCompressed(entry)) {
+				readFully(destination, entries.getOffset(entry));
+				return loadedSize;
+			}
+			if (!textures) {
+				ByteBuffer stored = BsaScratch.get().input(entries.getSize(entry));
+				readFully(stored, entries.getOffset(entry));
+				decodeFile(record, stored.array(), stored.arrayOffset(), destination);
+				return loadedSize;
+			}
+			putDdsHeader(record, destination);
+			readChunks(firstChunks[record], firstChunks[record + 1], destination);
+			return loadedSize;
+		} finally {
+			destination.limit(limit);
+		}
+	}
+
+	@Override
+	ByteBuffer load(int entry, BsaBufferPool pool) throws IOException, DataFormatException {
+		ByteBuffer buffer = pool.acquire(getLoadedSize(entry));
+		try {
+			load(entry, buffer);
+		} catch (IOException | DataFormatException | RuntimeException e) {
+			pool.release(buffer);
+			throw e;
+		}
+		return buffer.flip();
+	}
+
+	@Override
+	ByteBuffer decodeStored(int entry, byte[] stored, int offset) throws DataFormatException {
+		BsaEntryTable entries = getEntries();
+		int record = records[entry];
+		if (!entries.isCompressed(entry)) {
+			return ByteBuffer.wrap(stored, offset, entries.getSize(entry)).slice();
+		}
+		ByteBuffer destination = ByteBuffer.allocate(getLoadedSize(entry));
+		if (!textures) {
+			decodeFile(record, stored, offset, destination);
+		} else {
+			putDdsHeader(record, destination);
+			decodeChunks(firstChunks[record], firstChunks[record + 1], stored, entries.getOffset(entry) - offset, destination);
+		}
+		return destination.flip();
+	}
+
+	/**
+	 * Textures also depend on the header generated from their record and on how their data is split into chunks
+	 */
+	@Override
+	byte[] getDecoding(int entry) {
+		int record = records[entry];
+		if (!textures) {
+			return new byte[] { (byte) (packedSizes[record] == 0 ? 0 : lz4 ? 2 : 1) };
+		}
+		int chunks = firstChunks[record + 1] - firstChunks[record];
+		ByteBuffer decoding = ByteBuffer.allocate(1 + BsaDdsHeader.DX10_SIZE + 8 * chunks).order(ByteOrder.LITTLE_ENDIAN);
+		decoding.put((byte) (lz4 ? 2 : 1));
+		putDdsHeader(record, decoding);
+		for (int chunk = firstChunks[record]; chunk < firstChunks[record + 1]; chunk++) {
+			decoding.putInt(chunkPackedSizes[chunk]).putInt(chunkUnpackedSizes[chunk]);
+		}
+		return Arrays.copyOf(decoding.array(), decoding.position());
+	}
+
+	/**
+	 * Texture chunks are split by mip level, so only the chunks holding the requested levels are read and decompressed
+	 */
+	@Override
+	BsaDdsHeader.Mips loadMips(int entry, int firstLevel, int levelCount) throws IOException, DataFormatException {
+		if (firstLevel < 0 || levelCount < 0) {
+			throw new IllegalArgumentException("Invalid level range " + firstLevel + " + " + levelCount);
+		}
+		if (!textures) {
+			byte[] file = load(entry);
+			return BsaDdsHeader.parse(ByteBuffer.wrap(file), file.length).copyMips(file, 0, firstLevel, levelCount);
+		}
+		int record = records[entry];
+		ByteBuffer headerBytes = ByteBuffer.allocate(ddsHeaderSize(record));
+		putDdsHeader(record, headerBytes);
+		BsaDdsHeader header = BsaDdsHeader.parse(headerBytes.flip(), getLoadedSize(entry));
+		levelCount = header.clampLevels(firstLevel, levelCount);
+		if (levelCount == 0) {
+			return new BsaDdsHeader.Mips(header, firstLevel, 0, new byte[0]);
+		}
+		int lastLevel = firstLevel + levelCount - 1;
+		long from = header.getLevelOffset(0, firstLevel);
+		long to = header.getLevelOffset(header.getSlices() - 1, lastLevel) + header.getLevelSize(lastLevel);
+		// Chunks overlapping the requested range, by where their data lands in the file
+		int fromChunk = -1;
+		int toChunk = -1;
+		long fromChunkStart = 0;
+		long toChunkEnd = 0;
+		long chunkStart = header.getDataOffset();
+		for (int chunk = firstChunks[record]; chunk < firstChunks[record + 1]; chunk++) {
+			long chunkEnd = chunkStart + chunkUnpackedSizes[chunk];
+			if (chunkEnd > from && chunkStart < to) {
+				if (fromChunk < 0) {
+					fromChunk = chunk;
+					fromChunkStart = chunkStart;
+				}
+				toChunk = chunk + 1;
+				toChunkEnd = chunkEnd;
+			}
+			chunkStart = chunkEnd;
+		}
+		if (fromChunk < 0 || fromChunkStart > from || toChunkEnd < to) {
+			throw new DataFormatException("Chunks of " + getEntries().getPath(entry) + " do not cover mip levels " + firstLevel + " to " + lastLevel);
+		}
+		long decodedSize = 0;
+		for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+			decodedSize += chunkUnpackedSizes[chunk];
+		}
+		byte[] decoded = new byte[(int) decodedSize];
+		readChunks(fromChunk, toChunk, ByteBuffer.wrap(decoded));
+		return header.copyMips(decoded, fromChunkStart, firstLevel, levelCount);
+	}
+
+	/**
+	 * Uncompressed general files are read as the stream is read, other files are loaded whole first
+	 */
+	@Override
+	InputStream openStream(int entry) throws IOException {
+		BsaEntryTable entries = getEntries();
+		if (!entries.isCompressed(entry)) {
+			return Channels.newInputStream(new BsaRangeChannel(this, entries.getOffset(entry), entries.getSize(entry)));
+		}
+		try {
+			return new ByteArrayInputStream(load(entry));
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt " + entries.getPath(entry) + " in archive " + getName(), e);
+		}
+	}
+
+	/**
+	 * Reads chunks of one texture and decodes them into destination, one after another from its position
+	 */
+	private void readChunks(int fromChunk, int toChunk, ByteBuffer destination) throws IOException, DataFormatException {
+		long start = storedStart(fromChunk, toChunk);
+		int length = (int) (storedEnd(fromChunk, toChunk) - start);
+		// Chunks decoded on other threads can not share the scratch buffer of this thread, which may be reused while waiting for them
+		ByteBuffer stored = isParallel(fromChunk, toChunk) ? ByteBuffer.allocate(length) : BsaScratch.get().input(length);
+		readFully(stored, start);
+		decodeChunks(fromChunk, toChunk, stored.array(), start - stored.arrayOffset(), destination);
+	}
+
+	private boolean isParallel(int fromChunk, int toChunk) {
+		if (toChunk - fromChunk < 2) {
+			return false;
+		}
+		long size = 0;
+		for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+			size += chunkUnpackedSizes[chunk];
+		}
+		return size >= PARALLEL_SIZE;
+	}
+
+	/**
+	 * Decodes chunks into destination one after another from its position, advancing it. Large textures decode every chunk but the first on the chunk
+	 * executor, each into its own part of destination, while the calling thread decodes the first.
+	 *
+	 * @param stored
+	 *            array holding the stored bytes of all chunks
+	 * @param storedStart
+	 *            archive offset of the first byte of stored
+	 */
+	private void decodeChunks(int fromChunk, int toChunk, byte[] stored, long storedStart, ByteBuffer destination) throws DataFormatException {
+		BsaMetrics m = getMetrics();
+		BsaMetrics.Codec codec = lz4 ? BsaMetrics.Codec.LZ4 : BsaMetrics.Codec.ZLIB;
+		long startTime = m == null ? 0 : System.nanoTime();
+		int start = destination.position();
+		int[] chunkStarts = new int[toChunk - fromChunk + 1];
+		chunkStarts[0] = start;
+		for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+			chunkStarts[chunk - fromChunk + 1] = chunkStarts[chunk - fromChunk] + chunkUnpackedSizes[chunk];
+		}
+		try {
+			if (!isParallel(fromChunk, toChunk)) {
+				for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+					decodeChunk(chunk, stored, storedStart, destination, chunkStarts[chunk - fromChunk]);
+				}
+			} else {
+				Executor executor = chunkExecutor;
+				List<CompletableFuture<Void>> others = new ArrayList<>(toChunk - fromChunk - 1);
+				for (int chunk = fromChunk + 1; chunk < toChunk; chunk++) {
+					int c = chunk;
+					others.add(CompletableFuture.runAsync(() -> {
+						try {
+							decodeChunk(c, stored, storedStart, destination, chunkStarts[c - fromChunk]);
+						} catch (DataFormatException e) {
+							throw new CompletionException(e);
+						}
+					}, executor));
+				}
+				try {
+					decodeChunk(fromChunk, stored, storedStart, destination, start);
+				} finally {
+					// Nothing may still write into destination once this returns, failed or not
+					try {
+						CompletableFuture.allOf(others.toArray(new CompletableFuture<?>[0])).join();
+					} catch (CompletionException e) {
+						if (e.getCause() instanceof DataFormatException) {
+							throw (DataFormatException) e.getCause();
+						}
+						throw e;
+					}
+				}
+			}
+		} catch (DataFormatException | RuntimeException e) {
+			if (m != null) {
+				m.error(getName(), BsaMetrics.Stage.DECOMPRESS, codec);
+			}
+			throw e;
+		}
+		if (m != null) {
+			m.record(getName(), BsaMetrics.Stage.DECOMPRESS, codec, System.nanoTime() - startTime, chunkStarts[chunkStarts.length - 1] - start);
+		}
+		destination.position(chunkStarts[chunkStarts.length - 1]);
+	}
+
+	/**
+	 * Decodes one chunk into destination at an absolute position, destination itself is left untouched so chunks can be decoded concurrently
+	 */
+	private void decodeChunk(int chunk, byte[] stored, long storedStart, ByteBuffer destination, int position) throws DataFormatException {
+		ByteBuffer target = destination.duplicate();
+		target.limit(position + chunkUnpackedSizes[chunk]).position(position);
+		decode(stored, (int) (chunkOffsets[chunk] - storedStart), chunkPackedSizes[chunk], chunkUnpackedSizes[chunk], target);
+	}
+
+	private void decodeFile(int record, byte[] stored, int offset, ByteBuffer destination) throws DataFormatException {
+		decode(stored, offset, packedSizes[record], unpackedSizes[record], destination);
+	}
+
+	/**
+	 * Decodes stored data into destination, raw LZ4 blocks for Starfield archives that declare them and zlib streams otherwise
+	 *
+	 * @param packedSize
+	 *            0 for data stored as it is
+	 */
+	private void decode(byte[] stored, int offset, int packedSize, int unpackedSize, ByteBuffer destination) throws DataFormatException {
+		if (packedSize == 0) {
+			destination.put(stored, offset, unpackedSize);
+			return;
+		}
+		int decoded;
+		if (lz4) {
+			decoded = Lz4FrameDecoder.decodeRawBlock(stored, offset, packedSize, destination);
+		} else {
+			decoded = BsaScratch.get().inflate(ByteBuffer.wrap(stored, offset, packedSize), destination);
+		}
+		if (decoded != unpackedSize) {
+			throw new DataFormatException("Decompressed " + decoded + " of " + unpackedSize + " bytes");
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package bsa;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+
+/**
+ * Keeps decompressed files in memory, bounded by their total size in bytes. Least recently used files are evicted first. When several threads miss the same
+ * file at once only one of them loads it, the others wait for its result.<br>
+ * Returned arrays are shared between all callers and must not be modified.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public class BsaAssetCache {
+	/**
+	 * Loads a file on cache miss
+	 */
+	@FunctionalInterface
+	public interface Loader {
+		byte[] load() throws IOException, DataFormatException;
+	}
+
+	private final long maxBytes;
+	private final LinkedHashMap<Long, byte[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+	private final Map<Long, CompletableFuture<byte[]>> loading = new ConcurrentHashMap<>();
+	private long bytes;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxBytes
+	 *            total size of cached files, a single file larger than this is never cached
+	 */
+	public BsaAssetCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cached file of key, loading it with loader on miss
+	 *
+	 * @param key
+	 *            identifies the file, such as {@link BsaHash#key(long, long)} of its path
+	 * @param loader
+	 *            loads the file, may return null for missing files which are not cached
+	 * @return
+	 * @throws IOException
+	 * @throws DataFormatException
+	 */
+	public byte[] get(long key, Loader loader) throws IOException, DataFormatException {
+		byte[] cached = lookup(key);
+		if (cached != null) {
+			hits.increment();
+			return cached;
+		}
+		CompletableFuture<byte[]> load = new CompletableFuture<>();
+		CompletableFuture<byte[]> running = loading.putIfAbsent(key, load);
+		if (running != null) {
+			// Somebody else is loading it already
+			hits.increment();
+			return await(running);
+		}
+		try {
+			cached = lookup(key);
+			if (cached == null) {
+				misses.increment();
+				cached = loader.load();
+				if (cached != null) {
+					store(key, cached);
+				}
+			}
+			load.complete(cached);
+			return cached;
+		} catch (IOException | DataFormatException | RuntimeException e) {
+			load.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key, load);
+		}
+	}
+
+	/**
+	 * @return cached file of key, null if not cached. Does not count as hit or miss.
+	 */
+	public synchronized byte[] peek(long key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * Adds a file without loading it, replaces any file cached for key
+	 */
+	public void put(long key, byte[] file) {
+		store(key, file);
+	}
+
+	public synchronized void invalidate(long key) {
+		byte[] removed = entries.remove(key);
+		if (removed != null) {
+			bytes -= removed.length;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	private synchronized byte[] lookup(long key) {
+		return entries.get(key);
+	}
+
+	private synchronized void store(long key, byte[] file) {
+		if (file.length > maxBytes) {
+			return;
+		}
+		byte[] previous = entries.put(key, file);
+		bytes += file.length - (previous == null ? 0 : previous.length);
+		Iterator<byte[]> eldest = entries.values().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			bytes -= eldest.next().length;
+			eldest.remove();
+			evictions.increment();
+		}
+	}
+
+	private static byte[] await(CompletableFuture<byte[]> running) throws IOException, DataFormatException {
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for file", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof DataFormatException) {
+				throw (DataFormatException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return total size of cached files in bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "BsaAssetCache [hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", count=" + getCount() + ", bytes=" + getBytes()
+				+ "/" + maxBytes + "]";
+	}
+}
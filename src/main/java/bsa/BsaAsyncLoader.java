@@ -0,0 +1,235 @@
+package bsa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+
+/**
+ * Loads files of the archives registered in {@link BsaManager} without blocking the caller. Archive reads run on a pool of I/O threads, decompression on a
+ * separate pool bounded to the processor count, so slow disks do not hold up decompression and many small reads do not starve each other.<br>
+ * Requests wait in priority queues, higher priorities are served first and equal priorities in request order. Cancelling a returned future drops the
+ * request if it has not started yet.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public class BsaAsyncLoader implements AutoCloseable {
+	/**
+	 * Priority of assets that are needed for the current frame
+	 */
+	public static final int PRIORITY_VISIBLE = 10;
+	/**
+	 * Priority of assets that are loaded ahead of being needed
+	 */
+	public static final int PRIORITY_PREFETCH = 0;
+
+	private final ThreadPoolExecutor io;
+	private final ThreadPoolExecutor cpu;
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * @param ioThreads
+	 *            number of threads reading archives
+	 * @param cpuThreads
+	 *            number of threads decompressing
+	 */
+	public BsaAsyncLoader(int ioThreads, int cpuThreads) {
+		io = newPool("bsa-io-", ioThreads);
+		cpu = newPool("bsa-decode-", cpuThreads);
+	}
+
+	/**
+	 * Four I/O threads and one decompression thread per processor
+	 */
+	public BsaAsyncLoader() {
+		this(4, Runtime.getRuntime().availableProcessors());
+	}
+
+	private static ThreadPoolExecutor newPool(String name, int threads) {
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = r -> {
+			Thread thread = new Thread(r, name + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), factory);
+	}
+
+	/**
+	 * Loads a file from the last loaded archive holding it, or the loose file overriding it. Archived files in the asset cache complete at once, archived files
+	 * loaded here go through the cache like {@link BsaManager#getFileBytes(String)}, so concurrent loads of one file decompress it once. Lookups are timed in
+	 * the metrics and reported to the prefetcher the same way.
+	 *
+	 * @param filename
+	 *            path inside the archives
+	 * @param priority
+	 *            higher priorities are served first, such as {@link #PRIORITY_VISIBLE} ahead of {@link #PRIORITY_PREFETCH}
+	 * @return future of the file, never null. It completes with null if neither an archive nor the loose files hold the file, and exceptionally if the file
+	 *         fails to load. Buffers of files going through the asset cache are read-only.
+	 */
+	public CompletableFuture<ByteBuffer> loadAsync(String filename, int priority) {
+		CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+		long start = System.nanoTime();
+		long folderHash = BsaHash.folderHashOfPath(filename);
+		long fileHash = BsaHash.fileHashOfPath(filename);
+		BsaAssetCache cache = BsaManager.getAssetCache();
+		// Loose files are read on an I/O thread, the cache only holds archived files
+		boolean loose = BsaManager.getLooseFile(folderHash, fileHash) != null;
+		BsaFile bsa = cache == null || loose ? null : BsaManager.getFile(filename, folderHash, fileHash);
+		int entry = bsa == null ? -1 : bsa.getEntries().find(folderHash, fileHash);
+		if (entry >= 0) {
+			byte[] cached = cache.peek(BsaManager.cacheKey(bsa, entry));
+			if (cached != null && BsaManager.isCachedFile(bsa, entry, cached)) {
+				BsaManager.recordLookup(bsa, entry, start);
+				result.complete(ByteBuffer.wrap(cached).asReadOnlyBuffer());
+				return result;
+			}
+		}
+		long order = sequence.getAndIncrement();
+		Request request = new Request(priority, order, result, () -> read(filename, folderHash, fileHash, priority, order, result));
+		// Cancelled requests leave the queue right away instead of when their turn comes
+		result.whenComplete((file, e) -> {
+			if (result.isCancelled()) {
+				io.remove(request);
+			}
+		});
+		execute(io, request);
+		return result;
+	}
+
+	/**
+	 * Runs on an I/O thread, reads a loose file or the entry and hands compressed data on to the decompression pool
+	 */
+	private void read(String filename, long folderHash, long fileHash, int priority, long order, CompletableFuture<ByteBuffer> result) {
+		long start = System.nanoTime();
+		try {
+			Path loose = BsaManager.getLooseFile(folderHash, fileHash);
+			if (loose != null) {
+				try {
+					result.complete(ByteBuffer.wrap(Files.readAllBytes(loose)));
+					return;
+				} catch (NoSuchFileException e) {
+					// Deleted before the watch service reported it, the archived file is loaded instead
+				}
+			}
+			BsaFile bsa = BsaManager.getFile(filename, folderHash, fileHash);
+			int entry = bsa == null ? -1 : bsa.getEntries().find(folderHash, fileHash);
+			BsaManager.recordLookup(bsa, entry, start);
+			if (entry < 0) {
+				result.complete(null);
+				return;
+			}
+			BsaAssetCache cache = BsaManager.getAssetCache();
+			if (!bsa.getEntries().isCompressed(entry)) {
+				complete(result, cache, bsa, entry, () -> bsa.load(entry));
+				return;
+			}
+			// Loaded by another request while this one was queued
+			byte[] cached = cache == null ? null : cache.peek(BsaManager.cacheKey(bsa, entry));
+			if (cached != null && BsaManager.isCachedFile(bsa, entry, cached)) {
+				result.complete(ByteBuffer.wrap(cached).asReadOnlyBuffer());
+				return;
+			}
+			byte[] stored = bsa.readStored(entry);
+			execute(cpu, new Request(priority, order, result, () -> {
+				try {
+					complete(result, cache, bsa, entry, () -> bsa.decodeStored(entry, stored, 0).array());
+				} catch (IOException | DataFormatException | RuntimeException e) {
+					result.completeExceptionally(e);
+				}
+			}));
+		} catch (IOException | DataFormatException | RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Loads through the asset cache if one is set, a file another thread is loading already is waited for instead of being loaded twice
+	 */
+	private static void complete(CompletableFuture<ByteBuffer> result, BsaAssetCache cache, BsaFile bsa, int entry, BsaAssetCache.Loader loader)
+			throws IOException, DataFormatException {
+		if (cache == null) {
+			result.complete(ByteBuffer.wrap(loader.load()));
+			return;
+		}
+		byte[] file = cache.get(BsaManager.cacheKey(bsa, entry), loader);
+		if (!BsaManager.isCachedFile(bsa, entry, file)) {
+			result.complete(ByteBuffer.wrap(loader.load()));
+			return;
+		}
+		result.complete(ByteBuffer.wrap(file).asReadOnlyBuffer());
+	}
+
+	private static void execute(ThreadPoolExecutor pool, Request request) {
+		try {
+			pool.execute(request);
+		} catch (RejectedExecutionException e) {
+			request.result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * @return number of requests waiting for an I/O or decompression thread
+	 */
+	public int getQueued() {
+		return io.getQueue().size() + cpu.getQueue().size();
+	}
+
+	/**
+	 * Stops both pools, requests that have not completed are cancelled
+	 */
+	@Override
+	public void close() {
+		List<Runnable> dropped = new ArrayList<>(io.shutdownNow());
+		dropped.addAll(cpu.shutdownNow());
+		for (Runnable request : dropped) {
+			((Request) request).result.cancel(false);
+		}
+	}
+
+	/**
+	 * Queued work of one request, ordered by priority and then by request order
+	 */
+	private static final class Request implements Runnable, Comparable<Request> {
+		final int priority;
+		final long sequence;
+		final CompletableFuture<ByteBuffer> result;
+		final Runnable work;
+
+		Request(int priority, long sequence, CompletableFuture<ByteBuffer> result, Runnable work) {
+			this.priority = priority;
+			this.sequence = sequence;
+			this.result = result;
+			this.work = work;
+		}
+
+		@Override
+		public void run() {
+			// Cancelled while queued
+			if (!result.isDone()) {
+				work.run();
+			}
+		}
+
+		@Override
+		public int compareTo(Request other) {
+			if (priority != other.priority) {
+				return Integer.compare(other.priority, priority);
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+}
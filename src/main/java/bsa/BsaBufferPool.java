@@ -0,0 +1,122 @@
+package bsa;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direct buffers files are loaded into, for handing them to native code such as OpenGL without a heap copy. Buffers are pooled in power of two capacities
+ * from 4 KB to 1 GB, so a released buffer serves any later file up to its capacity. Released buffers beyond the pooled byte limit are left to the garbage
+ * collector, which frees their memory.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public class BsaBufferPool {
+	private static final int MIN_SHIFT = 12;
+	private static final int MAX_SHIFT = 30;
+
+	private final long maxPooledBytes;
+	/**
+	 * Released buffers by capacity class, 4 KB first
+	 */
+	private final List<ConcurrentLinkedDeque<ByteBuffer>> free;
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final LongAdder allocations = new LongAdder();
+	private final LongAdder reuses = new LongAdder();
+
+	/**
+	 * @param maxPooledBytes
+	 *            total capacity of released buffers kept for reuse
+	 */
+	public BsaBufferPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+		free = new ArrayList<>(MAX_SHIFT - MIN_SHIFT + 1);
+		for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+			free.add(new ConcurrentLinkedDeque<>());
+		}
+	}
+
+	/**
+	 * Takes a buffer from the pool or allocates one. Give it back with {@link #release(ByteBuffer)} once native code is done with it.
+	 *
+	 * @param size
+	 * @return direct buffer with position 0 and limit size, its capacity may be larger
+	 */
+	public ByteBuffer acquire(int size) {
+		int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+		if (shift > MAX_SHIFT) {
+			allocations.increment();
+			return ByteBuffer.allocateDirect(size);
+		}
+		ByteBuffer buffer = free.get(shift - MIN_SHIFT).pollFirst();
+		if (buffer == null) {
+			allocations.increment();
+			buffer = ByteBuffer.allocateDirect(1 << shift);
+		} else {
+			pooledBytes.addAndGet(-buffer.capacity());
+			reuses.increment();
+		}
+		buffer.clear().limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used afterwards, neither by the caller nor by native code still reading it. Buffers not acquired
+	 * from a pool are ignored.
+	 *
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (!buffer.isDirect() || Integer.bitCount(capacity) != 1 || capacity < 1 << MIN_SHIFT || capacity > 1 << MAX_SHIFT) {
+			return;
+		}
+		if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+			pooledBytes.addAndGet(-capacity);
+			return;
+		}
+		free.get(Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT).offerFirst(buffer);
+	}
+
+	/**
+	 * Drops all pooled buffers, their memory is freed by the garbage collector
+	 */
+	public void clear() {
+		for (ConcurrentLinkedDeque<ByteBuffer> buffers : free) {
+			ByteBuffer buffer;
+			while ((buffer = buffers.pollFirst()) != null) {
+				pooledBytes.addAndGet(-buffer.capacity());
+			}
+		}
+	}
+
+	/**
+	 * @return capacity of all buffers waiting for reuse
+	 */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/**
+	 * @return buffers allocated because none of their size was free
+	 */
+	public long getAllocations() {
+		return allocations.sum();
+	}
+
+	/**
+	 * @return buffers served from the pool
+	 */
+	public long getReuses() {
+		return reuses.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "Buffer pool bytes: " + getPooledBytes() + "/" + maxPooledBytes + ", allocations: " + getAllocations() + ", reuses: " + getReuses();
+	}
+}
@@ -0,0 +1,392 @@
+package bsa;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fingerprints of the contents of archive entries, so a file shipped with identical bytes in several archives is decompressed and cached only once. The
+ * fingerprint of an entry is an XXH64 hash of its stored bytes without embedded name, seeded with their size and combined with how the entry decodes, such as
+ * its codec. Entries are read front to back in chunks of a few megabytes like {@link BsaVerifier} and hashed in parallel on an executor.<br>
+ * Set it with {@link BsaManager#setContentIndex(BsaContentIndex)}, the asset cache then keys files by fingerprint instead of path.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public class BsaContentIndex {
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	private static final int MAX_GAP = 64 * 1024;
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private final Executor executor;
+	private final int maxChunks;
+	/**
+	 * Fingerprint of every entry by archive, 0 for entries that could not be read. Archives are only added once all their entries are hashed.
+	 */
+	private final Map<BsaFile, long[]> fingerprints = new ConcurrentHashMap<>();
+	/**
+	 * Decompressed size of every entry by archive, put before and removed after its fingerprints
+	 */
+	private final Map<BsaFile, int[]> loadedSizes = new ConcurrentHashMap<>();
+	/**
+	 * Indexed contents by fingerprint, guarded by this
+	 */
+	private final Map<Long, Content> contents = new HashMap<>();
+
+	private final LongAdder entries = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder uniqueFiles = new LongAdder();
+	private final LongAdder duplicateEntries = new LongAdder();
+	private final LongAdder duplicateBytes = new LongAdder();
+
+	/**
+	 * Hashes on the common fork join pool
+	 */
+	public BsaContentIndex() {
+		this(ForkJoinPool.commonPool(), 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param executor
+	 *            hashes chunks of entries
+	 * @param maxChunks
+	 *            number of chunks read ahead of the executor at most
+	 */
+	public BsaContentIndex(Executor executor, int maxChunks) {
+		this.executor = executor;
+		this.maxChunks = maxChunks;
+	}
+
+	/**
+	 * Indexes archives that are not indexed yet and drops indexed archives that are missing from archives, so passing the archives of a
+	 * {@link BsaVirtualFileSystem.Snapshot} after every mount only hashes the newly mounted ones
+	 *
+	 * @param archives
+	 * @throws InterruptedIOException
+	 *             if interrupted while hashing, archives hashed so far stay indexed
+	 */
+	public synchronized void update(Collection<BsaFile> archives) throws InterruptedIOException {
+		Set<BsaFile> current = Collections.newSetFromMap(new IdentityHashMap<>());
+		current.addAll(archives);
+		for (BsaFile archive : new ArrayList<>(fingerprints.keySet())) {
+			if (!current.contains(archive)) {
+				remove(archive);
+			}
+		}
+		for (BsaFile archive : archives) {
+			if (!fingerprints.containsKey(archive)) {
+				add(archive);
+			}
+		}
+	}
+
+	private void add(BsaFile archive) throws InterruptedIOException {
+		BsaEntryTable table = archive.getEntries();
+		long[] archiveFingerprints = new long[table.size()];
+		int[] payloadSizes = new int[table.size()];
+		int[] archiveLoadedSizes = new int[table.size()];
+		List<Integer> sorted = new ArrayList<>(table.size());
+		for (int entry = 0; entry < table.size(); entry++) {
+			if (table.getSize(entry) >= 0) {
+				sorted.add(entry);
+			}
+		}
+		sorted.sort(Comparator.comparingLong(entry -> table.getOffset(entry)));
+		Semaphore inFlight = new Semaphore(maxChunks);
+		List<CompletableFuture<Void>> pending = new ArrayList<>();
+		try {
+			int i = 0;
+			while (i < sorted.size()) {
+				long start = table.getOffset(sorted.get(i));
+				long end = start + table.getSize(sorted.get(i));
+				int j = i + 1;
+				while (j < sorted.size()) {
+					long offset = table.getOffset(sorted.get(j));
+					long entryEnd = offset + table.getSize(sorted.get(j));
+					if (offset - end > MAX_GAP || Math.max(end, entryEnd) - start > CHUNK_SIZE) {
+						break;
+					}
+					end = Math.max(end, entryEnd);
+					j++;
+				}
+				try {
+					inFlight.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while indexing " + archive.getName());
+				}
+				List<Integer> part = sorted.subList(i, j);
+				byte[] chunk = new byte[(int) (end - start)];
+				try {
+					archive.readFully(ByteBuffer.wrap(chunk), start);
+				} catch (IOException e) {
+					// Left out of the index, loading these files reports the problem
+					inFlight.release();
+					i = j;
+					continue;
+				}
+				long chunkStart = start;
+				pending.add(CompletableFuture.runAsync(() -> {
+					try {
+						for (int entry : part) {
+							try {
+								int offset = (int) (table.getOffset(entry) - chunkStart);
+								int size = table.getSize(entry);
+								// Copies of a file in different archives differ in their embedded names only
+								int prefixLength = archive.embeddedNames() && size > 0 ? Math.min((chunk[offset] & 0xff) + 1, size) : 0;
+								payloadSizes[entry] = size - prefixLength;
+								archiveLoadedSizes[entry] = archive.getLoadedSize(entry, chunk, offset);
+								archiveFingerprints[entry] = fingerprint(archive, entry, chunk, offset + prefixLength, size - prefixLength);
+							} catch (RuntimeException e) {
+								// Left out of the index like unreadable entries, loading the file reports the problem
+								archiveFingerprints[entry] = 0;
+							}
+						}
+					} finally {
+						inFlight.release();
+					}
+				}, executor));
+				i = j;
+			}
+		} finally {
+			CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+		}
+		for (int entry = 0; entry < archiveFingerprints.length; entry++) {
+			if (archiveFingerprints[entry] == 0) {
+				continue;
+			}
+			byte[] decoding = archive.getDecoding(entry);
+			Content content = contents.get(archiveFingerprints[entry]);
+			if (content == null) {
+				content = new Content(payloadSizes[entry], archiveLoadedSizes[entry], decoding);
+				contents.put(archiveFingerprints[entry], content);
+			} else if (!content.matches(payloadSizes[entry], archiveLoadedSizes[entry], decoding)) {
+				// Another file under the same fingerprint, the entry is cached by path instead
+				archiveFingerprints[entry] = 0;
+				continue;
+			}
+			entries.increment();
+			bytes.add(table.getSize(entry));
+			if (++content.count == 1) {
+				uniqueFiles.increment();
+			} else {
+				duplicateEntries.increment();
+				duplicateBytes.add(content.payloadSize);
+			}
+		}
+		loadedSizes.put(archive, archiveLoadedSizes);
+		fingerprints.put(archive, archiveFingerprints);
+	}
+
+	private void remove(BsaFile archive) {
+		long[] archiveFingerprints = fingerprints.remove(archive);
+		loadedSizes.remove(archive);
+		BsaEntryTable table = archive.getEntries();
+		for (int entry = 0; entry < archiveFingerprints.length; entry++) {
+			if (archiveFingerprints[entry] == 0) {
+				continue;
+			}
+			entries.decrement();
+			bytes.add(-table.getSize(entry));
+			Content content = contents.get(archiveFingerprints[entry]);
+			if (--content.count == 0) {
+				contents.remove(archiveFingerprints[entry]);
+				uniqueFiles.decrement();
+			} else {
+				duplicateEntries.decrement();
+				duplicateBytes.add(-content.payloadSize);
+			}
+		}
+	}
+
+	private static long fingerprint(BsaFile archive, int entry, byte[] chunk, int offset, int length) {
+		long hash = hash(chunk, offset, length, length);
+		byte[] decoding = archive.getDecoding(entry);
+		hash = hash(decoding, 0, decoding.length, hash);
+		// 0 marks entries that could not be read
+		return hash != 0 ? hash : 1;
+	}
+
+	/**
+	 * XXH64 of a range of bytes
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param seed
+	 * @return hash
+	 */
+	static long hash(byte[] bytes, int offset, int length, long seed) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+		long hash;
+		if (length >= 32) {
+			long v1 = seed + PRIME1 + PRIME2;
+			long v2 = seed + PRIME2;
+			long v3 = seed;
+			long v4 = seed - PRIME1;
+			while (buffer.remaining() >= 32) {
+				v1 = round(v1, buffer.getLong());
+				v2 = round(v2, buffer.getLong());
+				v3 = round(v3, buffer.getLong());
+				v4 = round(v4, buffer.getLong());
+			}
+			hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			hash = mergeRound(hash, v1);
+			hash = mergeRound(hash, v2);
+			hash = mergeRound(hash, v3);
+			hash = mergeRound(hash, v4);
+		} else {
+			hash = seed + PRIME5;
+		}
+		hash += length;
+		while (buffer.remaining() >= 8) {
+			hash ^= round(0, buffer.getLong());
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+		}
+		if (buffer.remaining() >= 4) {
+			hash ^= (buffer.getInt() & 0xffffffffL) * PRIME1;
+			hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+		}
+		while (buffer.hasRemaining()) {
+			hash ^= (buffer.get() & 0xff) * PRIME5;
+			hash = Long.rotateLeft(hash, 11) * PRIME1;
+		}
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+		return hash;
+	}
+
+	private static long round(long accumulator, long input) {
+		return Long.rotateLeft(accumulator + input * PRIME2, 31) * PRIME1;
+	}
+
+	private static long mergeRound(long hash, long value) {
+		return (hash ^ round(0, value)) * PRIME1 + PRIME4;
+	}
+
+	/**
+	 * @param archive
+	 * @param entry
+	 * @return fingerprint of the entry, 0 if its archive is not indexed or the entry could not be read
+	 */
+	long getKey(BsaFile archive, int entry) {
+		long[] archiveFingerprints = fingerprints.get(archive);
+		return archiveFingerprints == null ? 0 : archiveFingerprints[entry];
+	}
+
+	/**
+	 * @param archive
+	 * @param entry
+	 * @return decompressed size of the entry as indexed, -1 if its archive is not indexed
+	 */
+	int getLoadedSize(BsaFile archive, int entry) {
+		int[] archiveLoadedSizes = loadedSizes.get(archive);
+		return archiveLoadedSizes == null ? -1 : archiveLoadedSizes[entry];
+	}
+
+	/**
+	 * @param archive
+	 * @param filename
+	 *            path of the entry inside the archive
+	 * @return fingerprint of the file, equal for files with the same contents, 0 if the archive is not indexed or does not hold the file
+	 */
+	public long getFingerprint(BsaFile archive, String filename) {
+		long[] archiveFingerprints = fingerprints.get(archive);
+		int entry = archiveFingerprints == null ? -1 : archive.getEntries().find(BsaHash.folderHashOfPath(filename), BsaHash.fileHashOfPath(filename));
+		return entry < 0 ? 0 : archiveFingerprints[entry];
+	}
+
+	/**
+	 * @return number of indexed archives
+	 */
+	public int getArchives() {
+		return fingerprints.size();
+	}
+
+	/**
+	 * @return number of indexed entries
+	 */
+	public long getEntries() {
+		return entries.sum();
+	}
+
+	/**
+	 * @return stored bytes of all indexed entries
+	 */
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * @return number of distinct contents among the indexed entries
+	 */
+	public long getUniqueFiles() {
+		return uniqueFiles.sum();
+	}
+
+	/**
+	 * @return entries whose contents another indexed entry holds as well
+	 */
+	public long getDuplicateEntries() {
+		return duplicateEntries.sum();
+	}
+
+	/**
+	 * @return stored bytes without embedded names of entries whose contents another indexed entry holds as well, which are decompressed and cached once
+	 *         instead of once per entry
+	 */
+	public long getDuplicateBytes() {
+		return duplicateBytes.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "Content index archives: " + getArchives() + ", entries: " + getEntries() + ", unique: " + getUniqueFiles() + ", duplicates: "
+				+ getDuplicateEntries() + ", duplicate bytes: " + getDuplicateBytes() + "/" + getBytes();
+	}
+
+	/**
+	 * Entries indexed under one fingerprint. Entries that differ from the first in size or decoding despite the fingerprint are left out of the index.
+	 */
+	private static final class Content {
+		final int payloadSize;
+		final int loadedSize;
+		final byte[] decoding;
+		int count;
+
+		Content(int payloadSize, int loadedSize, byte[] decoding) {
+			this.payloadSize = payloadSize;
+			this.loadedSize = loadedSize;
+			this.decoding = decoding;
+		}
+
+		boolean matches(int otherPayloadSize, int otherLoadedSize, byte[] otherDecoding) {
+			return payloadSize == otherPayloadSize && loadedSize == otherLoadedSize && Arrays.equals(decoding, otherDecoding);
+		}
+	}
+}
@@ -0,0 +1,401 @@
+package bsa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+
+/**
+ * Header of a DDS texture with the layout of its data. Data is stored slice by slice, one slice per array element and cube face, each holding its mip
+ * levels from the largest to the smallest. Block compressed formats, the legacy floating point formats and formats described by bit count are supported,
+ * as are the common DXGI formats of DX10 headers.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public final class BsaDdsHeader {
+	/**
+	 * Magic and header without the DX10 extension
+	 */
+	static final int SIZE = 4 + 124;
+	/**
+	 * Magic and header with the DX10 extension
+	 */
+	static final int DX10_SIZE = SIZE + 20;
+
+	private static final int MAGIC = 0x20534444; // "DDS "
+	private static final int DX10 = 0x30315844; // "DX10"
+	private static final int DDSD_MIPMAPCOUNT = 0x20000;
+	private static final int DDPF_FOURCC = 0x4;
+	private static final int DDSCAPS2_CUBEMAP = 0x200;
+	private static final int DDSCAPS2_VOLUME = 0x200000;
+	private static final int DDS_RESOURCE_MISC_TEXTURECUBE = 0x4;
+
+	private final int width;
+	private final int height;
+	private final int depth;
+	private final int mipCount;
+	private final int slices;
+	private final int fourCC;
+	private final int dxgiFormat;
+	private final int dataOffset;
+	/**
+	 * Bytes per 4x4 block, 0 for formats stored per pixel
+	 */
+	private final int blockBytes;
+	private final int bitsPerPixel;
+	/**
+	 * Offset of every mip level within a slice, one more for the size of a slice
+	 */
+	private final long[] levelOffsets;
+
+	private BsaDdsHeader(int width, int height, int depth, int mipCount, int slices, int fourCC, int dxgiFormat, int dataOffset, int blockBytes,
+			int bitsPerPixel) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.mipCount = mipCount;
+		this.slices = slices;
+		this.fourCC = fourCC;
+		this.dxgiFormat = dxgiFormat;
+		this.dataOffset = dataOffset;
+		this.blockBytes = blockBytes;
+		this.bitsPerPixel = bitsPerPixel;
+		levelOffsets = new long[mipCount + 1];
+		for (int level = 0; level < mipCount; level++) {
+			levelOffsets[level + 1] = levelOffsets[level] + levelSize(level);
+		}
+	}
+
+	/**
+	 * @param header
+	 *            first bytes of a DDS file
+	 * @return true if the header is followed by a DX10 header
+	 */
+	static boolean isDx10(byte[] header) {
+		ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		return header.length >= SIZE && (buffer.getInt(80) & DDPF_FOURCC) != 0 && buffer.getInt(84) == DX10;
+	}
+
+	/**
+	 * @param header
+	 *            first bytes of a DDS file from its position, {@link #DX10_SIZE} or the whole file if it is smaller
+	 * @param fileSize
+	 *            size of the whole file, for checking that it holds all levels
+	 * @return parsed header
+	 * @throws DataFormatException
+	 *             if the header is not a DDS header, its format is not supported or the file is too small for its levels
+	 */
+	static BsaDdsHeader parse(ByteBuffer header, long fileSize) throws DataFormatException {
+		ByteBuffer buffer = header.slice().order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.remaining() < SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != 124) {
+			throw new DataFormatException("Not a DDS file");
+		}
+		int flags = buffer.getInt(8);
+		int height = buffer.getInt(12);
+		int width = buffer.getInt(16);
+		int caps2 = buffer.getInt(112);
+		int depth = (caps2 & DDSCAPS2_VOLUME) != 0 ? Math.max(buffer.getInt(24), 1) : 1;
+		int mipCount = (flags & DDSD_MIPMAPCOUNT) != 0 ? Math.max(buffer.getInt(28), 1) : 1;
+		if (width <= 0 || height <= 0 || mipCount > 32) {
+			throw new DataFormatException("Invalid DDS size " + width + "x" + height + " with " + mipCount + " levels");
+		}
+		int pixelFlags = buffer.getInt(80);
+		int fourCC = (pixelFlags & DDPF_FOURCC) != 0 ? buffer.getInt(84) : 0;
+		int dxgiFormat = 0;
+		int dataOffset = SIZE;
+		int slices = 1;
+		if ((caps2 & DDSCAPS2_CUBEMAP) != 0) {
+			// One bit per face present, from 0x400 to 0x8000
+			slices = Math.max(Integer.bitCount(caps2 & 0xfc00), 1);
+		}
+		if (fourCC == DX10) {
+			if (buffer.remaining() < DX10_SIZE) {
+				throw new DataFormatException("Truncated DX10 header");
+			}
+			dxgiFormat = buffer.getInt(128);
+			int arraySize = Math.max(buffer.getInt(140), 1);
+			slices = arraySize * ((buffer.getInt(136) & DDS_RESOURCE_MISC_TEXTURECUBE) != 0 ? 6 : 1);
+			dataOffset = DX10_SIZE;
+		}
+		int blockBytes = fourCC == DX10 ? dxgiBlockBytes(dxgiFormat) : fourCCBlockBytes(fourCC);
+		int bitsPerPixel = 0;
+		if (blockBytes == 0) {
+			bitsPerPixel = fourCC == DX10 ? dxgiBitsPerPixel(dxgiFormat) : fourCC != 0 ? fourCCBitsPerPixel(fourCC) : buffer.getInt(88);
+			if (bitsPerPixel <= 0) {
+				throw new DataFormatException(
+						"Unsupported DDS format " + (fourCC == DX10 ? "DXGI " + dxgiFormat : fourCC != 0 ? "FourCC " + Integer.toHexString(fourCC) : "without bit count"));
+			}
+		}
+		BsaDdsHeader parsed = new BsaDdsHeader(width, height, depth, mipCount, slices, fourCC, dxgiFormat, dataOffset, blockBytes, bitsPerPixel);
+		long needed = dataOffset + parsed.getSliceSize() * slices;
+		if (needed > fileSize) {
+			throw new DataFormatException("DDS levels need " + needed + " bytes, file holds " + fileSize);
+		}
+		return parsed;
+	}
+
+	private static int fourCCBlockBytes(int fourCC) {
+		switch (fourCC) {
+		case 0x31545844: // DXT1
+		case 0x31495441: // ATI1
+		case 0x55344342: // BC4U
+		case 0x53344342: // BC4S
+			return 8;
+		case 0x32545844: // DXT2
+		case 0x33545844: // DXT3
+		case 0x34545844: // DXT4
+		case 0x35545844: // DXT5
+		case 0x32495441: // ATI2
+		case 0x55354342: // BC5U
+		case 0x53354342: // BC5S
+			return 16;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * D3DFORMAT values stored as FourCC
+	 */
+	private static int fourCCBitsPerPixel(int fourCC) {
+		switch (fourCC) {
+		case 111: // R16F
+			return 16;
+		case 112: // G16R16F
+		case 114: // R32F
+			return 32;
+		case 36: // A16B16G16R16
+		case 110: // Q16W16V16U16
+		case 113: // A16B16G16R16F
+		case 115: // G32R32F
+			return 64;
+		case 116: // A32B32G32R32F
+			return 128;
+		default:
+			return 0;
+		}
+	}
+
+	private static int dxgiBlockBytes(int format) {
+		if (format >= 70 && format <= 72 || format >= 79 && format <= 81) {
+			return 8; // BC1, BC4
+		}
+		if (format >= 73 && format <= 78 || format >= 82 && format <= 84 || format >= 94 && format <= 99) {
+			return 16; // BC2, BC3, BC5, BC6H, BC7
+		}
+		return 0;
+	}
+
+	private static int dxgiBitsPerPixel(int format) {
+		if (format >= 1 && format <= 4) {
+			return 128; // R32G32B32A32
+		}
+		if (format >= 5 && format <= 8) {
+			return 96; // R32G32B32
+		}
+		if (format >= 9 && format <= 22) {
+			return 64; // R16G16B16A16, R32G32
+		}
+		if (format >= 23 && format <= 47 || format >= 87 && format <= 93) {
+			return 32; // R10G10B10A2, R8G8B8A8, R16G16, R32, B8G8R8A8
+		}
+		if (format >= 48 && format <= 59 || format == 85 || format == 86 || format == 115) {
+			return 16; // R8G8, R16, B5G6R5, B5G5R5A1, B4G4R4A4
+		}
+		if (format >= 60 && format <= 65) {
+			return 8; // R8, A8
+		}
+		return 0;
+	}
+
+	private long levelSize(int level) {
+		long levelWidth = getLevelWidth(level);
+		long levelHeight = getLevelHeight(level);
+		long levelDepth = Math.max(depth >> level, 1);
+		if (blockBytes != 0) {
+			return ((levelWidth + 3) / 4) * ((levelHeight + 3) / 4) * blockBytes * levelDepth;
+		}
+		return (levelWidth * bitsPerPixel + 7) / 8 * levelHeight * levelDepth;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return depth of volume textures, 1 otherwise
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getMipCount() {
+		return mipCount;
+	}
+
+	/**
+	 * @return number of array elements times cube faces, 1 for plain textures
+	 */
+	public int getSlices() {
+		return slices;
+	}
+
+	/**
+	 * @return FourCC of the pixel format such as DXT5, 0 for formats described by bit count
+	 */
+	public int getFourCC() {
+		return fourCC;
+	}
+
+	/**
+	 * @return DXGI format of DX10 headers, 0 otherwise
+	 */
+	public int getDxgiFormat() {
+		return dxgiFormat;
+	}
+
+	/**
+	 * @return true for BC formats stored in 4x4 blocks
+	 */
+	public boolean isBlockCompressed() {
+		return blockBytes != 0;
+	}
+
+	/**
+	 * @return offset of the first level in the file, after the headers
+	 */
+	public int getDataOffset() {
+		return dataOffset;
+	}
+
+	public int getLevelWidth(int level) {
+		return Math.max(width >> level, 1);
+	}
+
+	public int getLevelHeight(int level) {
+		return Math.max(height >> level, 1);
+	}
+
+	/**
+	 * @param level
+	 * @return bytes of a level in one slice
+	 */
+	public long getLevelSize(int level) {
+		return levelOffsets[level + 1] - levelOffsets[level];
+	}
+
+	/**
+	 * @param slice
+	 * @param level
+	 * @return offset of a level of a slice in the file
+	 */
+	public long getLevelOffset(int slice, int level) {
+		return dataOffset + slice * getSliceSize() + levelOffsets[level];
+	}
+
+	/**
+	 * @return bytes of all levels of one slice
+	 */
+	public long getSliceSize() {
+		return levelOffsets[mipCount];
+	}
+
+	/**
+	 * @param firstLevel
+	 * @param levelCount
+	 * @return bytes of consecutive levels in one slice
+	 */
+	long getRangeSize(int firstLevel, int levelCount) {
+		return levelOffsets[firstLevel + levelCount] - levelOffsets[firstLevel];
+	}
+
+	/**
+	 * @param firstLevel
+	 * @param levelCount
+	 * @return levelCount limited to the levels from firstLevel on
+	 */
+	int clampLevels(int firstLevel, int levelCount) {
+		return Math.max(Math.min(levelCount, mipCount - firstLevel), 0);
+	}
+
+	/**
+	 * Copies levels of every slice out of part of the file
+	 *
+	 * @param source
+	 *            bytes of the file holding all requested levels
+	 * @param sourceStart
+	 *            offset in the file of the first byte of source
+	 * @param firstLevel
+	 * @param levelCount
+	 * @return the requested levels, levels past the smallest one are left out
+	 */
+	Mips copyMips(byte[] source, long sourceStart, int firstLevel, int levelCount) {
+		levelCount = clampLevels(firstLevel, levelCount);
+		int rangeSize = (int) getRangeSize(Math.min(firstLevel, mipCount), levelCount);
+		byte[] data = new byte[rangeSize * slices];
+		for (int slice = 0; slice < slices && rangeSize > 0; slice++) {
+			System.arraycopy(source, (int) (getLevelOffset(slice, firstLevel) - sourceStart), data, slice * rangeSize, rangeSize);
+		}
+		return new Mips(this, firstLevel, levelCount, data);
+	}
+
+	@Override
+	public String toString() {
+		return "DDS " + width + "x" + height + (depth > 1 ? "x" + depth : "") + ", levels: " + mipCount + ", slices: " + slices + ", format: "
+				+ (fourCC == DX10 ? "DXGI " + dxgiFormat : fourCC != 0 ? new String(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(fourCC).array())
+						: bitsPerPixel + " bpp");
+	}
+
+	/**
+	 * Mip levels loaded by {@link BsaFile#loadMips(String, int, int)}, the requested levels of every slice one after another
+	 */
+	public static final class Mips {
+		private final BsaDdsHeader header;
+		private final int firstLevel;
+		private final int levelCount;
+		private final byte[] data;
+
+		Mips(BsaDdsHeader header, int firstLevel, int levelCount, byte[] data) {
+			this.header = header;
+			this.firstLevel = firstLevel;
+			this.levelCount = levelCount;
+			this.data = data;
+		}
+
+		public BsaDdsHeader getHeader() {
+			return header;
+		}
+
+		public int getFirstLevel() {
+			return firstLevel;
+		}
+
+		public int getLevelCount() {
+			return levelCount;
+		}
+
+		/**
+		 * @return levels firstLevel to firstLevel + levelCount - 1 of slice 0, then of slice 1 and so on
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * @param slice
+		 * @param level
+		 *            one of the loaded levels
+		 * @return offset of a level in {@link #getData()}, its size is {@link BsaDdsHeader#getLevelSize(int)}
+		 */
+		public int getOffset(int slice, int level) {
+			if (level < firstLevel || level >= firstLevel + levelCount) {
+				throw new IndexOutOfBoundsException("Level " + level + " not loaded");
+			}
+			return (int) (slice * header.getRangeSize(firstLevel, levelCount) + header.levelOffsets[level] - header.levelOffsets[firstLevel]);
+		}
+	}
+}
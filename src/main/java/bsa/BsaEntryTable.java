@@ -0,0 +1,396 @@
+package bsa;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * File records of one archive kept as parallel primitive arrays. File names share one byte pool, entries are found through the folder and file hashes stored
+ * in the archive, so neither keeping nor looking up an entry needs an object or a String per entry.<br>
+ * Entries are stored folder by folder in archive order, entries of a folder are contiguous starting at {@link BsaFolderRecord#firstFile}.
+ *
+ * @author Yusaf Ali
+ *
+ */
+final class BsaEntryTable {
+	/**
+	 * Lower case of every ISO-8859-1 character, names in archives are single byte strings
+	 */
+	private static final byte[] LOWER = new byte[256];
+
+	static {
+		for (int i = 0; i < LOWER.length; i++) {
+			LOWER[i] = (byte) Character.toLowerCase((char) i);
+		}
+	}
+
+	private int count;
+	private final long[] offsets;
+	private final int[] sizes;
+	private final boolean[] compressed;
+	private final int[] folderIndexes;
+	private final int[] nameStarts;
+	private final int[] nameLengths;
+	private final long[] fileHashes;
+
+	private byte[] namePool = new byte[0];
+	private int namePoolSize;
+	private byte[][] folderNames = new byte[0][];
+	private long[] folderHashes = new long[0];
+	private int[] folderFirstFiles = new int[0];
+	private int[] folderFileCounts = new int[0];
+	private BsaHashIndex folderIndex = new BsaHashIndex(0);
+	private BsaHashIndex index = new BsaHashIndex(0);
+	private int listedCount;
+
+	BsaEntryTable(int capacity) {
+		offsets = new long[capacity];
+		sizes = new int[capacity];
+		compressed = new boolean[capacity];
+		folderIndexes = new int[capacity];
+		nameStarts = new int[capacity];
+		nameLengths = new int[capacity];
+		fileHashes = new long[capacity];
+	}
+
+	/**
+	 * Appends an entry without a name
+	 *
+	 * @return index of the entry
+	 */
+	int add(int folderIndex, long fileHash, long offset, int size, boolean isCompressed) {
+		int entry = count++;
+		folderIndexes[entry] = folderIndex;
+		fileHashes[entry] = fileHash;
+		offsets[entry] = offset;
+		sizes[entry] = size;
+		compressed[entry] = isCompressed;
+		nameLengths[entry] = -1;
+		return entry;
+	}
+
+	/**
+	 * Appends an entry read from a file record buffer positioned at the record, the buffer must be in little endian order
+	 *
+	 * @return index of the entry
+	 */
+	int add(int folderIndex, ByteBuffer recordBuffer, boolean defaultCompressed) {
+		long fileHash = recordBuffer.getLong();
+		int size = recordBuffer.getInt();
+		boolean isCompressed = defaultCompressed;
+		if ((size & (1 << 30)) != 0) {
+			isCompressed = !defaultCompressed;
+			size ^= (1 << 30);
+		}
+		return add(folderIndex, fileHash, Integer.toUnsignedLong(recordBuffer.getInt()), size, isCompressed);
+	}
+
+	/**
+	 * Uses the given bytes as name pool, names are then assigned as ranges of it with {@link #setName(int, int, int)}. The file name block of an archive can
+	 * be used as it is.
+	 */
+	void setNamePool(byte[] pool) {
+		namePool = pool;
+		namePoolSize = pool.length;
+	}
+
+	void setName(int entry, int start, int length) {
+		nameStarts[entry] = start;
+		nameLengths[entry] = length;
+	}
+
+	/**
+	 * Copies name to the end of the name pool
+	 */
+	void appendName(int entry, String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+		if (namePoolSize + bytes.length > namePool.length) {
+			byte[] grown = new byte[Math.max(namePool.length * 2, namePoolSize + bytes.length + 1024)];
+			System.arraycopy(namePool, 0, grown, 0, namePoolSize);
+			namePool = grown;
+		}
+		System.arraycopy(bytes, 0, namePool, namePoolSize, bytes.length);
+		setName(entry, namePoolSize, bytes.length);
+		namePoolSize += bytes.length;
+	}
+
+	/**
+	 * Indexes all entries by their stored hashes, has to be called once all entries and names are added. Entries are indexed whether or not the archive has
+	 * file names.
+	 *
+	 * @param folders
+	 *            folder records of the archive in the same order as folder indexes of entries
+	 */
+	void buildIndex(List<BsaFolderRecord> folders) {
+		folderNames = new byte[folders.size()][];
+		folderHashes = new long[folders.size()];
+		folderFirstFiles = new int[folders.size()];
+		folderFileCounts = new int[folders.size()];
+		folderIndex = new BsaHashIndex(folders.size());
+		for (int i = 0; i < folderNames.length; i++) {
+			BsaFolderRecord folder = folders.get(i);
+			byte[] folderName = folder.name == null ? new byte[0] : folder.name.getBytes(StandardCharsets.ISO_8859_1);
+			for (int j = 0; j < folderName.length; j++) {
+				folderName[j] = LOWER[folderName[j] & 0xff];
+			}
+			folderNames[i] = folderName;
+			folderHashes[i] = folder.hash;
+			folderFirstFiles[i] = folder.firstFile;
+			folderFileCounts[i] = folder.fileCount;
+			folderIndex.put(folder.hash, i);
+		}
+		index = new BsaHashIndex(count);
+		for (int entry = 0; entry < count; entry++) {
+			// Same hashes twice, the later record wins
+			index.put(key(entry), entry);
+		}
+		listedCount = 0;
+		for (int entry = 0; entry < count; entry++) {
+			if (isListed(entry)) {
+				listedCount++;
+			}
+		}
+	}
+
+	/**
+	 * Finds an entry by its path, case is ignored. Nothing is allocated.
+	 *
+	 * @param path
+	 *            folder and file name separated by a backslash
+	 * @return index of the entry or -1 if it is not in the table
+	 */
+	int find(CharSequence path) {
+		return find(BsaHash.folderHashOfPath(path), BsaHash.fileHashOfPath(path));
+	}
+
+	/**
+	 * @return index of the entry with given folder and file hash or -1 if it is not in the table
+	 */
+	int find(long folderHash, long fileHash) {
+		int entry = index.get(BsaHash.key(folderHash, fileHash));
+		if (entry < 0 || fileHashes[entry] != fileHash || folderHashes[folderIndexes[entry]] != folderHash) {
+			return -1;
+		}
+		return entry;
+	}
+
+	private long key(int entry) {
+		return BsaHash.key(folderHashes[folderIndexes[entry]], fileHashes[entry]);
+	}
+
+	/**
+	 * @return lower case byte at index of folder name, backslash and file name of an entry
+	 */
+	private byte pathByte(int entry, int index) {
+		byte[] folderName = folderNames[folderIndexes[entry]];
+		if (index < folderName.length) {
+			return folderName[index];
+		}
+		if (index == folderName.length) {
+			return '\\';
+		}
+		return LOWER[namePool[nameStarts[entry] + index - folderName.length - 1] & 0xff];
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return number of distinct hash pairs in the index
+	 */
+	int indexedSize() {
+		return index.size();
+	}
+
+	/**
+	 * @return true if entry is the one its hashes resolve to, false for entries overridden by a later record with the same hashes
+	 */
+	boolean isIndexed(int entry) {
+		return index.get(key(entry)) == entry;
+	}
+
+	/**
+	 * @return true if entry has a name and is the one its hashes resolve to
+	 */
+	boolean isListed(int entry) {
+		return nameLengths[entry] >= 0 && isIndexed(entry);
+	}
+
+	/**
+	 * @return number of listed entries
+	 */
+	int listedSize() {
+		return listedCount;
+	}
+
+	long getFileHash(int entry) {
+		return fileHashes[entry];
+	}
+
+	long getFolderHash(int entry) {
+		return folderHashes[folderIndexes[entry]];
+	}
+
+	long getOffset(int entry) {
+		return offsets[entry];
+	}
+
+	int getSize(int entry) {
+		return sizes[entry];
+	}
+
+	boolean isCompressed(int entry) {
+		return compressed[entry];
+	}
+
+	int getFolderIndex(int entry) {
+		return folderIndexes[entry];
+	}
+
+	boolean hasName(int entry) {
+		return nameLengths[entry] >= 0;
+	}
+
+	/**
+	 * @return length of folder name, backslash and file name
+	 */
+	int getPathLength(int entry) {
+		return folderNames[folderIndexes[entry]].length + 1 + nameLengths[entry];
+	}
+
+	/**
+	 * @return file name as stored in the archive, null if the archive has no file names
+	 */
+	String getName(int entry) {
+		if (nameLengths[entry] < 0) {
+			return null;
+		}
+		return new String(namePool, nameStarts[entry], nameLengths[entry], StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return lower case file name, null if the archive has no file names
+	 */
+	String getLowerName(int entry) {
+		if (nameLengths[entry] < 0) {
+			return null;
+		}
+		byte[] name = new byte[nameLengths[entry]];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = LOWER[namePool[nameStarts[entry] + i] & 0xff];
+		}
+		return new String(name, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return number of folders entries refer to by {@link #getFolderIndex(int)}
+	 */
+	int getFolderCount() {
+		return folderNames.length;
+	}
+
+	/**
+	 * @return index of the folder with given hash, -1 if the archive has no such folder
+	 */
+	int findFolder(long folderHash) {
+		return folderIndex.get(folderHash);
+	}
+
+	/**
+	 * @return first entry of a folder, its entries are contiguous
+	 */
+	int getFolderFirstFile(int folderIndex) {
+		return folderFirstFiles[folderIndex];
+	}
+
+	int getFolderFileCount(int folderIndex) {
+		return folderFileCounts[folderIndex];
+	}
+
+	/**
+	 * @return lower case name of a folder, empty for files at the root of the archive
+	 */
+	String getFolderName(int folderIndex) {
+		return new String(folderNames[folderIndex], StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return lower case folder and file name separated by a backslash, null if the archive has no file names
+	 */
+	String getPath(int entry) {
+		if (nameLengths[entry] < 0) {
+			return null;
+		}
+		int length = getPathLength(entry);
+		byte[] path = new byte[length];
+		for (int i = 0; i < length; i++) {
+			path[i] = pathByte(entry, i);
+		}
+		return new String(path, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Creates a record object of an entry, for callers that still work with records. Records hold offsets as unsigned 32 bit values like .bsa archives do.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the entry lies beyond 4 GB into a .ba2 archive, read it through {@link BsaFile} instead
+	 */
+	BsaFileRecord toRecord(int entry) {
+		if (offsets[entry] >>> 32 != 0) {
+			throw new IllegalStateException("Offset " + offsets[entry] + " of " + getPath(entry) + " does not fit in a file record");
+		}
+		BsaFileRecord fr = new BsaFileRecord();
+		fr.hash = fileHashes[entry];
+		fr.name = getName(entry);
+		fr.nameLength = Math.max(nameLengths[entry], 0);
+		fr.nameWithPath = getPath(entry);
+		fr.offset = (int) offsets[entry]; // unsigned
+		fr.size = sizes[entry];
+		fr.compressed = compressed[entry];
+		return fr;
+	}
+
+	/**
+	 * Writes the arrays of the table, read back with {@link #read(ByteBuffer, List)}
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(count);
+		for (int entry = 0; entry < count; entry++) {
+			out.writeLong(fileHashes[entry]);
+			// Cached archives are .bsa archives, whose offsets fit in 32 bits
+			out.writeInt((int) offsets[entry]);
+			out.writeInt(sizes[entry]);
+			out.writeInt(folderIndexes[entry]);
+			out.writeInt(nameStarts[entry]);
+			out.writeInt(nameLengths[entry]);
+			out.writeByte(compressed[entry] ? 1 : 0);
+		}
+		out.writeInt(namePoolSize);
+		out.write(namePool, 0, namePoolSize);
+	}
+
+	/**
+	 * Reads a table written by {@link #write(DataOutputStream)} and rebuilds its index
+	 */
+	static BsaEntryTable read(ByteBuffer buffer, List<BsaFolderRecord> folders) {
+		int count = buffer.getInt();
+		BsaEntryTable table = new BsaEntryTable(count);
+		for (int entry = 0; entry < count; entry++) {
+			table.add(0, buffer.getLong(), 0, 0, false);
+			table.offsets[entry] = Integer.toUnsignedLong(buffer.getInt());
+			table.sizes[entry] = buffer.getInt();
+			table.folderIndexes[entry] = buffer.getInt();
+			table.nameStarts[entry] = buffer.getInt();
+			table.nameLengths[entry] = buffer.getInt();
+			table.compressed[entry] = buffer.get() != 0;
+		}
+		byte[] pool = new byte[buffer.getInt()];
+		buffer.get(pool);
+		table.setNamePool(pool);
+		table.buildIndex(folders);
+		return table;
+	}
+}
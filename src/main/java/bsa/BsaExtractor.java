@@ -0,0 +1,219 @@
+package bsa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+
+import me.yusaf.Logger;
+
+/**
+ * Extracts many files at once. Archives are read one after another, each front to back in order of entry offsets, with neighbouring entries read in chunks
+ * of a few megabytes. Chunks are decompressed and written on an executor while the next ones are read, the number of chunks held in memory is bounded.
+ *
+ * @author Yusaf Ali
+ *
+ */
+final class BsaExtractor {
+	private static final Logger logger = Logger.getInstance(BsaExtractor.class);
+
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	/**
+	 * Gaps up to this size between entries are read along instead of starting a new chunk
+	 */
+	private static final int MAX_GAP = 64 * 1024;
+
+	private final Path outputDirectory;
+	private final Executor executor;
+	private final Semaphore inFlight;
+	private final Map<BsaFile, List<Target>> targets = new LinkedHashMap<>();
+	private final List<LooseTarget> looseTargets = new ArrayList<>();
+	private final AtomicInteger written = new AtomicInteger();
+
+	/**
+	 * @param outputDirectory
+	 *            files are written under it by their path inside the archive
+	 * @param executor
+	 *            decompresses and writes chunks
+	 * @param maxChunks
+	 *            number of chunks read ahead of the executor at most
+	 */
+	BsaExtractor(File outputDirectory, Executor executor, int maxChunks) {
+		this.outputDirectory = outputDirectory.toPath().toAbsolutePath().normalize();
+		this.executor = executor;
+		this.inFlight = new Semaphore(maxChunks);
+	}
+
+	/**
+	 * Adds an entry to extract
+	 *
+	 * @param archive
+	 * @param entry
+	 *            index in the entry table of archive
+	 * @param path
+	 *            path the file is written to relative to the output directory
+	 */
+	void add(BsaFile archive, int entry, String path) {
+		BsaEntryTable entries = archive.getEntries();
+		targets.computeIfAbsent(archive, a -> new ArrayList<>())
+				.add(new Target(entry, entries.getOffset(entry), entries.getSize(entry), path));
+	}
+
+	/**
+	 * Adds a loose file overriding an archived one to copy
+	 *
+	 * @param file
+	 * @param path
+	 *            path the file is written to relative to the output directory
+	 * @param archive
+	 *            archive the file is extracted from instead if the loose file is gone, null if no archive holds it
+	 * @param entry
+	 *            index in the entry table of archive
+	 */
+	void addLoose(Path file, String path, BsaFile archive, int entry) {
+		looseTargets.add(new LooseTarget(file, path, archive, entry));
+	}
+
+	/**
+	 * Extracts all added entries. Files that fail to decompress or write are reported and skipped.
+	 *
+	 * @return number of files written
+	 * @throws IOException
+	 *             if reading an archive fails
+	 */
+	int run() throws IOException {
+		Files.createDirectories(outputDirectory);
+		for (LooseTarget target : looseTargets) {
+			try {
+				write(target.path, ByteBuffer.wrap(Files.readAllBytes(target.file)));
+			} catch (NoSuchFileException e) {
+				// Deleted before the watch service reported it, the archived file is extracted instead
+				if (target.archive != null) {
+					add(target.archive, target.entry, target.path);
+				}
+			} catch (IOException e) {
+				logger.exception("Failed to copy loose file " + target.file);
+				logger.exception(e);
+			}
+		}
+		List<CompletableFuture<Void>> pending = new ArrayList<>();
+		try {
+			for (Map.Entry<BsaFile, List<Target>> archiveTargets : targets.entrySet()) {
+				BsaFile archive = archiveTargets.getKey();
+				List<Target> sorted = archiveTargets.getValue();
+				sorted.sort(Comparator.comparingLong(t -> t.offset));
+				int i = 0;
+				while (i < sorted.size()) {
+					long start = sorted.get(i).offset;
+					long end = start + sorted.get(i).size;
+					int j = i + 1;
+					while (j < sorted.size() && sorted.get(j).offset - end <= MAX_GAP && Math.max(end, sorted.get(j).end()) - start <= CHUNK_SIZE) {
+						end = Math.max(end, sorted.get(j).end());
+						j++;
+					}
+					try {
+						inFlight.acquire();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while extracting " + archive.getName());
+					}
+					byte[] chunk = new byte[(int) (end - start)];
+					try {
+						archive.readFully(ByteBuffer.wrap(chunk), start);
+					} catch (IOException e) {
+						inFlight.release();
+						throw e;
+					}
+					List<Target> part = sorted.subList(i, j);
+					pending.add(CompletableFuture.runAsync(() -> {
+						try {
+							for (Target target : part) {
+								write(archive, target, chunk, (int) (target.offset - start));
+							}
+						} finally {
+							inFlight.release();
+						}
+					}, executor));
+					i = j;
+				}
+			}
+		} finally {
+			CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+		}
+		return written.get();
+	}
+
+	private void write(BsaFile archive, Target target, byte[] chunk, int offset) {
+		try {
+			write(target.path, archive.decodeStored(target.entry, chunk, offset));
+		} catch (IOException | DataFormatException | RuntimeException e) {
+			logger.exception("Failed to extract " + target.path + " from " + archive.getName());
+			logger.exception(e);
+		}
+	}
+
+	/**
+	 * Writes a file below the output directory
+	 */
+	private void write(String path, ByteBuffer file) throws IOException {
+		// Files at the root of an archive have an empty folder in front of their separator
+		Path out = outputDirectory.resolve(path.replace('\\', '/').replaceFirst("^/+", "")).normalize();
+		if (!out.startsWith(outputDirectory)) {
+			throw new IOException("Path leaves the output directory: " + path);
+		}
+		Files.createDirectories(out.getParent());
+		try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (file.hasRemaining()) {
+				channel.write(file);
+			}
+		}
+		written.incrementAndGet();
+	}
+
+	private static final class LooseTarget {
+		final Path file;
+		final String path;
+		final BsaFile archive;
+		final int entry;
+
+		LooseTarget(Path file, String path, BsaFile archive, int entry) {
+			this.file = file;
+			this.path = path;
+			this.archive = archive;
+			this.entry = entry;
+		}
+	}
+
+	private static final class Target {
+		final int entry;
+		final long offset;
+		final int size;
+		final String path;
+
+		Target(int entry, long offset, int size, String path) {
+			this.entry = entry;
+			this.offset = offset;
+			this.size = size;
+			this.path = path;
+		}
+
+		long end() {
+			return offset + size;
+		}
+	}
+}
@@ -1,46 +1,80 @@
 package bsa;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
-import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
-
-import init.Settings;
 import me.yusaf.Logger;
 
 /**
- * Reads .bsa archives. Can load inner file from provided archive against a correct path. allFilenames public list is available for easier access to filenames
+ * Reads .bsa archives. Can load inner file from provided archive against a correct path. allFilenames public list is available for easier access to filenames.
+ * The archive keeps one channel open for all loads, close it once the archive is no longer needed.
  * 
  * @author Yusaf Ali
  *
  */
-public class BsaFile {
+public class BsaFile implements AutoCloseable {
+	private static final int HEADER_SIZE = 4 * 9;
+
 	private List<BsaFolderRecord> folders = new ArrayList<>();
-	private Map<String, BsaFileRecord> files = new LinkedHashMap<>();
+	private BsaEntryTable entries = new BsaEntryTable(0);
 	public static Logger logger = Logger.getInstance(BsaFile.class);
 
 	/**
 	 * Key should be the file path and value should be bsa archive name
+	 * 
+	 * @deprecated never filled and not safe to share between threads, resolve files through {@link BsaVirtualFileSystem} instead
 	 */
+	@Deprecated
 	public static Map<String, BsaFile> lookupMap = new LinkedHashMap<>();
 
+	/**
+	 * Emits {@link Logger#extra(String)} messages of parsing and loading. Off by default, so building them costs nothing on the load path.
+	 */
+	public static volatile boolean extraLogging;
+
+	private static volatile BsaMetrics metrics;
+
 	private File location;
 	private String bsaName;
 	private int archiveFlags;
 	private int version;
+	private long archiveSize;
+	private long lastModified;
+	private volatile FileChannel channel;
+	private volatile boolean closed;
+	private volatile MappedByteBuffer mappedArchive;
+	private volatile BsaFolderTree folderTree;
 
 	/**
 	 * Automatically reads header of provided file of .bsa extension
@@ -50,13 +84,196 @@ public class BsaFile {
 	 * @throws IOException
 	 */
 	public BsaFile(File location) throws IOException {
+		this(location, true);
+	}
+
+	/**
+	 * Reads header of provided file of .bsa extension using the requested parsing mode
+	 * 
+	 * @param location
+	 *            provided location
+	 * @param mapped
+	 *            true to map the header, folder record, file record and file name blocks and decode them in a single forward pass, false to seek and read
+	 *            every record separately
+	 * @throws IOException
+	 */
+	public BsaFile(File location, boolean mapped) throws IOException {
+		this.setName(location.toString());
+		this.location = location;
+		this.archiveSize = location.length();
+		this.lastModified = location.lastModified();
+		BsaMetrics m = metrics;
+		long start = m == null ? 0 : System.nanoTime();
+		try {
+			if (mapped) {
+				readMappedHeader();
+			} else {
+				readHeader();
+			}
+		} catch (IOException | RuntimeException e) {
+			if (m != null) {
+				m.error(bsaName, BsaMetrics.Stage.OPEN, BsaMetrics.Codec.NONE);
+			}
+			throw e;
+		}
+		if (m != null) {
+			m.record(bsaName, BsaMetrics.Stage.OPEN, BsaMetrics.Codec.NONE, System.nanoTime() - start, 0);
+		}
+	}
+
+	/**
+	 * Restores an archive from previously parsed records, nothing is read from the archive itself
+	 * 
+	 * @param location
+	 *            provided location
+	 * @param archiveSize
+	 *            size of the archive when records were parsed
+	 * @param lastModified
+	 *            modification time of the archive when records were parsed
+	 * @param version
+	 * @param archiveFlags
+	 * @param folders
+	 * @param entries
+	 *            file records of all folders
+	 */
+	BsaFile(File location, long archiveSize, long lastModified, int version, int archiveFlags, List<BsaFolderRecord> folders, BsaEntryTable entries) {
 		this.setName(location.toString());
 		this.location = location;
+		this.archiveSize = archiveSize;
+		this.lastModified = lastModified;
+		this.version = version;
+		this.archiveFlags = archiveFlags;
+		this.folders = folders;
+		this.entries = entries;
+	}
+
+	/**
+	 * Replaces folder records and entries, for subclasses reading other archive formats into the same structures
+	 * 
+	 * @param folders
+	 * @param entries
+	 *            indexed file records of all folders
+	 */
+	void setRecords(List<BsaFolderRecord> folders, BsaEntryTable entries) {
+		this.folders = folders;
+		this.entries = entries;
+	}
+
+	/**
+	 * Opens an archive by its extension, .ba2 archives as {@link Ba2File} and everything else as .bsa archive
+	 * 
+	 * @param location
+	 * @return parsed archive
+	 * @throws IOException
+	 */
+	public static BsaFile open(File location) throws IOException {
+		if (location.getName().toLowerCase().endsWith(".ba2")) {
+			return new Ba2File(location);
+		}
+		return new BsaFile(location);
+	}
+
+	/**
+	 * Maps all header blocks at once, no seek or read is issued per record. Folder records are 16 bytes for version 104 and 24 bytes for version 105.
+	 * 
+	 * @throws IOException
+	 */
+	private void readMappedHeader() throws IOException {
+		FileChannel channel = channel();
+		boolean parsed = false;
+		try {
+			long fileSize = channel.size();
+			logger.log("Total file size = " + fileSize, 1);
+			ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(headerBuffer, 0);
+			headerBuffer.flip();
 
+			int fileId = headerBuffer.getInt();
+			if (fileId != 0x415342) {
+				throw new IOException("Supporting only BSA files");
+			}
+			version = headerBuffer.getInt();
+			int folderOffset = headerBuffer.getInt();
+			archiveFlags = headerBuffer.getInt();
+			int folderCount = headerBuffer.getInt();
+			int fileCount = headerBuffer.getInt();
+			int totalFolderNameLength = headerBuffer.getInt();
+			int totalFileNameLength = headerBuffer.getInt();
+			int fileFlags = headerBuffer.getInt();
+			if (extraLogging) {
+				logger.extra("Version: " + version + ", ArchiveFlags: " + archiveFlags + ", FolderCount: " + folderCount + ", FileCount: " + fileCount
+						+ ", FileCollectionType: " + FileFlagType.get(fileFlags));
+			}
+			boolean defaultCompressed = (archiveFlags & 0x4) != 0;
+			boolean fileNames = (archiveFlags & 0x2) == 0x2;
+
+			int folderRecordSize = version == 105 ? 24 : 16;
+			// Folder names are prefixed by a length byte which is not counted in totalFolderNameLength
+			long blocksSize = (long) folderCount * folderRecordSize + totalFolderNameLength + folderCount + (long) fileCount * 16
+					+ (fileNames ? totalFileNameLength : 0);
+			if (folderOffset + blocksSize > fileSize || blocksSize > Integer.MAX_VALUE) {
+				throw new IOException("Header blocks exceed file size of " + bsaName);
+			}
+			MappedByteBuffer blocks = channel.map(MapMode.READ_ONLY, folderOffset, blocksSize);
+			blocks.order(ByteOrder.LITTLE_ENDIAN);
+
+			for (int i = 0; i < folderCount; i++) {
+				folders.add(new BsaFolderRecord(blocks, version));
+			}
+
+			BsaEntryTable table = new BsaEntryTable(fileCount);
+			byte[] nameBytes = new byte[256];
+			for (int i = 0; i < folderCount; i++) {
+				BsaFolderRecord folder = folders.get(i);
+				int nameLength = Byte.toUnsignedInt(blocks.get());
+				folder.nameLength = nameLength;
+				blocks.get(nameBytes, 0, nameLength);
+				// Length includes the null character
+				folder.name = new String(nameBytes, 0, nameLength > 0 && nameBytes[nameLength - 1] == 0 ? nameLength - 1 : nameLength,
+						StandardCharsets.ISO_8859_1);
+				folder.firstFile = table.size();
+				for (int j = 0; j < folder.fileCount; j++) {
+					table.add(i, blocks, defaultCompressed);
+				}
+			}
+
+			// Following bit is necessary for Bethesda games to successfully read from archive
+			if (fileNames) {
+				// The file name block is kept as name pool of the table
+				byte[] fileNameBlock = new byte[totalFileNameLength];
+				blocks.get(fileNameBlock);
+				table.setNamePool(fileNameBlock);
+				int start = 0;
+				for (int entry = 0; entry < table.size(); entry++) {
+					int end = start;
+					while (end < totalFileNameLength && fileNameBlock[end] != 0) {
+						end++;
+					}
+					table.setName(entry, start, end - start);
+					// Accounting for null character
+					start = end + 1;
+				}
+			}
+			table.buildIndex(folders);
+			entries = table;
+			parsed = true;
+		} finally {
+			if (!parsed) {
+				close();
+			}
+		}
+	}
+
+	/**
+	 * Reads header by seeking and reading each record separately
+	 * 
+	 * @throws IOException
+	 */
+	private void readHeader() throws IOException {
 		int totalBytesRead = 0;
 		RandomAccessFile accessFile = new RandomAccessFile(location, "r");
-		byte[] headerBytes = new byte[4 * 9];
-		ByteBuffer headerBuffer = ByteBuffer.allocate(4 * 9);
+		byte[] headerBytes = new byte[HEADER_SIZE];
+		ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
 		accessFile.read(headerBytes);
 		headerBuffer.put(headerBytes);
 		headerBuffer.flip();
@@ -104,24 +321,30 @@ public class BsaFile {
 			}
 
 			logger.extra("Processing Folder Record Blocks");
-			byte[] folderList = new byte[folderCount * 24];
+			// Version 104 folder records have no padding and a 4 byte offset
+			int folderRecordSize = version == 105 ? 24 : 16;
+			byte[] folderList = new byte[folderCount * folderRecordSize];
 			accessFile.seek(totalBytesRead);
-			accessFile.read(folderList, 0, folderCount * 24);
+			accessFile.read(folderList, 0, folderCount * folderRecordSize);
 			ByteBuffer folderAllRecordBuffer = ByteBuffer.wrap(folderList).order(ByteOrder.LITTLE_ENDIAN);
 			for (int i = 0; i < folderCount; i++) {
-				BsaFolderRecord folder = new BsaFolderRecord(folderAllRecordBuffer);
-				logger.extra("Folder " + i +
-						" fileCount: " + Integer.toUnsignedString(folder.fileCount) +
-						", padding: " + Integer.toUnsignedString(folder.padding) +
-						", offset: " + Long.toUnsignedString(folder.offset)
-						+ " [" + totalBytesRead + "]");
-				totalBytesRead += 24;
+				BsaFolderRecord folder = new BsaFolderRecord(folderAllRecordBuffer, version);
+				if (extraLogging) {
+					logger.extra("Folder " + i +
+							" fileCount: " + Integer.toUnsignedString(folder.fileCount) +
+							", padding: " + Integer.toUnsignedString(folder.padding) +
+							", offset: " + Long.toUnsignedString(folder.offset)
+							+ " [" + totalBytesRead + "]");
+				}
+				totalBytesRead += folderRecordSize;
 				folders.add(folder);
 			}
 
 			logger.extra("Processing File Record Blocks");
+			BsaEntryTable table = new BsaEntryTable(fileCount);
 			for (int i = 0; i < folderCount; i++) {
 				BsaFolderRecord folder = folders.get(i);
+				folder.firstFile = table.size();
 				// Folder names are prepended with their length
 				byte[] foldernameLengthByte = new byte[1];
 				accessFile.seek(totalBytesRead);
@@ -134,17 +357,21 @@ public class BsaFile {
 				ByteBuffer foldernameBuffer = ByteBuffer.wrap(foldernameBytes).order(ByteOrder.LITTLE_ENDIAN);
 				folder.name = readBString(foldernameBuffer);
 				totalBytesRead += folder.nameLength;
-				logger.extra("Currently processing FileRecords for " + folder.name + " [" + totalBytesRead + "]");
+				if (extraLogging) {
+					logger.extra("Currently processing FileRecords for " + folder.name + " [" + totalBytesRead + "]");
+				}
 
 				for (int j = 0; j < folder.fileCount; j++) {
 					BsaFileRecord fr = new BsaFileRecord(accessFile, totalBytesRead, defaultCompressed);
-					logger.extra("File (" + i + ", " + j + ")" +
-							" size: " + Integer.toUnsignedString(fr.size) +
-							", compressed: " + fr.compressed +
-							", offset: " + Long.toUnsignedString(fr.offset)
-							+ " [" + totalBytesRead + "]");
+					if (extraLogging) {
+						logger.extra("File (" + i + ", " + j + ")" +
+								" size: " + Integer.toUnsignedString(fr.size) +
+								", compressed: " + fr.compressed +
+								", offset: " + Long.toUnsignedString(fr.offset)
+								+ " [" + totalBytesRead + "]");
+					}
 					totalBytesRead += 16;
-					folder.files.add(fr);
+					table.add(i, fr.hash, Integer.toUnsignedLong(fr.offset), fr.size, fr.compressed);
 				}
 			}
 
@@ -154,26 +381,19 @@ public class BsaFile {
 				for (int i = 0; i < folderCount; i++) {
 					BsaFolderRecord fold = folders.get(i);
 					for (int j = 0; j < fold.fileCount; j++) {
-						BsaFileRecord fr = fold.files.get(j);
-						// Filenames are prepended by their length
-						logger.extra("File Name Block # (" + i + ", " + j + "): name length = " + fr.nameLength);
 						accessFile.seek(totalBytesRead);
 						String str = readBString(accessFile);
 						totalBytesRead += str.length() + 1; // Accounting for null character
-						logger.extra("String found = " + str);
-						fr.nameLength = str.length();
-						// Actual filename
-						fr.name = str;
-						// Name of the file with the path and backslash is important for loading
-						String nameWithPath = (fold.name + "\\" + fr.name).toLowerCase();
-						fr.nameWithPath = nameWithPath;
-						BsaManager.saveBsaFileRecord(nameWithPath, this);
-						logger.extra("Name: " + bsaName);
-						logger.extra("NameWithPath: " + nameWithPath);
-						files.put(nameWithPath, fr);
+						if (extraLogging) {
+							logger.extra("File Name Block # (" + i + ", " + j + ") = " + str);
+						}
+						// Actual filename, loaded by its name with the path and backslash
+						table.appendName(fold.firstFile + j, str);
 					}
 				}
 			}
+			table.buildIndex(folders);
+			entries = table;
 		} finally {
 			accessFile.close();
 		}
@@ -204,82 +424,659 @@ public class BsaFile {
 		return sb.toString();
 	}
 
-	private byte[] load(int off, int len, String fullname, boolean compressed) throws IOException, DataFormatException {
-		byte[] totalFileBytes = null;
-		byte[] filenameBytes = new byte[fullname.length() + 1];
-		RandomAccessFile raf = new RandomAccessFile(location, "r");
+	byte[] load(int entry) throws IOException, DataFormatException {
+		ByteBuffer prefixBuffer = readPrefix(entry);
+		int prefixLength = prefixLength(prefixBuffer, entry);
+		byte[] totalFileBytes = new byte[loadedSize(entry, prefixBuffer, prefixLength)];
+		decode(entry, prefixBuffer, prefixLength, ByteBuffer.wrap(totalFileBytes));
+		return totalFileBytes;
+	}
+
+	/**
+	 * Finds an entry by its path, timed as a lookup when metrics are set. Paths not in the archive count as lookup errors.
+	 * 
+	 * @param filename
+	 * @return index of the entry, -1 if it is not in the archive
+	 */
+	private int find(String filename) {
+		BsaMetrics m = metrics;
+		if (m == null) {
+			return entries.find(filename);
+		}
+		long start = System.nanoTime();
+		int entry = entries.find(filename);
+		if (entry < 0) {
+			m.error(bsaName, BsaMetrics.Stage.LOOKUP, BsaMetrics.Codec.NONE);
+		} else {
+			m.record(bsaName, BsaMetrics.Stage.LOOKUP, BsaMetrics.Codec.NONE, System.nanoTime() - start, 0);
+		}
+		return entry;
+	}
+
+	/**
+	 * @return how an entry is stored
+	 */
+	private BsaMetrics.Codec codec(int entry) {
+		if (!entries.isCompressed(entry)) {
+			return BsaMetrics.Codec.NONE;
+		}
+		return version == 105 ? BsaMetrics.Codec.LZ4 : BsaMetrics.Codec.ZLIB;
+	}
+
+	/**
+	 * Decodes an entry into destination, starting at its position. Compressed data is read into a per thread buffer and inflated with a per thread Inflater,
+	 * uncompressed data is read straight into destination, so nothing is allocated once the thread has loaded an entry of similar size.
+	 * 
+	 * @param filename
+	 *            path of the entry inside the archive
+	 * @param destination
+	 *            heap or direct buffer with at least {@link #getLoadedSize(String)} bytes remaining, its position is advanced past the file
+	 * @return number of bytes written, -1 if the file is not in archive
+	 * @throws IOException
+	 * @throws DataFormatException
+	 * @throws IllegalArgumentException
+	 *             if destination has not enough room for the file
+	 */
+	public int load(String filename, ByteBuffer destination) throws IOException, DataFormatException {
+		int entry = find(filename);
+		if (entry < 0) {
+			logger.exception("File not in archive " + filename);
+			return -1;
+		}
+		return load(entry, destination);
+	}
+
+	int load(int entry, ByteBuffer destination) throws IOException, DataFormatException {
+		ByteBuffer prefixBuffer = readPrefix(entry);
+		return decode(entry, prefixBuffer, prefixLength(prefixBuffer, entry), destination);
+	}
+
+	/**
+	 * Decodes an entry into a direct buffer taken from pool, ready to be passed to native code such as glCompressedTexImage2D without copying it to the heap
+	 * first.
+	 * 
+	 * @param filename
+	 *            path of the entry inside the archive
+	 * @param pool
+	 *            pool the buffer is taken from, give it back with {@link BsaBufferPool#release(ByteBuffer)}
+	 * @return buffer holding the file between position 0 and its limit, null if the file is not in archive
+	 * @throws IOException
+	 * @throws DataFormatException
+	 */
+	public ByteBuffer load(String filename, BsaBufferPool pool) throws IOException, DataFormatException {
+		int entry = find(filename);
+		if (entry < 0) {
+			logger.exception("File not in archive " + filename);
+			return null;
+		}
+		return load(entry, pool);
+	}
+
+	ByteBuffer load(int entry, BsaBufferPool pool) throws IOException, DataFormatException {
+		ByteBuffer prefixBuffer = readPrefix(entry);
+		int prefixLength = prefixLength(prefixBuffer, entry);
+		ByteBuffer buffer = pool.acquire(loadedSize(entry, prefixBuffer, prefixLength));
 		try {
-			// Seek to file location and read file name
-			raf.seek(off);
-			raf.read(filenameBytes, 0, fullname.length() + 1);
-			boolean namePrefix = true;
-			if ((filenameBytes[0] & 0xff) == fullname.length()) {
-				for (int i = 0; i < fullname.length(); i++) {
-					if ((filenameBytes[i + 1] & 0xff) != fullname.charAt(i)) {
-						namePrefix = false;
-						break;
+			decode(entry, prefixBuffer, prefixLength, buffer);
+		} catch (IOException | DataFormatException | RuntimeException e) {
+			pool.release(buffer);
+			throw e;
+		}
+		return buffer.flip();
+	}
+
+	/**
+	 * Loads some mip levels of a DDS texture, such as the small levels of distant objects. Uncompressed entries read just the requested ranges. Compressed
+	 * entries are decompressed as a stream that ends with the last requested level, levels before the first one are decoded without being kept. Levels are
+	 * stored from the largest down, so leading levels come cheapest from compressed entries.
+	 * 
+	 * @param filename
+	 *            path of a .dds entry inside the archive
+	 * @param firstLevel
+	 *            0 for the full size level
+	 * @param levelCount
+	 *            number of levels from firstLevel, levels past the smallest one are left out, 0 to read only the header
+	 * @return header and the requested levels of every slice, null if the file is not in archive
+	 * @throws IOException
+	 * @throws DataFormatException
+	 *             if the entry is not a supported DDS texture
+	 */
+	public BsaDdsHeader.Mips loadMips(String filename, int firstLevel, int levelCount) throws IOException, DataFormatException {
+		int entry = find(filename);
+		if (entry < 0) {
+			logger.exception("File not in archive " + filename);
+			return null;
+		}
+		return loadMips(entry, firstLevel, levelCount);
+	}
+
+	BsaDdsHeader.Mips loadMips(int entry, int firstLevel, int levelCount) throws IOException, DataFormatException {
+		if (firstLevel < 0 || levelCount < 0) {
+			throw new IllegalArgumentException("Invalid level range " + firstLevel + " + " + levelCount);
+		}
+		ByteBuffer prefixBuffer = readPrefix(entry);
+		int prefixLength = prefixLength(prefixBuffer, entry);
+		int loadedSize = loadedSize(entry, prefixBuffer, prefixLength);
+		if (!entries.isCompressed(entry)) {
+			long dataOffset = entries.getOffset(entry) + prefixLength;
+			ByteBuffer headerBytes = ByteBuffer.allocate(Math.min(loadedSize, BsaDdsHeader.DX10_SIZE));
+			readFully(headerBytes, dataOffset, BsaMetrics.Codec.NONE);
+			BsaDdsHeader header = BsaDdsHeader.parse(headerBytes.flip(), loadedSize);
+			levelCount = header.clampLevels(firstLevel, levelCount);
+			int rangeSize = (int) header.getRangeSize(Math.min(firstLevel, header.getMipCount()), levelCount);
+			byte[] data = new byte[rangeSize * header.getSlices()];
+			for (int slice = 0; slice < header.getSlices() && rangeSize > 0; slice++) {
+				readFully(ByteBuffer.wrap(data, slice * rangeSize, rangeSize), dataOffset + header.getLevelOffset(slice, firstLevel), BsaMetrics.Codec.NONE);
+			}
+			return new BsaDdsHeader.Mips(header, firstLevel, levelCount, data);
+		}
+		// Closing the stream early stops reading and decompressing the rest of the entry
+		try (InputStream in = openStream(entry)) {
+			byte[] head = new byte[BsaDdsHeader.DX10_SIZE];
+			int position = in.readNBytes(head, 0, BsaDdsHeader.SIZE);
+			if (position == BsaDdsHeader.SIZE && BsaDdsHeader.isDx10(head)) {
+				position += in.readNBytes(head, position, BsaDdsHeader.DX10_SIZE - BsaDdsHeader.SIZE);
+			}
+			BsaDdsHeader header = BsaDdsHeader.parse(ByteBuffer.wrap(head, 0, position), loadedSize);
+			levelCount = header.clampLevels(firstLevel, levelCount);
+			int rangeSize = (int) header.getRangeSize(Math.min(firstLevel, header.getMipCount()), levelCount);
+			byte[] data = new byte[rangeSize * header.getSlices()];
+			byte[] skipped = rangeSize > 0 ? new byte[64 * 1024] : null;
+			long streamPosition = position;
+			for (int slice = 0; slice < header.getSlices() && rangeSize > 0; slice++) {
+				long levelOffset = header.getLevelOffset(slice, firstLevel);
+				while (streamPosition < levelOffset) {
+					int n = in.read(skipped, 0, (int) Math.min(skipped.length, levelOffset - streamPosition));
+					if (n < 0) {
+						throw new EOFException("Unexpected end of " + entries.getPath(entry) + " in archive " + bsaName);
 					}
+					streamPosition += n;
 				}
-			} else {
-				namePrefix = false;
+				if (in.readNBytes(data, slice * rangeSize, rangeSize) != rangeSize) {
+					throw new EOFException("Unexpected end of " + entries.getPath(entry) + " in archive " + bsaName);
+				}
+				streamPosition += rangeSize;
 			}
+			return new BsaDdsHeader.Mips(header, firstLevel, levelCount, data);
+		}
+	}
 
-			// According to namePrefix found, seek the file by name.length
-			if (namePrefix) {
-				raf.seek(off + fullname.length() + 1);
-			} else {
-				raf.seek(off);
-			}
-
-			if (compressed) {
-				int originalSize = raf.read() | (raf.read() << 8) | (raf.read() << 16) | (raf.read() << 24);
-				logger.extra("Compressed Size: " + (len));
-				logger.extra("Original Size: " + originalSize);
-				// Subtract original size int (depecrated ulong) and fullname.length + null character if present
-				int lengthWithoutSizeAndNameBytes = len - 4 - fullname.length() - 1;
-				totalFileBytes = new byte[lengthWithoutSizeAndNameBytes];
-				byte[] decompressedBytes = new byte[originalSize];
-				// Seeked, read all bytes till byte array is filled
-				raf.readFully(totalFileBytes);
-				if (version == 104) {
-					// Simple zip decompression
-					Inflater inflater = new Inflater();
-					inflater.setInput(totalFileBytes);
-					inflater.inflate(decompressedBytes);
-					inflater.end();
-					totalFileBytes = decompressedBytes;
-				} else if (version == 105) {
-					// Lz4 decompression
-					try {
-						// Apache common compress technique
-						FramedLZ4CompressorInputStream zIn = new FramedLZ4CompressorInputStream(new ByteArrayInputStream(totalFileBytes));
-						ByteArrayOutputStream out = new ByteArrayOutputStream(decompressedBytes.length);
-						int n = 0;
-						byte[] buffer = new byte[6144]; // 4096 + 2048
-						while ((-1 != (n = zIn.read(buffer)))) {
-							out.write(buffer, 0, n);
-						}
-						decompressedBytes = out.toByteArray();
-						out.close();
-						zIn.close();
-					} catch (Exception ex) {
-						System.err.println("Failed decompression by apache common compress for file: " + fullname);
-						ex.printStackTrace();
-						// fallback
-						System.err.println("Fallback to Yann Collet's lz4 cli!");
-						decompressedBytes = processLz4File(totalFileBytes, originalSize, fullname);
-					}
-					// Creates a new file, the file is left to avoid recreation
-					return decompressedBytes;
-				}
-			} else {
-				totalFileBytes = new byte[len];
-				raf.readFully(totalFileBytes);
+	/**
+	 * Reads the header of a DDS texture without loading its levels, see {@link #loadMips(String, int, int)}
+	 * 
+	 * @param filename
+	 *            path of a .dds entry inside the archive
+	 * @return header, null if the file is not in archive
+	 * @throws IOException
+	 * @throws DataFormatException
+	 *             if the entry is not a supported DDS texture
+	 */
+	public BsaDdsHeader getDdsHeader(String filename) throws IOException, DataFormatException {
+		BsaDdsHeader.Mips mips = loadMips(filename, 0, 0);
+		return mips == null ? null : mips.getHeader();
+	}
+
+	/**
+	 * Size of a file once loaded, for presizing the destination of {@link #load(String, ByteBuffer)}. Compressed entries store it in front of their data, so
+	 * this reads a few bytes from the archive.
+	 * 
+	 * @param filename
+	 *            path of the entry inside the archive
+	 * @return decompressed size, -1 if the file is not in archive
+	 * @throws IOException
+	 */
+	public int getLoadedSize(String filename) throws IOException {
+		int entry = find(filename);
+		if (entry < 0) {
+			return -1;
+		}
+		return getLoadedSize(entry);
+	}
+
+	int getLoadedSize(int entry) throws IOException {
+		ByteBuffer prefixBuffer = readPrefix(entry);
+		return loadedSize(entry, prefixBuffer, prefixLength(prefixBuffer, entry));
+	}
+
+	/**
+	 * @param entry
+	 * @param stored
+	 *            bytes read from the archive
+	 * @param offset
+	 *            position of the entry in stored
+	 * @return decompressed size of the entry, taken from its stored bytes instead of reading the archive
+	 */
+	int getLoadedSize(int entry, byte[] stored, int offset) {
+		int maxPrefixLength = embeddedNames() ? 1 + 255 : 0;
+		int length = Math.min(entries.getSize(entry), maxPrefixLength + 4);
+		ByteBuffer prefixBuffer = ByteBuffer.wrap(stored, offset, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+		return loadedSize(entry, prefixBuffer, prefixLength(prefixBuffer, entry));
+	}
+
+	private int loadedSize(int entry, ByteBuffer prefixBuffer, int prefixLength) {
+		if (entries.isCompressed(entry)) {
+			return prefixBuffer.getInt(prefixLength);
+		}
+		return entries.getSize(entry) - prefixLength;
+	}
+
+	/**
+	 * Reads and decompresses an entry into destination, whose limit is restored afterwards
+	 * 
+	 * @return number of bytes written
+	 */
+	private int decode(int entry, ByteBuffer prefixBuffer, int prefixLength, ByteBuffer destination) throws IOException, DataFormatException {
+		int len = entries.getSize(entry);
+		int loadedSize = loadedSize(entry, prefixBuffer, prefixLength);
+		if (destination.remaining() < loadedSize) {
+			throw new IllegalArgumentException("Destination has room for " + destination.remaining() + " of " + loadedSize + " bytes");
+		}
+		long dataOffset = entries.getOffset(entry) + prefixLength;
+		int start = destination.position();
+		int limit = destination.limit();
+		destination.limit(start + loadedSize);
+		try {
+			if (!entries.isCompressed(entry)) {
+				readFully(destination, dataOffset, BsaMetrics.Codec.NONE);
+				return loadedSize;
+			}
+			if (extraLogging) {
+				logger.extra("Compressed Size: " + len + ", Original Size: " + loadedSize);
 			}
+			// Subtract original size int (depecrated ulong) and name length + length byte if present
+			ByteBuffer compressedBytes = BsaScratch.get().input(len - prefixLength - 4);
+			readFully(compressedBytes, dataOffset + 4, codec(entry));
+			compressedBytes.flip();
+			return decompress(compressedBytes, destination, loadedSize);
 		} finally {
-			raf.close();
+			destination.limit(limit);
+		}
+	}
+
+	/**
+	 * Reads an entry as stored in the archive, to be decoded later with {@link #decodeStored(int, byte[], int)}
+	 * 
+	 * @param entry
+	 * @return stored bytes, embedded name and original size included
+	 * @throws IOException
+	 */
+	byte[] readStored(int entry) throws IOException {
+		byte[] stored = new byte[entries.getSize(entry)];
+		readFully(ByteBuffer.wrap(stored), entries.getOffset(entry), codec(entry));
+		return stored;
+	}
+
+	/**
+	 * Decodes an entry from bytes the caller has read from the archive, for readers that fetch many neighbouring entries with one read
+	 * 
+	 * @param entry
+	 * @param stored
+	 *            array holding the entry as stored in the archive, embedded name and original size included
+	 * @param offset
+	 *            position of the entry in stored
+	 * @return heap buffer over the file, a view of stored if the entry is not compressed
+	 * @throws DataFormatException
+	 */
+	ByteBuffer decodeStored(int entry, byte[] stored, int offset) throws DataFormatException {
+		ByteBuffer storedBuffer = ByteBuffer.wrap(stored, offset, entries.getSize(entry)).slice().order(ByteOrder.LITTLE_ENDIAN);
+		int prefixLength = prefixLength(storedBuffer, entry);
+		int loadedSize = loadedSize(entry, storedBuffer, prefixLength);
+		if (!entries.isCompressed(entry)) {
+			return storedBuffer.position(prefixLength);
+		}
+		ByteBuffer destination = ByteBuffer.allocate(loadedSize);
+		decompress(storedBuffer.position(prefixLength + 4), destination, loadedSize);
+		return destination.flip();
+	}
+
+	/**
+	 * Decompresses a whole entry, LZ4 frames for version 105 and zlib streams otherwise
+	 * 
+	 * @param compressedBytes
+	 *            heap buffer holding the compressed data from its position to its limit
+	 * @param destination
+	 * @param loadedSize
+	 *            original size of the entry
+	 * @return number of bytes written
+	 * @throws DataFormatException
+	 *             if the data is corrupt or does not decompress to loadedSize bytes
+	 */
+	private int decompress(ByteBuffer compressedBytes, ByteBuffer destination, int loadedSize) throws DataFormatException {
+		BsaMetrics m = metrics;
+		if (m == null) {
+			return decompressEntry(compressedBytes, destination, loadedSize);
+		}
+		BsaMetrics.Codec codec = version == 105 ? BsaMetrics.Codec.LZ4 : BsaMetrics.Codec.ZLIB;
+		long start = System.nanoTime();
+		try {
+			int decoded = decompressEntry(compressedBytes, destination, loadedSize);
+			m.record(bsaName, BsaMetrics.Stage.DECOMPRESS, codec, System.nanoTime() - start, decoded);
+			return decoded;
+		} catch (DataFormatException | RuntimeException e) {
+			m.error(bsaName, BsaMetrics.Stage.DECOMPRESS, codec);
+			throw e;
+		}
+	}
+
+	private int decompressEntry(ByteBuffer compressedBytes, ByteBuffer destination, int loadedSize) throws DataFormatException {
+		int decoded;
+		if (version == 105) {
+			// Lz4 frame decompression straight into the destination
+			decoded = Lz4FrameDecoder.decode(compressedBytes.array(), compressedBytes.arrayOffset() + compressedBytes.position(), compressedBytes.remaining(),
+					destination);
+		} else {
+			// Simple zip decompression
+			decoded = BsaScratch.get().inflate(compressedBytes, destination);
+		}
+		if (decoded != loadedSize) {
+			throw new DataFormatException("Decompressed " + decoded + " of " + loadedSize + " bytes");
+		}
+		return decoded;
+	}
+
+	/**
+	 * Reads file name prefix and original size of an entry in one positional read
+	 * 
+	 * @param entry
+	 * @return little endian buffer of the calling thread holding the first bytes of the entry, valid until its next load
+	 * @throws IOException
+	 */
+	private ByteBuffer readPrefix(int entry) throws IOException {
+		int maxPrefixLength = embeddedNames() ? 1 + 255 : 0;
+		ByteBuffer prefixBuffer = BsaScratch.get().prefix(Math.min(entries.getSize(entry), maxPrefixLength + 4));
+		readFully(prefixBuffer, entries.getOffset(entry), codec(entry));
+		prefixBuffer.flip();
+		return prefixBuffer;
+	}
+
+	/**
+	 * Entries of archives with embedded names start with their own path as a bstring, which has to be skipped before the data
+	 * 
+	 * @param prefixBuffer
+	 * @param entry
+	 * @return length of the embedded name including its length byte, 0 if there is none
+	 */
+	private int prefixLength(ByteBuffer prefixBuffer, int entry) {
+		if (!embeddedNames() || !prefixBuffer.hasRemaining()) {
+			return 0;
+		}
+		return (prefixBuffer.get(0) & 0xff) + 1;
+	}
+
+	/**
+	 * Describes how the stored bytes of an entry decode into the file, so two entries with identical stored bytes hold the same file only if this matches too
+	 * 
+	 * @param entry
+	 * @return codec of the entry
+	 */
+	byte[] getDecoding(int entry) {
+		return new byte[] { (byte) codec(entry).ordinal() };
+	}
+
+	/**
+	 * Archive flag 0x100 means file data is prefixed with its full path since version 104, Oblivion used that bit for something else
+	 * 
+	 * @return true if entries start with their own path
+	 */
+	boolean embeddedNames() {
+		return version != 103 && (archiveFlags & 0x100) != 0;
+	}
+
+	/**
+	 * Moves an entry straight from the archive channel into target. Uncompressed entries never pass through the Java heap, compressed entries are decompressed
+	 * first and then written.
+	 * 
+	 * @param filename
+	 *            path of the entry inside the archive
+	 * @param target
+	 *            a blocking channel such as a file or socket channel
+	 * @return number of bytes written, -1 if the file is not in archive
+	 * @throws IOException
+	 * @throws DataFormatException
+	 */
+	public long transferTo(String filename, WritableByteChannel target) throws IOException, DataFormatException {
+		int entry = find(filename);
+		if (entry < 0) {
+			logger.exception("File not in archive " + filename);
+			return -1;
+		}
+		if (entries.isCompressed(entry)) {
+			ByteBuffer bytes = ByteBuffer.wrap(load(entry));
+			while (bytes.hasRemaining()) {
+				target.write(bytes);
+			}
+			return bytes.capacity();
+		}
+		int prefixLength = prefixLength(readPrefix(entry), entry);
+		long position = entries.getOffset(entry) + prefixLength;
+		long count = entries.getSize(entry) - prefixLength;
+		long transferred = 0;
+		while (transferred < count) {
+			long n = channel().transferTo(position + transferred, count - transferred, target);
+			if (n <= 0) {
+				throw new EOFException("Unexpected end of archive " + bsaName + " while transferring " + filename);
+			}
+			transferred += n;
+		}
+		return transferred;
+	}
+
+	/**
+	 * Returns a read-only view of an uncompressed entry backed by a mapping of the archive, no bytes are copied. The view stays valid after close.
+	 * 
+	 * @param filename
+	 *            path of the entry inside the archive
+	 * @return read-only buffer of the entry, null if the file is not in archive
+	 * @throws IOException
+	 *             if the entry is compressed
+	 */
+	public ByteBuffer mapEntry(String filename) throws IOException {
+		int entry = find(filename);
+		if (entry < 0) {
+			logger.exception("File not in archive " + filename);
+			return null;
+		}
+		if (entries.isCompressed(entry)) {
+			throw new IOException("Compressed entry can not be mapped: " + filename);
+		}
+		int prefixLength = prefixLength(readPrefix(entry), entry);
+		long position = entries.getOffset(entry) + prefixLength;
+		int count = entries.getSize(entry) - prefixLength;
+		MappedByteBuffer archive = mapped();
+		if (archive == null) {
+			return channel().map(MapMode.READ_ONLY, position, count).asReadOnlyBuffer();
+		}
+		return archive.duplicate().position((int) position).limit((int) position + count).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Opens an entry for reading while it is decompressed. Uncompressed entries are read from the archive as the stream is read, compressed entries are
+	 * inflated or LZ4 decoded block by block, so memory per open stream stays constant however large the entry is.
+	 * 
+	 * @param filename
+	 *            path of the entry inside the archive
+	 * @return stream of the file, null if the file is not in archive. Closing it leaves the archive open.
+	 * @throws IOException
+	 */
+	public InputStream openStream(String filename) throws IOException {
+		int entry = find(filename);
+		if (entry < 0) {
+			logger.exception("File not in archive " + filename);
+			return null;
+		}
+		return openStream(entry);
+	}
+
+	InputStream openStream(int entry) throws IOException {
+		ByteBuffer prefixBuffer = readPrefix(entry);
+		int prefixLength = prefixLength(prefixBuffer, entry);
+		ReadableByteChannel stored = openStored(entry, prefixLength);
+		if (!entries.isCompressed(entry)) {
+			return Channels.newInputStream(stored);
+		}
+		if (version == 105) {
+			return new Lz4FrameInputStream(new BufferedInputStream(Channels.newInputStream(stored), 64 * 1024), loadedSize(entry, prefixBuffer, prefixLength));
+		}
+		Inflater inflater = new Inflater();
+		return new InflaterInputStream(Channels.newInputStream(stored), inflater, 64 * 1024) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				// Not ended by InflaterInputStream when passed in
+				inflater.end();
+			}
+		};
+	}
+
+	/**
+	 * Opens an entry as a channel, see {@link #openStream(String)}. Uncompressed entries are read straight into the buffers passed to the channel.
+	 * 
+	 * @param filename
+	 *            path of the entry inside the archive
+	 * @return channel of the file, null if the file is not in archive. Closing it leaves the archive open.
+	 * @throws IOException
+	 */
+	public ReadableByteChannel openChannel(String filename) throws IOException {
+		int entry = find(filename);
+		if (entry < 0) {
+			logger.exception("File not in archive " + filename);
+			return null;
+		}
+		if (!entries.isCompressed(entry)) {
+			return openStored(entry, prefixLength(readPrefix(entry), entry));
+		}
+		return Channels.newChannel(openStream(entry));
+	}
+
+	/**
+	 * @return channel over the file data of an entry, after embedded name and original size
+	 */
+	private ReadableByteChannel openStored(int entry, int prefixLength) {
+		int skipped = prefixLength + (entries.isCompressed(entry) ? 4 : 0);
+		return new BsaRangeChannel(this, entries.getOffset(entry) + skipped, entries.getSize(entry) - skipped);
+	}
+
+	/**
+	 * Brings a range of the archive into memory ahead of its loads. The range is mapped on its own and {@link MappedByteBuffer#load()} is called on that
+	 * mapping, which advises the kernel like madvise with WILLNEED and then touches every page on the calling thread, so call it from a background thread
+	 * such as that of {@link BsaPrefetcher}. Slices of the whole archive mapping are not used, Java 14 has no public way to load part of a mapping and the
+	 * result of slicing it is only a MappedByteBuffer by JDK internals. The mapping of the range is released once it is garbage collected.
+	 * 
+	 * @param position
+	 * @param length
+	 * @throws IOException
+	 */
+	void readAhead(long position, int length) throws IOException {
+		channel().map(MapMode.READ_ONLY, position, length).load();
+	}
+
+	/**
+	 * Maps the whole archive once on first use, archives over 2 GB are mapped per entry instead
+	 * 
+	 * @return mapping of the whole archive or null if it is too large
+	 * @throws IOException
+	 */
+	private MappedByteBuffer mapped() throws IOException {
+		MappedByteBuffer current = mappedArchive;
+		if (current != null) {
+			return current;
+		}
+		synchronized (this) {
+			if (mappedArchive == null) {
+				FileChannel fileChannel = channel();
+				if (fileChannel.size() > Integer.MAX_VALUE) {
+					return null;
+				}
+				mappedArchive = fileChannel.map(MapMode.READ_ONLY, 0, fileChannel.size());
+			}
+			return mappedArchive;
+		}
+	}
+
+	/**
+	 * Fills the buffer from the given archive position. Positional reads do not touch the channel position, so any number of threads can read at once.
+	 * 
+	 * @param buffer
+	 * @param position
+	 * @throws IOException
+	 */
+	void readFully(ByteBuffer buffer, long position) throws IOException {
+		readFully(buffer, position, (archiveFlags & 0x4) == 0 ? BsaMetrics.Codec.NONE : version == 105 ? BsaMetrics.Codec.LZ4 : BsaMetrics.Codec.ZLIB);
+	}
+
+	/**
+	 * Fills the buffer from the given archive position, timed as a read of codec when metrics are set
+	 */
+	private void readFully(ByteBuffer buffer, long position, BsaMetrics.Codec codec) throws IOException {
+		BsaMetrics m = metrics;
+		if (m == null) {
+			readChannel(buffer, position);
+			return;
+		}
+		int remaining = buffer.remaining();
+		long start = System.nanoTime();
+		try {
+			readChannel(buffer, position);
+		} catch (IOException | RuntimeException e) {
+			m.error(bsaName, BsaMetrics.Stage.READ, codec);
+			throw e;
+		}
+		m.record(bsaName, BsaMetrics.Stage.READ, codec, System.nanoTime() - start, remaining);
+	}
+
+	private void readChannel(ByteBuffer buffer, long position) throws IOException {
+		int attempts = 0;
+		while (buffer.hasRemaining()) {
+			try {
+				int n = channel().read(buffer, position);
+				if (n < 0) {
+					throw new EOFException("Unexpected end of archive " + bsaName + " at " + position);
+				}
+				position += n;
+			} catch (ClosedByInterruptException e) {
+				throw e;
+			} catch (ClosedChannelException e) {
+				// Another reader was interrupted and took the channel down with it, retry once on a fresh channel
+				if (closed || ++attempts > 1) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the shared channel of this archive, reopening it if an interrupted reader closed it
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private FileChannel channel() throws IOException {
+		FileChannel current = channel;
+		if (current != null && current.isOpen()) {
+			return current;
+		}
+		synchronized (this) {
+			if (closed) {
+				throw new ClosedChannelException();
+			}
+			if (channel == null || !channel.isOpen()) {
+				channel = FileChannel.open(location.toPath(), StandardOpenOption.READ);
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * Closes the shared channel, further loads from this archive fail
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			if (channel != null) {
+				channel.close();
+			}
 		}
-		return totalFileBytes;
 	}
 
 	/**
@@ -307,26 +1104,162 @@ public class BsaFile {
 	}
 
 	public byte[] load(String filename) throws IOException, DataFormatException {
-		BsaFileRecord fileRecord = files.get(filename.toLowerCase());
-		if (fileRecord == null) {
+		int entry = find(filename);
+		if (entry < 0) {
 			logger.exception("File not in archive " + filename);
 			return null;
 		}
-		return load(fileRecord.offset, fileRecord.size, fileRecord.nameWithPath, fileRecord.compressed);
+		return load(entry);
 	}
 
+	/**
+	 * Extracts every named file of this archive below outputDirectory. The archive is read front to back once while files are decompressed and written in
+	 * parallel on the common fork join pool.
+	 * 
+	 * @param outputDirectory
+	 * @return number of files written, files failing to extract are skipped
+	 * @throws IOException
+	 *             if the archive can not be read
+	 */
+	public int extractAll(File outputDirectory) throws IOException {
+		BsaExtractor extractor = new BsaExtractor(outputDirectory, ForkJoinPool.commonPool(), 2 * Runtime.getRuntime().availableProcessors());
+		for (int entry = 0; entry < entries.size(); entry++) {
+			if (entries.isListed(entry)) {
+				extractor.add(this, entry, entries.getPath(entry));
+			}
+		}
+		return extractor.run();
+	}
+
+	/**
+	 * Looks the path up through its folder and file hash, so archives without file names can be searched as well
+	 * 
+	 * @param filename
+	 * @return true if the archive holds a file by that path, case is ignored
+	 */
+	public boolean contains(String filename) {
+		return find(filename) >= 0;
+	}
+
+	/**
+	 * Sorts the paths of all files into a new list on every call, prefer {@link #getFolderTree()} to find files below a folder or matching a pattern
+	 * 
+	 * @return lower case paths of all named files
+	 */
 	public List<String> getFilenames() {
-		return files.keySet().stream().sorted().collect(Collectors.toList());
+		List<String> filenames = new ArrayList<>(entries.listedSize());
+		for (int entry = 0; entry < entries.size(); entry++) {
+			if (entries.isListed(entry)) {
+				filenames.add(entries.getPath(entry));
+			}
+		}
+		Collections.sort(filenames);
+		return filenames;
 	}
 
+	/**
+	 * Folders and files of this archive for prefix, extension and glob queries, built on first use
+	 * 
+	 * @return tree shared by all callers
+	 */
+	public BsaFolderTree getFolderTree() {
+		BsaFolderTree tree = folderTree;
+		if (tree == null) {
+			tree = new BsaFolderTree(new BsaFile[] { this });
+			folderTree = tree;
+		}
+		return tree;
+	}
+
+	/**
+	 * Read-only view of the file records keyed by path. Records are created on access from the entry table, keep the view instead of iterating it repeatedly.
+	 * 
+	 * @return
+	 */
 	public Map<String, BsaFileRecord> getFileRecords() {
-		return files;
+		return new AbstractMap<String, BsaFileRecord>() {
+			@Override
+			public BsaFileRecord get(Object key) {
+				int entry = key instanceof String ? entries.find((String) key) : -1;
+				return entry < 0 ? null : entries.toRecord(entry);
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return key instanceof String && entries.find((String) key) >= 0;
+			}
+
+			@Override
+			public int size() {
+				return entries.listedSize();
+			}
+
+			@Override
+			public Set<Entry<String, BsaFileRecord>> entrySet() {
+				return new AbstractSet<Entry<String, BsaFileRecord>>() {
+					@Override
+					public Iterator<Entry<String, BsaFileRecord>> iterator() {
+						return new Iterator<Entry<String, BsaFileRecord>>() {
+							private int next = advance(0);
+
+							private int advance(int from) {
+								while (from < entries.size() && !entries.isListed(from)) {
+									from++;
+								}
+								return from;
+							}
+
+							@Override
+							public boolean hasNext() {
+								return next < entries.size();
+							}
+
+							@Override
+							public Entry<String, BsaFileRecord> next() {
+								if (!hasNext()) {
+									throw new NoSuchElementException();
+								}
+								BsaFileRecord fr = entries.toRecord(next);
+								next = advance(next + 1);
+								return new SimpleImmutableEntry<>(fr.nameWithPath, fr);
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return entries.listedSize();
+					}
+				};
+			}
+		};
+	}
+
+	BsaEntryTable getEntries() {
+		return entries;
 	}
 
 	public String getName() {
 		return bsaName;
 	}
 
+	/**
+	 * Sets where timings of opening archives, lookups, reads and decompression of all archives go, for example a {@link BsaMetricsRegistry}. Null disables
+	 * them, which is the default, loads then take no timings at all.
+	 * 
+	 * @param metrics
+	 */
+	public static void setMetrics(BsaMetrics metrics) {
+		BsaFile.metrics = metrics;
+	}
+
+	/**
+	 * @return where timings go, null if disabled
+	 */
+	public static BsaMetrics getMetrics() {
+		return metrics;
+	}
+
 	public void setName(String name) {
 		this.bsaName = name;
 	}
@@ -335,46 +1268,30 @@ public class BsaFile {
 		return location.getAbsolutePath();
 	}
 
-	private byte[] processLz4File(byte[] totalFileBytes, int originalSize, String fullname) throws IOException {
-		File outputFile = new File(Settings.TEMP_LOCATION, fullname);
-		if (!outputFile.exists()) {
-			logger.extra("Using temp location: " + Settings.TEMP_LOCATION);
-			String inputName = fullname.substring(0, fullname.lastIndexOf(".")) + ".compressed";
-			File inputFile = new File(Settings.TEMP_LOCATION, inputName);
-			inputFile.getParentFile().mkdirs();
-			FileOutputStream os = new FileOutputStream(inputFile);
-			os.write(totalFileBytes);
-			os.flush();
-			os.close();
-			processLz4(inputFile, outputFile, originalSize);
-			logger.extra("Remove compressed file data");
-			inputFile.delete();
-		}
-		FileInputStream is = new FileInputStream(outputFile);
-		byte[] bex = is.readAllBytes();
-		is.close();
-		return bex;
-	}
-
-	private void processLz4(File compressedDataFile, File uncompressedLocationFile, int originalSize) {
-		ProcessBuilder pb = new ProcessBuilder();
-		File lz4Exe = new File("lib/bin/lz4.exe");
-		String input = "\"" + compressedDataFile.getAbsolutePath() + "\"";
-		String output = "\"" + uncompressedLocationFile.getAbsolutePath() + "\"";
-		String path2 = "\"\"" + lz4Exe.getAbsolutePath() + "\" -vd " + input + " " + output + "\"";
-		try {
-			logger.extra("Executing: ");
-			logger.extra(pb.command().stream().collect(Collectors.joining(" ")));
-			System.out.println(pb.command().stream().collect(Collectors.joining(" ")));
-			pb.command("cmd", "/C", path2);
-			Process p = pb.start();
-			p.getErrorStream().transferTo(System.err);
-			p.getInputStream().transferTo(System.out);
-			p.waitFor();
-		} catch (IOException e) {
-			logger.exception(e);
-		} catch (InterruptedException e) {
-			logger.exception(e);
-		}
+	public int getVersion() {
+		return version;
+	}
+
+	public int getArchiveFlags() {
+		return archiveFlags;
+	}
+
+	List<BsaFolderRecord> getFolders() {
+		return folders;
+	}
+
+	long getArchiveSize() {
+		return archiveSize;
+	}
+
+	long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return true if size and modification time of the archive on disk still match the ones its records were parsed from
+	 */
+	boolean isCurrent() {
+		return location.length() == archiveSize && location.lastModified() == lastModified;
 	}
 }
\ No newline at end of file
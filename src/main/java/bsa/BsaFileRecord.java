@@ -6,7 +6,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 public class BsaFileRecord {
-	// hash
+	long hash;
 	String name;
 	int offset;
 	int size;
@@ -18,12 +18,17 @@ public class BsaFileRecord {
 	}
 
 	public BsaFileRecord(RandomAccessFile file, int offset, boolean defaultCompressed) throws IOException {
-		byte[] bytes = new byte[8 + 4 + 4];
-		file.seek(offset);
-		file.read(bytes, 0, bytes.length);
-		ByteBuffer recordBuffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
-		// hashcode to ignore
-		recordBuffer.getLong();
+		this(readRecord(file, offset), defaultCompressed);
+	}
+
+	/**
+	 * Reads a file record from current position of the buffer, the buffer must be in little endian order
+	 * 
+	 * @param recordBuffer
+	 * @param defaultCompressed
+	 */
+	public BsaFileRecord(ByteBuffer recordBuffer, boolean defaultCompressed) {
+		this.hash = recordBuffer.getLong();
 		this.size = recordBuffer.getInt();
 		if ((this.size & (1 << 30)) != 0) {
 			this.compressed = !defaultCompressed;
@@ -34,10 +39,20 @@ public class BsaFileRecord {
 		this.offset = recordBuffer.getInt();
 	}
 
+	private static ByteBuffer readRecord(RandomAccessFile file, int offset) throws IOException {
+		byte[] bytes = new byte[8 + 4 + 4];
+		file.seek(offset);
+		file.read(bytes, 0, bytes.length);
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
 	public void setNameLength(byte b) {
 		this.nameLength = Byte.toUnsignedInt(b);
 	}
 
+	/**
+	 * @return offset of the file data in the archive, an unsigned 32 bit value
+	 */
 	public int getOffset() {
 		return offset;
 	}
@@ -46,6 +61,13 @@ public class BsaFileRecord {
 		return size;
 	}
 
+	/**
+	 * @return Bethesda hash of the file name as stored in the record
+	 */
+	public long getHash() {
+		return hash;
+	}
+
 	@Override
 	public String toString() {
 		return name;
@@ -1,31 +1,44 @@
 package bsa;
 
 import java.nio.*;
-import java.util.*;
 
 public class BsaFolderRecord {
 	// This is read
-	// hash
+	long hash;
 	String name;
 	Integer fileCount;
 	Integer padding;
 	Long offset;
 	Integer nameLength;
-	// Not Read
-	List<BsaFileRecord> files = new ArrayList<BsaFileRecord>();
+	// Not Read, index of the first file of this folder in the entry table of its archive
+	int firstFile;
 
 	public BsaFolderRecord() {
 	}
 
 	public BsaFolderRecord(ByteBuffer buffer) {
-		// Ignorable hashcode
-		buffer.getLong();
+		this(buffer, 105);
+	}
+
+	/**
+	 * Reads a folder record, version 104 records have no padding and a 4 byte offset
+	 * 
+	 * @param buffer
+	 * @param version
+	 */
+	public BsaFolderRecord(ByteBuffer buffer, int version) {
+		this.hash = buffer.getLong();
 		// File count
 		this.fileCount = buffer.getInt();
-		// Padding
-		this.padding = buffer.getInt();
-		// Offset
-		this.offset = buffer.getLong();
+		if (version == 105) {
+			// Padding
+			this.padding = buffer.getInt();
+			// Offset
+			this.offset = buffer.getLong();
+		} else {
+			this.padding = 0;
+			this.offset = Integer.toUnsignedLong(buffer.getInt());
+		}
 	}
 
 	public void setNameLength(byte b) {
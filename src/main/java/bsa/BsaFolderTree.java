@@ -0,0 +1,209 @@
+package bsa;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Folders of one or more archives as a tree, built once from the folder names and entry tables. Queries walk down to the folder a prefix or glob starts in
+ * and stream only the files below it, lazily and in no particular order, without sorting or copying the paths of all files. Paths are lower case with
+ * backslashes as in {@link BsaFile#getFilenames()}, files at the root of an archive have no folder. Archives without file names add nothing.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public final class BsaFolderTree {
+	private final BsaEntryTable[] tables;
+	private final Folder root = new Folder("");
+
+	/**
+	 * @param archives
+	 *            in load order, a file held by several archives is listed once
+	 */
+	BsaFolderTree(BsaFile[] archives) {
+		tables = new BsaEntryTable[archives.length];
+		int records = 0;
+		for (int i = 0; i < archives.length; i++) {
+			tables[i] = archives[i].getEntries();
+			records += tables[i].size();
+		}
+		BsaHashIndex listed = new BsaHashIndex(records);
+		for (int archive = tables.length - 1; archive >= 0; archive--) {
+			BsaEntryTable entries = tables[archive];
+			Folder[] folders = new Folder[entries.getFolderCount()];
+			for (int entry = 0; entry < entries.size(); entry++) {
+				long key = BsaHash.key(entries.getFolderHash(entry), entries.getFileHash(entry));
+				if (!entries.isListed(entry) || listed.get(key) >= 0) {
+					continue;
+				}
+				listed.put(key, archive);
+				int folderIndex = entries.getFolderIndex(entry);
+				if (folders[folderIndex] == null) {
+					folders[folderIndex] = folder(entries.getFolderName(folderIndex), true);
+				}
+				folders[folderIndex].add(archive, entry);
+			}
+		}
+	}
+
+	/**
+	 * @param folder
+	 *            path of a folder, case is ignored and both slashes separate folders
+	 * @return paths of the files directly in folder
+	 */
+	public Stream<String> files(String folder) {
+		Folder found = folder(folder, false);
+		return found == null ? Stream.empty() : found.paths();
+	}
+
+	/**
+	 * @param folder
+	 * @return names of the folders directly in folder, sorted
+	 */
+	public Collection<String> subfolders(String folder) {
+		Folder found = folder(folder, false);
+		return found == null ? Collections.emptySet() : Collections.unmodifiableSet(found.children.keySet());
+	}
+
+	/**
+	 * @param prefix
+	 *            start of the paths, such as <code>textures\armor\</code> for everything below that folder or <code>textures\armor\iron</code> for files and
+	 *            folders starting with iron as well
+	 * @return paths of all files below prefix
+	 */
+	public Stream<String> filesStartingWith(String prefix) {
+		String normalized = normalize(prefix);
+		int separator = normalized.lastIndexOf('\\');
+		Folder found = folder(normalized.substring(0, Math.max(separator, 0)), false);
+		if (found == null) {
+			return Stream.empty();
+		}
+		String start = normalized.substring(separator + 1);
+		if (start.isEmpty()) {
+			return found.subtree().flatMap(Folder::paths);
+		}
+		Stream<String> files = found.paths().filter(path -> path.startsWith(start, found.prefix.length()));
+		Stream<String> below = found.children.tailMap(start).entrySet().stream().takeWhile(child -> child.getKey().startsWith(start))
+				.flatMap(child -> child.getValue().subtree()).flatMap(Folder::paths);
+		return Stream.concat(files, below);
+	}
+
+	/**
+	 * @param extension
+	 *            such as dds or .dds
+	 * @return paths of all files with the extension
+	 */
+	public Stream<String> filesWithExtension(String extension) {
+		String suffix = extension.startsWith(".") ? extension.toLowerCase() : "." + extension.toLowerCase();
+		return root.subtree().flatMap(Folder::paths).filter(path -> path.endsWith(suffix));
+	}
+
+	/**
+	 * Walks only below the folders the glob names before its first wildcard, and only the files of one folder if it has no <code>**</code> and no separator
+	 * after its first wildcard.
+	 *
+	 * @param glob
+	 *            case insensitive pattern such as <code>textures/**&#47;*.dds</code>, see {@link BsaManager#extractMatching(String, java.io.File)}
+	 * @return paths of all files matching glob
+	 */
+	public Stream<String> filesMatching(String glob) {
+		Pattern pattern = BsaGlob.compile(glob);
+		String normalized = glob.toLowerCase().replace('/', '\\');
+		int wildcard = 0;
+		while (wildcard < normalized.length() && normalized.charAt(wildcard) != '*' && normalized.charAt(wildcard) != '?') {
+			wildcard++;
+		}
+		int separator = normalized.lastIndexOf('\\', wildcard - 1);
+		Folder found = folder(normalized.substring(0, Math.max(separator, 0)), false);
+		if (found == null) {
+			return Stream.empty();
+		}
+		String rest = normalized.substring(separator + 1);
+		boolean oneFolder = rest.indexOf('\\') < 0 && !rest.contains("**");
+		Stream<Folder> folders = oneFolder ? Stream.of(found) : found.subtree();
+		return folders.flatMap(Folder::paths).filter(path -> pattern.matcher(path).matches());
+	}
+
+	/**
+	 * @return number of files in the tree
+	 */
+	public long size() {
+		return root.subtree().mapToLong(folder -> folder.count).sum();
+	}
+
+	private static String normalize(String path) {
+		String normalized = path.toLowerCase().replace('/', '\\');
+		int start = 0;
+		while (start < normalized.length() && normalized.charAt(start) == '\\') {
+			start++;
+		}
+		return normalized.substring(start);
+	}
+
+	/**
+	 * @param create
+	 *            true to add missing folders
+	 * @return the folder of path, null if it is missing and create is false
+	 */
+	private Folder folder(String path, boolean create) {
+		Folder folder = root;
+		for (String name : normalize(path).split("\\\\")) {
+			if (name.isEmpty()) {
+				continue;
+			}
+			Folder child = folder.children.get(name);
+			if (child == null) {
+				if (!create) {
+					return null;
+				}
+				child = new Folder(folder.prefix + name + "\\");
+				folder.children.put(name, child);
+			}
+			folder = child;
+		}
+		return folder;
+	}
+
+	/**
+	 * A folder with its subfolders by name and its files as archive and entry pairs
+	 */
+	private final class Folder {
+		/**
+		 * Path of the folder followed by a backslash, empty for the root
+		 */
+		final String prefix;
+		final TreeMap<String, Folder> children = new TreeMap<>();
+		int[] archives = new int[0];
+		int[] entries = new int[0];
+		int count;
+
+		Folder(String prefix) {
+			this.prefix = prefix;
+		}
+
+		void add(int archive, int entry) {
+			if (count == entries.length) {
+				archives = Arrays.copyOf(archives, Math.max(4, count * 2));
+				entries = Arrays.copyOf(entries, archives.length);
+			}
+			archives[count] = archive;
+			entries[count] = entry;
+			count++;
+		}
+
+		Stream<String> paths() {
+			return IntStream.range(0, count).mapToObj(i -> prefix + tables[archives[i]].getLowerName(entries[i]));
+		}
+
+		/**
+		 * @return this folder followed by all folders below it, depth first
+		 */
+		Stream<Folder> subtree() {
+			return Stream.concat(Stream.of(this), children.values().stream().flatMap(Folder::subtree));
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package bsa;
+
+import java.util.regex.Pattern;
+
+/**
+ * Glob patterns over archive paths. Case is ignored and both slashes separate folders, <code>*</code> matches within one folder, <code>**</code> across
+ * folders and <code>?</code> matches a single character, for example <code>textures/actors/**&#47;*.dds</code>.
+ *
+ * @author Yusaf Ali
+ *
+ */
+final class BsaGlob {
+	private BsaGlob() {
+	}
+
+	/**
+	 * @param glob
+	 * @return pattern matching lower case paths with backslashes, as returned by {@link BsaFile#getFilenames()}
+	 */
+	static Pattern compile(String glob) {
+		StringBuilder regex = new StringBuilder();
+		String lower = glob.toLowerCase().replace('/', '\\');
+		for (int i = 0; i < lower.length(); i++) {
+			char c = lower.charAt(i);
+			if (c == '*') {
+				if (i + 1 < lower.length() && lower.charAt(i + 1) == '*') {
+					i++;
+					// "**\" also matches no folder at all
+					if (i + 1 < lower.length() && lower.charAt(i + 1) == '\\') {
+						i++;
+						regex.append("(?:.*\\\\)?");
+					} else {
+						regex.append(".*");
+					}
+				} else {
+					regex.append("[^\\\\]*");
+				}
+			} else if (c == '?') {
+				regex.append("[^\\\\]");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+}
@@ -0,0 +1,119 @@
+package bsa;
+
+/**
+ * Bethesda path hash as stored in folder and file records. Folder hashes cover the whole folder path, file hashes cover the file name only and treat the
+ * extension separately.<br>
+ * Hashes are computed directly from the characters with case folded and forward slashes read as backslashes, nothing is allocated.
+ * 
+ * @author Yusaf Ali
+ *
+ */
+public final class BsaHash {
+	private BsaHash() {
+	}
+
+	/**
+	 * @param folder
+	 *            folder path such as textures\armor
+	 * @return hash as stored in folder records
+	 */
+	public static long folderHash(CharSequence folder) {
+		return hash(folder, 0, folder.length(), false);
+	}
+
+	/**
+	 * @param filename
+	 *            file name without folder such as iron.dds
+	 * @return hash as stored in file records
+	 */
+	public static long fileHash(CharSequence filename) {
+		return hash(filename, 0, filename.length(), true);
+	}
+
+	/**
+	 * @return hash of the folder part of path, everything before the last separator
+	 */
+	static long folderHashOfPath(CharSequence path) {
+		return hash(path, 0, Math.max(separator(path), 0), false);
+	}
+
+	/**
+	 * @return hash of the file part of path, everything after the last separator
+	 */
+	static long fileHashOfPath(CharSequence path) {
+		return hash(path, separator(path) + 1, path.length(), true);
+	}
+
+	/**
+	 * Key of a folder and file hash pair, used where both have to fit a single long
+	 */
+	static long key(long folderHash, long fileHash) {
+		return folderHash * 0x9E3779B97F4A7C15L + fileHash;
+	}
+
+	private static int separator(CharSequence path) {
+		for (int i = path.length() - 1; i >= 0; i--) {
+			char c = path.charAt(i);
+			if (c == '\\' || c == '/') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static long hash(CharSequence s, int start, int end, boolean file) {
+		int extStart = end;
+		if (file) {
+			for (int i = end - 1; i >= start; i--) {
+				if (s.charAt(i) == '.') {
+					extStart = i;
+					break;
+				}
+			}
+		}
+		int length = extStart - start;
+		long hash1 = 0;
+		if (length > 0) {
+			hash1 = (lower(s.charAt(extStart - 1)) | (length > 2 ? lower(s.charAt(extStart - 2)) << 8 : 0) | length << 16 | lower(s.charAt(start)) << 24)
+					& 0xffffffffL;
+		}
+		if (extensionIs(s, extStart, end, ".kf")) {
+			hash1 |= 0x80;
+		} else if (extensionIs(s, extStart, end, ".nif")) {
+			hash1 |= 0x8000;
+		} else if (extensionIs(s, extStart, end, ".dds")) {
+			hash1 |= 0x8080;
+		} else if (extensionIs(s, extStart, end, ".wav")) {
+			hash1 |= 0x80000000L;
+		}
+		int hash2 = 0;
+		for (int i = start + 1; i < extStart - 2; i++) {
+			hash2 = hash2 * 0x1003f + lower(s.charAt(i));
+		}
+		int hash3 = 0;
+		for (int i = extStart; i < end; i++) {
+			hash3 = hash3 * 0x1003f + lower(s.charAt(i));
+		}
+		hash2 += hash3;
+		return (Integer.toUnsignedLong(hash2) << 32) | hash1;
+	}
+
+	private static boolean extensionIs(CharSequence s, int start, int end, String extension) {
+		if (end - start != extension.length()) {
+			return false;
+		}
+		for (int i = 0; i < extension.length(); i++) {
+			if (lower(s.charAt(start + i)) != extension.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int lower(char c) {
+		if (c == '/') {
+			return '\\';
+		}
+		return Character.toLowerCase(c) & 0xff;
+	}
+}
@@ -0,0 +1,83 @@
+package bsa;
+
+/**
+ * Open addressing map of long keys to int values without boxing. Putting an existing key replaces its value.
+ * 
+ * @author Yusaf Ali
+ *
+ */
+final class BsaHashIndex {
+	private final long[] keys;
+	/**
+	 * Value + 1, 0 marks an empty slot
+	 */
+	private final int[] values;
+	private final int mask;
+	private int size;
+
+	/**
+	 * @param expected
+	 *            number of keys that will be put, the index does not grow
+	 */
+	BsaHashIndex(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(expected, 1) * 2 - 1) << 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Copies an index with room for more keys, the copy can be changed without changing from
+	 * 
+	 * @param from
+	 * @param additional
+	 *            number of keys that will be put in addition to those of from
+	 */
+	BsaHashIndex(BsaHashIndex from, int additional) {
+		this(from.size + additional);
+		if (keys.length == from.keys.length) {
+			System.arraycopy(from.keys, 0, keys, 0, keys.length);
+			System.arraycopy(from.values, 0, values, 0, values.length);
+			size = from.size;
+		} else {
+			for (int slot = 0; slot < from.values.length; slot++) {
+				if (from.values[slot] != 0) {
+					put(from.keys[slot], from.values[slot] - 1);
+				}
+			}
+		}
+	}
+
+	void put(long key, int value) {
+		int slot = slot(key);
+		while (values[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		if (values[slot] == 0) {
+			size++;
+		}
+		keys[slot] = key;
+		values[slot] = value + 1;
+	}
+
+	/**
+	 * @return value of key, -1 if absent
+	 */
+	int get(long key) {
+		for (int slot = slot(key); values[slot] != 0; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				return values[slot] - 1;
+			}
+		}
+		return -1;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private int slot(long key) {
+		long h = key ^ (key >>> 32);
+		return (int) (h ^ (h >>> 16)) & mask;
+	}
+}
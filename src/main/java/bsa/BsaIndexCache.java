@@ -0,0 +1,135 @@
+package bsa;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Binary index of parsed archive headers. Holds path, size and modification time of every archive along with its folders and entry table, so archives
+ * that did not change since the index was written are restored without being parsed again.
+ * 
+ * @author Yusaf Ali
+ *
+ */
+class BsaIndexCache {
+	private static final int MAGIC = 0x42534149; // BSAI
+	private static final int FORMAT = 3;
+
+	private BsaIndexCache() {
+	}
+
+	/**
+	 * Reads the whole index through one mapping of the cache file. A missing, outdated or damaged cache file gives an empty index.
+	 * 
+	 * @param cacheFile
+	 * @return archives keyed by their absolute path
+	 * @throws IOException
+	 */
+	static Map<String, BsaFile> read(File cacheFile) throws IOException {
+		Map<String, BsaFile> index = new HashMap<>();
+		if (!cacheFile.isFile()) {
+			return index;
+		}
+		try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+				return index;
+			}
+			int archiveCount = buffer.getInt();
+			byte[] nameBytes = new byte[0xffff];
+			for (int i = 0; i < archiveCount; i++) {
+				String path = readString(buffer, nameBytes, StandardCharsets.UTF_8);
+				long archiveSize = buffer.getLong();
+				long lastModified = buffer.getLong();
+				int version = buffer.getInt();
+				int archiveFlags = buffer.getInt();
+				int folderCount = buffer.getInt();
+				List<BsaFolderRecord> folders = new ArrayList<>(folderCount);
+				for (int j = 0; j < folderCount; j++) {
+					BsaFolderRecord folder = new BsaFolderRecord();
+					folder.hash = buffer.getLong();
+					folder.name = readString(buffer, nameBytes, StandardCharsets.ISO_8859_1);
+					folder.nameLength = folder.name.length() + 1;
+					folder.fileCount = buffer.getInt();
+					folder.firstFile = buffer.getInt();
+					folder.padding = 0;
+					folder.offset = 0L;
+					folders.add(folder);
+				}
+				BsaEntryTable entries = BsaEntryTable.read(buffer, folders);
+				index.put(path, new BsaFile(new File(path), archiveSize, lastModified, version, archiveFlags, folders, entries));
+			}
+		} catch (BufferUnderflowException e) {
+			BsaFile.logger.exception("Index cache is damaged and will be rebuilt: " + cacheFile);
+			index.clear();
+		}
+		return index;
+	}
+
+	/**
+	 * Writes the index to a temporary file first and then replaces the cache file with it
+	 * 
+	 * @param cacheFile
+	 * @param archives
+	 * @throws IOException
+	 */
+	static void write(File cacheFile, Collection<BsaFile> archives) throws IOException {
+		File parent = cacheFile.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		// BA2 archives keep per record data the cache does not hold, they are parsed again
+		List<BsaFile> cached = archives.stream().filter(archive -> !(archive instanceof Ba2File)).collect(Collectors.toList());
+		File temp = new File(cacheFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeInt(cached.size());
+			for (BsaFile archive : cached) {
+				writeString(out, archive.getFilePath().getBytes(StandardCharsets.UTF_8));
+				out.writeLong(archive.getArchiveSize());
+				out.writeLong(archive.getLastModified());
+				out.writeInt(archive.getVersion());
+				out.writeInt(archive.getArchiveFlags());
+				out.writeInt(archive.getFolders().size());
+				for (BsaFolderRecord folder : archive.getFolders()) {
+					out.writeLong(folder.hash);
+					writeString(out, folder.name.getBytes(StandardCharsets.ISO_8859_1));
+					out.writeInt(folder.fileCount);
+					out.writeInt(folder.firstFile);
+				}
+				archive.getEntries().write(out);
+			}
+		}
+		Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static String readString(ByteBuffer buffer, byte[] nameBytes, Charset charset) {
+		int length = Short.toUnsignedInt(buffer.getShort());
+		buffer.get(nameBytes, 0, length);
+		return new String(nameBytes, 0, length, charset);
+	}
+
+	private static void writeString(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+}
@@ -0,0 +1,283 @@
+package bsa;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loose files below a data folder, which override archived files of the same path. The folder is scanned once, afterwards a watch service reports created
+ * and deleted files and folders, which are added to or removed from the index one by one. Lookups are a single hash map read by the hashes archives are
+ * indexed by, so checking for a loose file costs no file system call. Archives in the data folder itself are not indexed.<br>
+ * Set it with {@link BsaManager#setLooseFiles(BsaLooseFiles)}.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public class BsaLooseFiles implements AutoCloseable {
+	private final Path root;
+	/**
+	 * Loose files keyed by {@link BsaHash#key(long, long)} of their path
+	 */
+	private final Map<Long, LooseFile> files = new ConcurrentHashMap<>();
+	/**
+	 * Watched folders, only touched by the constructor and the watch thread
+	 */
+	private final Map<Path, WatchKey> folders = new ConcurrentHashMap<>();
+	private final WatchService watchService;
+	private final Thread watchThread;
+
+	private final LongAdder added = new LongAdder();
+	private final LongAdder removed = new LongAdder();
+	private final LongAdder rescans = new LongAdder();
+
+	/**
+	 * Scans the data folder and starts watching it
+	 *
+	 * @param root
+	 *            data folder, paths of loose files are taken relative to it
+	 * @throws IOException
+	 *             if the folder can not be scanned or watched
+	 */
+	public BsaLooseFiles(File root) throws IOException {
+		this.root = root.toPath().toAbsolutePath().normalize();
+		watchService = FileSystems.getDefault().newWatchService();
+		try {
+			scan(this.root);
+		} catch (IOException | RuntimeException e) {
+			watchService.close();
+			throw e;
+		}
+		watchThread = new Thread(this::watch, "BSA loose files");
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	/**
+	 * Indexes all files below folder and watches its folders
+	 */
+	private void scan(Path folder) throws IOException {
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				// Registered before its files are listed, so files created meanwhile are reported
+				folders.put(dir, dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				// Deleted while scanning, its deletion is reported by the watch service
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void add(Path file) {
+		String path = pathOf(file);
+		if (path == null) {
+			return;
+		}
+		long folderHash = BsaHash.folderHashOfPath(path);
+		long fileHash = BsaHash.fileHashOfPath(path);
+		files.put(BsaHash.key(folderHash, fileHash), new LooseFile(file, folderHash, fileHash));
+		added.increment();
+	}
+
+	private void remove(Path file) {
+		String path = pathOf(file);
+		if (path != null && files.remove(BsaHash.key(BsaHash.folderHashOfPath(path), BsaHash.fileHashOfPath(path))) != null) {
+			removed.increment();
+		}
+	}
+
+	/**
+	 * @return lower case path relative to the data folder with backslashes, null for archives in the data folder itself
+	 */
+	private String pathOf(Path file) {
+		Path relative = root.relativize(file);
+		String path = relative.toString().toLowerCase().replace('/', '\\');
+		if (relative.getNameCount() == 1 && (path.endsWith(".bsa") || path.endsWith(".ba2"))) {
+			return null;
+		}
+		return path;
+	}
+
+	/**
+	 * Applies events of the watch service until closed
+	 */
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Path folder = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						// Events were lost, only this folder is scanned again
+						rescan(folder);
+						continue;
+					}
+					Path child = folder.resolve((Path) event.context());
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+						created(child);
+					} else {
+						deleted(child);
+					}
+				}
+				if (!key.reset()) {
+					folders.remove(folder, key);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Closed
+		}
+	}
+
+	private void created(Path child) {
+		try {
+			if (Files.isDirectory(child)) {
+				scan(child);
+			} else if (Files.isRegularFile(child)) {
+				add(child);
+			}
+		} catch (IOException e) {
+			// Deleted again before it was scanned, its deletion is reported next
+		}
+	}
+
+	private void deleted(Path child) {
+		WatchKey key = folders.remove(child);
+		if (key == null) {
+			remove(child);
+			return;
+		}
+		key.cancel();
+		// A deleted folder takes its files and subfolders with it, which are only reported for the folder itself
+		files.values().removeIf(file -> {
+			boolean below = file.path.startsWith(child);
+			if (below) {
+				removed.increment();
+			}
+			return below;
+		});
+		folders.keySet().removeIf(folder -> {
+			if (folder.startsWith(child)) {
+				folders.get(folder).cancel();
+				return true;
+			}
+			return false;
+		});
+	}
+
+	private void rescan(Path folder) {
+		rescans.increment();
+		try {
+			scan(folder);
+		} catch (IOException e) {
+			// Folder is gone, its deletion is reported to its parent
+		}
+		// Files stay visible while scanning, those deleted unnoticed are dropped afterwards
+		files.values().removeIf(file -> {
+			boolean gone = file.path.startsWith(folder) && !Files.exists(file.path);
+			if (gone) {
+				removed.increment();
+			}
+			return gone;
+		});
+	}
+
+	/**
+	 * @param filename
+	 *            path relative to the data folder, case is ignored
+	 * @return the loose file, null if there is none
+	 */
+	public File getFile(String filename) {
+		Path path = getFile(BsaHash.folderHashOfPath(filename), BsaHash.fileHashOfPath(filename));
+		return path == null ? null : path.toFile();
+	}
+
+	/**
+	 * @return path of the loose file with given hashes, null if there is none
+	 */
+	Path getFile(long folderHash, long fileHash) {
+		LooseFile file = files.get(BsaHash.key(folderHash, fileHash));
+		if (file == null || file.folderHash != folderHash || file.fileHash != fileHash) {
+			return null;
+		}
+		return file.path;
+	}
+
+	/**
+	 * @return number of indexed loose files
+	 */
+	public int size() {
+		return files.size();
+	}
+
+	/**
+	 * @return files added to the index, by the scan and since
+	 */
+	public long getAdded() {
+		return added.sum();
+	}
+
+	/**
+	 * @return files removed from the index
+	 */
+	public long getRemoved() {
+		return removed.sum();
+	}
+
+	/**
+	 * @return folders scanned again after the watch service lost events
+	 */
+	public long getRescans() {
+		return rescans.sum();
+	}
+
+	/**
+	 * Stops watching, the index keeps its files as they were
+	 */
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+		watchThread.interrupt();
+	}
+
+	@Override
+	public String toString() {
+		return "Loose files: " + size() + ", added: " + getAdded() + ", removed: " + getRemoved() + ", rescans: " + getRescans();
+	}
+
+	private static final class LooseFile {
+		final Path path;
+		final long folderHash;
+		final long fileHash;
+
+		LooseFile(Path path, long folderHash, long fileHash) {
+			this.path = path;
+			this.folderHash = folderHash;
+			this.fileHash = fileHash;
+		}
+	}
+}
@@ -1,62 +1,186 @@
 package bsa;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.zip.DataFormatException;
 
 import init.Settings;
+import me.yusaf.Logger;
 
 public class BsaManager {
+	private static final Logger logger = Logger.getInstance(BsaManager.class);
+
 	/**
-	 * bsaFiles is a map of records from all BSA archives and their corresponding BSA archives.<br>
+	 * All loaded BSA archives in the order they were registered, with the folder and file hashes of every record mapped to the last archive holding it.<br>
 	 * This is to easily get a BSA archive against a certain record to extract that record from that file, as game information holds records instead of archive
-	 * names.
+	 * names. Lookups read its current snapshot, so they never wait for or see half of a loading call on another thread.
 	 */
-	private static Map<String, BsaFile> bsaFiles;
+	private static final BsaVirtualFileSystem fileSystem = new BsaVirtualFileSystem();
+
+	private static volatile Executor loadExecutor = ForkJoinPool.commonPool();
+
+	private static volatile BsaAssetCache assetCache;
+
+	private static volatile BsaAsyncLoader asyncLoader;
+
+	private static volatile BsaPrefetcher prefetcher;
+
+	private static volatile BsaBufferPool bufferPool = new BsaBufferPool(64L * 1024 * 1024);
+
+	private static volatile BsaLooseFiles looseFiles;
+
+	private static volatile BsaContentIndex contentIndex;
+
+	private static File indexCacheFile;
 
 	/**
-	 * Although its name should be bsaFiles, this map is based on archive name and archive itself.
+	 * Archives restored from the index cache or parsed since, keyed by absolute path
 	 */
-	private static Map<String, BsaFile> archives;
+	private static Map<String, BsaFile> indexCache;
 
+	/**
+	 * Loads all .bsa and .ba2 archives of the data folder
+	 */
 	public static void initializeAllBsaLoading() {
 		FilenameFilter filter = new FilenameFilter() {
 			public boolean accept(File dir, String name) {
-				return name.endsWith(".bsa");
+				return name.endsWith(".bsa") || name.endsWith(".ba2");
 			}
 		};
 		initializeFilteredBsaLoading(filter);
 	}
 
-	public static void initializeFilteredBsaLoading(FilenameFilter filter) {
-		double start = System.nanoTime();
-		if (bsaFiles == null)
-			bsaFiles = new HashMap<>();
-		if (archives == null)
-			archives = new HashMap<>();
+	/**
+	 * Parses all archives accepted by filter concurrently on the load executor. Records are registered afterwards in listing order, so when two archives hold
+	 * the same record the one listed last wins, same as a serial load.
+	 * 
+	 * @param filter
+	 */
+	public static synchronized void initializeFilteredBsaLoading(FilenameFilter filter) {
 		File skyrimData = new File(Settings.SKYRIM_LOCATION);
 		File[] bsaTextureFiles = skyrimData.listFiles(filter);
-		Arrays.stream(bsaTextureFiles).forEach(file -> {
+		if (bsaTextureFiles == null)
+			return;
+		long loadStart = System.nanoTime();
+		Map<String, BsaFile> cached = readIndexCache();
+		AtomicBoolean reparsed = new AtomicBoolean();
+		List<CompletableFuture<BsaFile>> parsed = Arrays.stream(bsaTextureFiles).map(file -> CompletableFuture.supplyAsync(() -> {
+			long start = System.nanoTime();
 			try {
-				BsaFile bsaFile = new BsaFile(file);
-				archives.put(file.getName(), bsaFile);
+				BsaFile bsaFile = cached.get(file.getAbsolutePath());
+				if (bsaFile != null && bsaFile.isCurrent()) {
+					if (BsaFile.extraLogging)
+						logger.extra("Bsa Load Time [" + file.getName() + "] (cached): " + ((System.nanoTime() - start) / 1000000000d) + "s");
+					return bsaFile;
+				}
+				bsaFile = BsaFile.open(file);
+				reparsed.set(true);
+				if (BsaFile.extraLogging)
+					logger.extra("Bsa Load Time [" + file.getName() + "]: " + ((System.nanoTime() - start) / 1000000000d) + "s");
+				return bsaFile;
 			} catch (IOException e) {
 				e.printStackTrace();
+				return null;
 			}
-		});
-		System.out.println("Bsa Load Time: " + ((System.nanoTime() - start) / 1000000000) + "s");
+		}, loadExecutor)).collect(Collectors.toList());
+		List<BsaFile> order = new ArrayList<>();
+		for (int i = 0; i < bsaTextureFiles.length; i++) {
+			BsaFile bsaFile = parsed.get(i).join();
+			if (bsaFile == null)
+				continue;
+			order.add(bsaFile);
+			cached.put(bsaFile.getFilePath(), bsaFile);
+		}
+		List<BsaFile> replaced = fileSystem.mount(order);
+		System.out.println("Bsa Load Time: " + ((System.nanoTime() - loadStart) / 1000000000d) + "s");
+		updateContentIndex(contentIndex);
+		// Files may now resolve to other archives
+		BsaAssetCache cache = assetCache;
+		if (cache != null)
+			cache.clear();
+		// Archives replaced by one of the same name can not be looked up anymore, reads already under way may fail
+		for (BsaFile bsaFile : replaced) {
+			cached.values().remove(bsaFile);
+			try {
+				bsaFile.close();
+			} catch (IOException e) {
+				logger.exception(e);
+			}
+		}
+		if (indexCacheFile != null && reparsed.get()) {
+			try {
+				BsaIndexCache.write(indexCacheFile, cached.values());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Sets the file parsed archive headers are cached in. Archives whose size and modification time are unchanged since the cache was written are restored
+	 * from it instead of being parsed. Null disables the cache, which is the default.
+	 * 
+	 * @param cacheFile
+	 */
+	public static synchronized void setIndexCache(File cacheFile) {
+		indexCacheFile = cacheFile;
+		indexCache = null;
+	}
+
+	/**
+	 * Reads the index cache once, later calls return the same map so archives of all loading calls end up in the written cache
+	 * 
+	 * @return archives keyed by absolute path, empty if the cache is disabled
+	 */
+	private static Map<String, BsaFile> readIndexCache() {
+		if (indexCache == null) {
+			indexCache = new ConcurrentHashMap<>();
+			if (indexCacheFile != null) {
+				try {
+					indexCache.putAll(BsaIndexCache.read(indexCacheFile));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return indexCache;
+	}
+
+	/**
+	 * Sets the executor archives are parsed on, defaults to the common fork join pool
+	 * 
+	 * @param executor
+	 */
+	public static void setLoadExecutor(Executor executor) {
+		loadExecutor = executor;
 	}
 
 	public static void loadTextures() {
@@ -77,25 +201,503 @@ public class BsaManager {
 		BsaManager.initializeFilteredBsaLoading(filter);
 	}
 
+	/**
+	 * Loads a file from the last loaded archive holding it, or the loose file overriding it. With an asset cache set, archived files are decompressed once and
+	 * served from memory afterwards, the returned array is then shared and must not be modified.
+	 * 
+	 * @param filename
+	 * @return file bytes, null if neither an archive nor the loose files hold the file
+	 * @throws IOException
+	 * @throws DataFormatException
+	 */
 	public static byte[] getFileBytes(String filename) throws IOException, DataFormatException {
-		if (bsaFiles == null)
+		long start = BsaFile.getMetrics() == null ? 0 : System.nanoTime();
+		long folderHash = BsaHash.folderHashOfPath(filename);
+		long fileHash = BsaHash.fileHashOfPath(filename);
+		Path loose = getLooseFile(folderHash, fileHash);
+		if (loose != null)
+			try {
+				return Files.readAllBytes(loose);
+			} catch (NoSuchFileException e) {
+				// Deleted before the watch service reported it, the archived file is loaded instead
+			}
+		BsaFile bsa = getFile(filename, folderHash, fileHash);
+		int entry = bsa == null ? -1 : bsa.getEntries().find(folderHash, fileHash);
+		recordLookup(bsa, entry, start);
+		if (entry < 0)
 			return null;
-		BsaFile bsa = bsaFiles.get(filename);
-		return bsa.load(filename);
+		BsaAssetCache cache = assetCache;
+		if (cache == null)
+			return bsa.load(entry);
+		byte[] file = cache.get(cacheKey(bsa, entry), () -> bsa.load(entry));
+		if (file != null && !isCachedFile(bsa, entry, file))
+			return bsa.load(entry);
+		return file;
+	}
+
+	/**
+	 * Times a lookup by path in the metrics, counting it as an error if no archive holds the file, and tells the prefetcher about found entries
+	 * 
+	 * @param bsa
+	 *            archive the path resolved to, null if none
+	 * @param entry
+	 *            index of the file in bsa, negative if it is not there
+	 * @param start
+	 *            {@link System#nanoTime()} when the lookup began
+	 */
+	static void recordLookup(BsaFile bsa, int entry, long start) {
+		BsaMetrics metrics = BsaFile.getMetrics();
+		if (entry < 0) {
+			if (metrics != null)
+				metrics.error(bsa == null ? "" : bsa.getName(), BsaMetrics.Stage.LOOKUP, BsaMetrics.Codec.NONE);
+			return;
+		}
+		if (metrics != null)
+			metrics.record(bsa.getName(), BsaMetrics.Stage.LOOKUP, BsaMetrics.Codec.NONE, System.nanoTime() - start, 0);
+		BsaPrefetcher folderPrefetcher = prefetcher;
+		if (folderPrefetcher != null)
+			folderPrefetcher.accessed(bsa, entry);
+	}
+
+	/**
+	 * Loads a file from the last loaded archive holding it, or the loose file overriding it, into a direct buffer of the buffer pool, for uploading it with native calls such as
+	 * glCompressedTexImage2D without a copy on the heap. Files are decompressed straight into the buffer and are not put in the asset cache, a cached file is
+	 * copied from it.
+	 * 
+	 * @param filename
+	 * @return buffer holding the file between position 0 and its limit, give it back with {@link #releaseBuffer(ByteBuffer)}, null if neither an archive nor
+	 *         the loose files hold the file
+	 * @throws IOException
+	 * @throws DataFormatException
+	 */
+	public static ByteBuffer getFileBuffer(String filename) throws IOException, DataFormatException {
+		long folderHash = BsaHash.folderHashOfPath(filename);
+		long fileHash = BsaHash.fileHashOfPath(filename);
+		BsaBufferPool pool = bufferPool;
+		Path loose = getLooseFile(folderHash, fileHash);
+		if (loose != null)
+			try (FileChannel channel = FileChannel.open(loose, StandardOpenOption.READ)) {
+				ByteBuffer buffer = pool.acquire((int) channel.size());
+				try {
+					readFully(channel, buffer);
+				} catch (IOException | RuntimeException e) {
+					pool.release(buffer);
+					throw e;
+				}
+				return buffer.flip();
+			} catch (NoSuchFileException e) {
+				// Deleted before the watch service reported it, the archived file is loaded instead
+			}
+		BsaFile bsa = getFile(filename, folderHash, fileHash);
+		int entry = bsa == null ? -1 : bsa.getEntries().find(folderHash, fileHash);
+		if (entry < 0)
+			return null;
+		BsaPrefetcher folderPrefetcher = prefetcher;
+		if (folderPrefetcher != null)
+			folderPrefetcher.accessed(bsa, entry);
+		BsaAssetCache cache = assetCache;
+		byte[] cached = cache == null ? null : cache.peek(cacheKey(bsa, entry));
+		if (cached == null || !isCachedFile(bsa, entry, cached))
+			return bsa.load(entry, pool);
+		return pool.acquire(cached.length).put(cached).flip();
+	}
+
+	/**
+	 * Loads a file from the last loaded archive holding it, or the loose file overriding it, into destination, which may be a direct buffer owned by the
+	 * caller. Size it with {@link BsaFile#getLoadedSize(String)} of {@link #getFile(String)}, or the length of {@link BsaLooseFiles#getFile(String)}.
+	 * 
+	 * @param filename
+	 * @param destination
+	 *            buffer with room for the file from its position on, its position is advanced past the file
+	 * @return number of bytes written, -1 if neither an archive nor the loose files hold the file
+	 * @throws IOException
+	 * @throws DataFormatException
+	 */
+	public static int getFileBytes(String filename, ByteBuffer destination) throws IOException, DataFormatException {
+		long folderHash = BsaHash.folderHashOfPath(filename);
+		long fileHash = BsaHash.fileHashOfPath(filename);
+		Path loose = getLooseFile(folderHash, fileHash);
+		if (loose != null)
+			try (FileChannel channel = FileChannel.open(loose, StandardOpenOption.READ)) {
+				int size = (int) channel.size();
+				if (size > destination.remaining())
+					throw new BufferOverflowException();
+				ByteBuffer slice = destination.slice();
+				slice.limit(size);
+				readFully(channel, slice);
+				destination.position(destination.position() + size);
+				return size;
+			} catch (NoSuchFileException e) {
+				// Deleted before the watch service reported it, the archived file is loaded instead
+			}
+		BsaFile bsa = getFile(filename, folderHash, fileHash);
+		int entry = bsa == null ? -1 : bsa.getEntries().find(folderHash, fileHash);
+		if (entry < 0)
+			return -1;
+		BsaPrefetcher folderPrefetcher = prefetcher;
+		if (folderPrefetcher != null)
+			folderPrefetcher.accessed(bsa, entry);
+		return bsa.load(entry, destination);
+	}
+
+	/**
+	 * Gives a buffer returned by {@link #getFileBuffer(String)} back to the buffer pool. It must not be used afterwards, so release it only once the upload
+	 * has finished reading it.
+	 * 
+	 * @param buffer
+	 */
+	public static void releaseBuffer(ByteBuffer buffer) {
+		bufferPool.release(buffer);
+	}
+
+	/**
+	 * Sets the pool {@link #getFileBuffer(String)} takes direct buffers from, by default one keeping up to 64 MB of released buffers. Buffers taken from the
+	 * previous pool may still be released, they are then kept by the new one.
+	 * 
+	 * @param pool
+	 */
+	public static void setBufferPool(BsaBufferPool pool) {
+		bufferPool = pool;
+	}
+
+	/**
+	 * @return the pool of direct buffers with its allocation and reuse counters
+	 */
+	public static BsaBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Sets loose files which override archived files of the same path in all lookups, null to only read archives which is the default. The previous loose
+	 * files are not closed.
+	 * 
+	 * @param files
+	 */
+	public static void setLooseFiles(BsaLooseFiles files) {
+		looseFiles = files;
+	}
+
+	/**
+	 * @return loose files overriding archived files, null if none are set
+	 */
+	public static BsaLooseFiles getLooseFiles() {
+		return looseFiles;
+	}
+
+	/**
+	 * @return loose file overriding the archived file with given hashes, null if there is none or no loose files are set
+	 */
+	static Path getLooseFile(long folderHash, long fileHash) {
+		BsaLooseFiles files = looseFiles;
+		return files == null ? null : files.getFile(folderHash, fileHash);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new IOException("File shrank while reading it");
+	}
+
+	/**
+	 * Loads some mip levels of a texture from the last loaded archive holding it or the loose file overriding it, see {@link BsaFile#loadMips(String, int, int)}. Levels are not put in the
+	 * asset cache.
+	 * 
+	 * @param filename
+	 * @param firstLevel
+	 *            0 for the full size level
+	 * @param levelCount
+	 * @return header and the requested levels, null if neither an archive nor the loose files hold the file
+	 * @throws IOException
+	 * @throws DataFormatException
+	 */
+	public static BsaDdsHeader.Mips getTextureMips(String filename, int firstLevel, int levelCount) throws IOException, DataFormatException {
+		long folderHash = BsaHash.folderHashOfPath(filename);
+		long fileHash = BsaHash.fileHashOfPath(filename);
+		Path loose = getLooseFile(folderHash, fileHash);
+		if (loose != null)
+			try {
+				byte[] bytes = Files.readAllBytes(loose);
+				BsaDdsHeader header = BsaDdsHeader.parse(ByteBuffer.wrap(bytes, 0, Math.min(bytes.length, BsaDdsHeader.DX10_SIZE)), bytes.length);
+				return header.copyMips(bytes, 0, firstLevel, levelCount);
+			} catch (NoSuchFileException e) {
+				// Deleted before the watch service reported it, the archived file is loaded instead
+			}
+		BsaFile bsa = getFile(filename, folderHash, fileHash);
+		int entry = bsa == null ? -1 : bsa.getEntries().find(folderHash, fileHash);
+		if (entry < 0)
+			return null;
+		BsaPrefetcher folderPrefetcher = prefetcher;
+		if (folderPrefetcher != null)
+			folderPrefetcher.accessed(bsa, entry);
+		return bsa.loadMips(entry, firstLevel, levelCount);
+	}
+
+	/**
+	 * Opens a file of the last loaded archive holding it, or the loose file overriding it, for streaming, see {@link BsaFile#openStream(String)}
+	 * 
+	 * @param filename
+	 * @return stream of the file, null if neither an archive nor the loose files hold it
+	 * @throws IOException
+	 */
+	public static InputStream openStream(String filename) throws IOException {
+		long folderHash = BsaHash.folderHashOfPath(filename);
+		long fileHash = BsaHash.fileHashOfPath(filename);
+		Path loose = getLooseFile(folderHash, fileHash);
+		if (loose != null)
+			try {
+				return Files.newInputStream(loose);
+			} catch (NoSuchFileException e) {
+				// Deleted before the watch service reported it, the archived file is opened instead
+			}
+		BsaFile bsa = getFile(filename, folderHash, fileHash);
+		int entry = bsa == null ? -1 : bsa.getEntries().find(folderHash, fileHash);
+		if (entry < 0)
+			return null;
+		BsaPrefetcher folderPrefetcher = prefetcher;
+		if (folderPrefetcher != null)
+			folderPrefetcher.accessed(bsa, entry);
+		return bsa.openStream(entry);
+	}
+
+	/**
+	 * Loads a file without blocking the caller, see {@link BsaAsyncLoader#loadAsync(String, int)}. A default loader is started on first use unless one was set.
+	 * 
+	 * @param filename
+	 * @param priority
+	 *            higher priorities are served first, such as {@link BsaAsyncLoader#PRIORITY_VISIBLE}
+	 * @return future of the file, never null. It completes with null if neither an archive nor the loose files hold the file, and exceptionally if the file
+	 *         fails to load.
+	 */
+	public static CompletableFuture<ByteBuffer> loadAsync(String filename, int priority) {
+		BsaAsyncLoader loader = asyncLoader;
+		if (loader == null) {
+			synchronized (BsaManager.class) {
+				if (asyncLoader == null)
+					asyncLoader = new BsaAsyncLoader();
+				loader = asyncLoader;
+			}
+		}
+		return loader.loadAsync(filename, priority);
+	}
+
+	/**
+	 * Sets the loader used by {@link #loadAsync(String, int)}, the previous loader is not closed
+	 * 
+	 * @param loader
+	 */
+	public static void setAsyncLoader(BsaAsyncLoader loader) {
+		asyncLoader = loader;
+	}
+
+	/**
+	 * Extracts files below outputDirectory, each from the last loaded archive holding it, loose files overriding them are copied instead. Files are grouped by
+	 * archive and read in order of their offset, so every archive is read front to back once, while decompressing and writing runs in parallel on the load
+	 * executor.
+	 * 
+	 * @param filenames
+	 *            paths inside the archives, also used as paths below outputDirectory
+	 * @param outputDirectory
+	 * @return number of files written, files not in any archive or failing to extract are skipped
+	 * @throws IOException
+	 *             if an archive can not be read
+	 */
+	public static int extract(Collection<String> filenames, File outputDirectory) throws IOException {
+		BsaExtractor extractor = newExtractor(outputDirectory);
+		Set<Long> added = new HashSet<>();
+		for (String filename : filenames) {
+			long folderHash = BsaHash.folderHashOfPath(filename);
+			long fileHash = BsaHash.fileHashOfPath(filename);
+			Path loose = getLooseFile(folderHash, fileHash);
+			BsaFile bsa = getFile(filename, folderHash, fileHash);
+			int entry = bsa == null ? -1 : bsa.getEntries().find(folderHash, fileHash);
+			if (loose == null && entry < 0) {
+				logger.exception("File not in any archive " + filename);
+				continue;
+			}
+			if (!added.add(BsaHash.key(folderHash, fileHash)))
+				continue;
+			if (loose != null)
+				extractor.addLoose(loose, filename, entry < 0 ? null : bsa, entry);
+			else
+				extractor.add(bsa, entry, filename);
+		}
+		return extractor.run();
+	}
+
+	/**
+	 * Extracts all loaded files whose path matches glob below outputDirectory, see {@link #extract(Collection, File)}
+	 * 
+	 * @param glob
+	 *            case insensitive pattern over paths such as <code>textures/**&#47;*.dds</code>, <code>*</code> matches within a folder and <code>**</code>
+	 *            across folders
+	 * @param outputDirectory
+	 * @return number of files written
+	 * @throws IOException
+	 *             if an archive can not be read
+	 */
+	public static int extractMatching(String glob, File outputDirectory) throws IOException {
+		BsaVirtualFileSystem.Snapshot current = fileSystem.snapshot();
+		Pattern pattern = BsaGlob.compile(glob);
+		BsaExtractor extractor = newExtractor(outputDirectory);
+		for (BsaFile bsaFile : current.getArchives()) {
+			BsaEntryTable entries = bsaFile.getEntries();
+			for (int entry = 0; entry < entries.size(); entry++) {
+				if (!entries.isListed(entry))
+					continue;
+				String path = entries.getPath(entry);
+				long folderHash = entries.getFolderHash(entry);
+				long fileHash = entries.getFileHash(entry);
+				// Files held by several archives are extracted from the one they resolve to, unless a loose file overrides them
+				if (!pattern.matcher(path).matches() || current.getFile(path, folderHash, fileHash) != bsaFile)
+					continue;
+				Path loose = getLooseFile(folderHash, fileHash);
+				if (loose != null)
+					extractor.addLoose(loose, path, bsaFile, entry);
+				else
+					extractor.add(bsaFile, entry, path);
+			}
+		}
+		return extractor.run();
+	}
+
+	private static BsaExtractor newExtractor(File outputDirectory) {
+		return new BsaExtractor(outputDirectory, loadExecutor, 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Sets the prefetcher told about every file loaded through {@link #getFileBytes(String)} and {@link #openStream(String)}, null disables prefetching which
+	 * is the default. The previous prefetcher is not closed. To stage decompressed files give it the asset cache of {@link #getAssetCache()} and the file
+	 * system of {@link #getFileSystem()}.
+	 * 
+	 * @param folderPrefetcher
+	 */
+	public static void setPrefetcher(BsaPrefetcher folderPrefetcher) {
+		prefetcher = folderPrefetcher;
+	}
+
+	/**
+	 * Caches decompressed files returned by {@link #getFileBytes(String)} up to maxBytes in total
+	 * 
+	 * @param maxBytes
+	 *            0 disables the cache, which is the default
+	 */
+	public static void setAssetCache(long maxBytes) {
+		assetCache = maxBytes > 0 ? new BsaAssetCache(maxBytes) : null;
+	}
+
+	/**
+	 * @return the asset cache with its hit, miss and eviction counters, null if disabled
+	 */
+	public static BsaAssetCache getAssetCache() {
+		return assetCache;
+	}
+
+	/**
+	 * Sets the content index the asset cache keys files by, so files with identical contents in several archives are decompressed and cached once. The loaded
+	 * archives are indexed right away, archives loaded later when they are mounted or records are resolved to them. Null keys files by path, which is the default.
+	 * 
+	 * @param index
+	 */
+	public static synchronized void setContentIndex(BsaContentIndex index) {
+		updateContentIndex(index);
+		contentIndex = index;
+		// Cached files are keyed differently now
+		BsaAssetCache cache = assetCache;
+		if (cache != null)
+			cache.clear();
+	}
+
+	/**
+	 * @return the content index with its deduplication counters, null if files are cached by path
+	 */
+	public static BsaContentIndex getContentIndex() {
+		return contentIndex;
+	}
+
+	private static void updateContentIndex(BsaContentIndex index) {
+		if (index == null)
+			return;
+		// Taking the snapshot under the lock of the index keeps an update from undoing a later one
+		synchronized (index) {
+			try {
+				BsaVirtualFileSystem.Snapshot current = fileSystem.snapshot();
+				List<BsaFile> archives = new ArrayList<>(current.getArchives());
+				archives.addAll(current.getOverrides().values());
+				index.update(archives);
+			} catch (InterruptedIOException e) {
+				// Archives left out are cached by path
+				Thread.currentThread().interrupt();
+				logger.exception(e);
+			}
+		}
+	}
+
+	/**
+	 * Content fingerprints have the top bit of their key set and path keys have it cleared, so a fingerprint never serves the file cached for a path.
+	 * 
+	 * @param bsa
+	 * @param entry
+	 * @return key of the entry in the asset cache, its content fingerprint if the content index holds the entry and its path otherwise
+	 */
+	static long cacheKey(BsaFile bsa, int entry) {
+		BsaContentIndex index = contentIndex;
+		long fingerprint = index == null ? 0 : index.getKey(bsa, entry);
+		if (fingerprint != 0)
+			return fingerprint | Long.MIN_VALUE;
+		BsaEntryTable entries = bsa.getEntries();
+		return BsaHash.key(entries.getFolderHash(entry), entries.getFileHash(entry)) & Long.MAX_VALUE;
+	}
+
+	/**
+	 * Confirms a file found in the asset cache under a content fingerprint has the size the entry decompresses to. Entries are only indexed under a
+	 * fingerprint if their decoding matches, so a file that passes is not the file of another fingerprint sharing the key. Files cached by path are not
+	 * checked, their size is only known after reading the archive.
+	 * 
+	 * @param bsa
+	 * @param entry
+	 * @param cached
+	 * @return true if cached may be served for the entry
+	 */
+	static boolean isCachedFile(BsaFile bsa, int entry, byte[] cached) {
+		BsaContentIndex index = contentIndex;
+		if (index == null || index.getKey(bsa, entry) == 0)
+			return true;
+		if (cached.length == index.getLoadedSize(bsa, entry))
+			return true;
+		logger.exception("Cached file of " + bsa.getEntries().getPath(entry) + " in " + bsa.getName() + " does not match its size, loading it from the archive");
+		return false;
 	}
 
 	/**
 	 * @param filename
 	 *            is name of the internal file in BSA archive.
-	 * @return
+	 * @return the last loaded archive holding the file, null if no archive holds it
 	 */
 	public static BsaFile getFile(String filename) {
-		if (bsaFiles == null)
-			return null;
-		return bsaFiles.get(filename);
+		return getFile(filename, BsaHash.folderHashOfPath(filename), BsaHash.fileHashOfPath(filename));
+	}
+
+	static BsaFile getFile(String filename, long folderHash, long fileHash) {
+		return fileSystem.snapshot().getFile(filename, folderHash, fileHash);
+	}
+
+	/**
+	 * @return the file system of all loaded archives, archives can be mounted and unmounted on it at runtime
+	 */
+	public static BsaVirtualFileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	/**
+	 * @return folders and files of all loaded archives for prefix, extension and glob queries, built once per loading call
+	 */
+	public static BsaFolderTree getFolderTree() {
+		return fileSystem.snapshot().getFolderTree();
 	}
 
 	public static BsaFile getFileContaining(String... filename) {
+		Map<String, BsaFile> archives = new HashMap<>();
+		fileSystem.snapshot().getArchives().forEach(bsaFile -> archives.put(BsaVirtualFileSystem.nameOf(bsaFile), bsaFile));
 		Set<String> nks = archives.keySet().stream().map(k -> k).collect(Collectors.toSet());
 		List<String> filenameList = Arrays.asList(filename).stream().map(m -> m.toLowerCase()).collect(Collectors.toList());
 		HashMap<String, Integer> matchRating = new HashMap<>(nks.size());
@@ -106,7 +708,6 @@ public class BsaManager {
 					matchRating.replace(k, matchRating.get(k) + 1);
 				}
 			});
-			System.out.println("Rating: " + k + " <" + matchRating.get(k) + ">");
 		});
 		if (matchRating.size() == 1 && matchRating.get(nks.stream().collect(Collectors.toList()).get(0)) > 0) {
 			return archives.get(matchRating.keySet().stream().collect(Collectors.toList()).get(0));
@@ -115,21 +716,99 @@ public class BsaManager {
 		return archives.get(matched.get().getKey());
 	}
 
+	/**
+	 * Resolves a record to the given archive regardless of load order. With a content index set, an archive that is not indexed yet is hashed on the load
+	 * executor afterwards, which reads the whole archive. Its files are cached by path until then.
+	 */
 	public static void saveBsaFileRecord(String nameWithPath, BsaFile bsaFile) {
-		bsaFiles.put(nameWithPath, bsaFile);
+		fileSystem.override(nameWithPath, bsaFile);
+		// The archive may not be mounted, its files are cached by content all the same
+		BsaContentIndex index = contentIndex;
+		if (index != null)
+			CompletableFuture.runAsync(() -> updateContentIndex(index), loadExecutor);
 	}
 
+	/**
+	 * Builds a map of every loaded record and the archive it resolves to. This creates one map entry per record, prefer {@link #getFile(String)} for lookups.
+	 * 
+	 * @return new map on every call, null if nothing is loaded
+	 */
 	public static Map<String, BsaFile> getAllBsaFileRecords() {
-		return bsaFiles;
+		BsaVirtualFileSystem.Snapshot current = fileSystem.snapshot();
+		if (current.getArchives().isEmpty())
+			return null;
+		Map<String, BsaFile> records = new HashMap<>();
+		for (BsaFile bsaFile : current.getArchives()) {
+			bsaFile.getFileRecords().keySet().forEach(nameWithPath -> records.put(nameWithPath, bsaFile));
+		}
+		records.putAll(current.getOverrides());
+		return records;
+	}
+
+	/**
+	 * Closes channels of all loaded archives, records remain in memory but can no longer be loaded.
+	 */
+	public static synchronized void closeAll() {
+		// Closed archives can not be handed out again by the index cache
+		indexCache = null;
+		BsaAssetCache cache = assetCache;
+		if (cache != null)
+			cache.clear();
+		fileSystem.snapshot().getArchives().forEach(bsaFile -> {
+			try {
+				bsaFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Writes a file to out, the loose file overriding it is copied instead. Uncompressed archived files are transferred from the archive channel to the
+	 * output file without being copied onto the heap.
+	 * 
+	 * @param out
+	 * @param filename
+	 * @param file
+	 *            archive to write the file from, null for the loose file or the last loaded archive holding it
+	 * @return false if the file is not found, out is then left untouched
+	 * @throws IOException
+	 * @throws DataFormatException
+	 */
+	public static boolean saveToDrive(File out, String filename, BsaFile file) throws IOException, DataFormatException {
+		long folderHash = BsaHash.folderHashOfPath(filename);
+		long fileHash = BsaHash.fileHashOfPath(filename);
+		FileChannel loose = null;
+		Path looseFile = file == null ? getLooseFile(folderHash, fileHash) : null;
+		if (looseFile != null)
+			try {
+				loose = FileChannel.open(looseFile, StandardOpenOption.READ);
+			} catch (NoSuchFileException e) {
+				// Deleted before the watch service reported it, the archived file is written instead
+			}
+		if (loose != null) {
+			try (FileChannel in = loose; FileChannel os = openOutput(out)) {
+				long size = in.size();
+				for (long position = 0; position < size;)
+					position += in.transferTo(position, size - position, os);
+			}
+			return true;
+		}
+		BsaFile bsa = file != null ? file : getFile(filename, folderHash, fileHash);
+		int entry = bsa == null ? -1 : bsa.getEntries().find(folderHash, fileHash);
+		if (entry < 0) {
+			BsaMetrics metrics = BsaFile.getMetrics();
+			if (metrics != null)
+				metrics.error(bsa == null ? "" : bsa.getName(), BsaMetrics.Stage.LOOKUP, BsaMetrics.Codec.NONE);
+			return false;
+		}
+		try (FileChannel os = openOutput(out)) {
+			bsa.transferTo(filename, os);
+		}
+		return true;
 	}
 
-	public static void saveToDrive(File out, String filename, BsaFile file) throws IOException, DataFormatException {
-		byte[] b = getFileBytes(filename);
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		FileOutputStream os = new FileOutputStream(out);
-		bos.writeBytes(b);
-		bos.writeTo(os);
-		bos.close();
-		os.close();
+	private static FileChannel openOutput(File out) throws IOException {
+		return FileChannel.open(out.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
 	}
 }
@@ -0,0 +1,63 @@
+package bsa;
+
+/**
+ * Receives timings of archive operations, set with {@link BsaFile#setMetrics(BsaMetrics)}. Calls come from every loading thread at once and sit on the load
+ * path, implementations should be lock free and must not allocate per call. {@link BsaMetricsRegistry} keeps histograms of them. Without metrics set no time
+ * is taken at all.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public interface BsaMetrics {
+	/**
+	 * Steps of loading a file
+	 */
+	enum Stage {
+		/**
+		 * Parsing the header of an archive
+		 */
+		OPEN,
+		/**
+		 * Finding an entry by its path
+		 */
+		LOOKUP,
+		/**
+		 * Reading stored bytes from the archive, once per positional read so compressed entries take two, bytes count what was read
+		 */
+		READ,
+		/**
+		 * Decompressing an entry, bytes count what was decoded
+		 */
+		DECOMPRESS
+	}
+
+	/**
+	 * How an entry is stored
+	 */
+	enum Codec {
+		NONE, ZLIB, LZ4
+	}
+
+	/**
+	 * @param archive
+	 *            name of the archive, see {@link BsaFile#getName()}
+	 * @param stage
+	 * @param codec
+	 *            of the entry, {@link Codec#NONE} for uncompressed entries and for stages not tied to an entry
+	 * @param nanos
+	 *            time taken
+	 * @param bytes
+	 *            bytes read or decoded, 0 where the stage moves no data
+	 */
+	void record(String archive, Stage stage, Codec codec, long nanos, long bytes);
+
+	/**
+	 * Counts a failed operation, such as a path not in the archive, a failed read or corrupt data
+	 *
+	 * @param archive
+	 *            name of the archive, empty for paths no loaded archive holds
+	 * @param stage
+	 * @param codec
+	 */
+	void error(String archive, Stage stage, Codec codec);
+}
@@ -0,0 +1,195 @@
+package bsa;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a latency histogram with byte and error counters for every archive, stage and codec. Histograms have one bucket per power of two nanoseconds, so
+ * recording is a few atomic adds without locks or allocation once an archive has been seen.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public class BsaMetricsRegistry implements BsaMetrics {
+	private static final Stage[] STAGES = Stage.values();
+	private static final Codec[] CODECS = Codec.values();
+
+	/**
+	 * Series of every archive, indexed by stage and codec
+	 */
+	private final Map<String, Series[]> archives = new ConcurrentHashMap<>();
+
+	@Override
+	public void record(String archive, Stage stage, Codec codec, long nanos, long bytes) {
+		series(archive, stage, codec).add(nanos, bytes);
+	}
+
+	@Override
+	public void error(String archive, Stage stage, Codec codec) {
+		series(archive, stage, codec).errors.increment();
+	}
+
+	private Series series(String archive, Stage stage, Codec codec) {
+		Series[] series = archives.get(archive);
+		if (series == null) {
+			series = archives.computeIfAbsent(archive, a -> {
+				Series[] created = new Series[STAGES.length * CODECS.length];
+				for (int i = 0; i < created.length; i++) {
+					created[i] = new Series();
+				}
+				return created;
+			});
+		}
+		return series[stage.ordinal() * CODECS.length + codec.ordinal()];
+	}
+
+	/**
+	 * @param archive
+	 * @param stage
+	 * @param codec
+	 * @return recordings of one archive, empty if the archive has not been seen
+	 */
+	public Series get(String archive, Stage stage, Codec codec) {
+		Series[] series = archives.get(archive);
+		return series == null ? new Series() : series[stage.ordinal() * CODECS.length + codec.ordinal()];
+	}
+
+	/**
+	 * @param stage
+	 * @param codec
+	 * @return recordings of all archives merged
+	 */
+	public Series get(Stage stage, Codec codec) {
+		Series total = new Series();
+		archives.values().forEach(series -> total.addAll(series[stage.ordinal() * CODECS.length + codec.ordinal()]));
+		return total;
+	}
+
+	/**
+	 * Bytes decoded per second spent reading and decompressing, counting only loads that reached the archive. Files served by a cache are not part of it.
+	 *
+	 * @param archive
+	 *            null for all archives
+	 * @return bytes per second, 0 if nothing was loaded
+	 */
+	public double getThroughput(String archive) {
+		long bytes = 0;
+		long nanos = 0;
+		for (Codec codec : CODECS) {
+			Series read = archive == null ? get(Stage.READ, codec) : get(archive, Stage.READ, codec);
+			Series decompress = archive == null ? get(Stage.DECOMPRESS, codec) : get(archive, Stage.DECOMPRESS, codec);
+			// Uncompressed files are done once read
+			bytes += codec == Codec.NONE ? read.getBytes() : decompress.getBytes();
+			nanos += read.getNanos() + decompress.getNanos();
+		}
+		return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+	}
+
+	/**
+	 * Drops all recordings
+	 */
+	public void clear() {
+		archives.clear();
+	}
+
+	/**
+	 * @return one line per archive, stage and codec with recordings, with count, errors, bytes and latency percentiles
+	 */
+	@Override
+	public String toString() {
+		StringBuilder report = new StringBuilder();
+		new TreeMap<>(archives).forEach((archive, series) -> {
+			for (int i = 0; i < series.length; i++) {
+				Series s = series[i];
+				if (s.getCount() == 0 && s.getErrors() == 0) {
+					continue;
+				}
+				report.append(archive).append(' ').append(STAGES[i / CODECS.length]).append(' ').append(CODECS[i % CODECS.length]).append(": ").append(s)
+						.append('\n');
+			}
+		});
+		report.append(String.format("throughput %.1f MB/s", getThroughput(null) / (1024 * 1024)));
+		return report.toString();
+	}
+
+	/**
+	 * Recordings of one archive, stage and codec
+	 */
+	public static final class Series {
+		/**
+		 * Bucket i counts durations below 2^i nanoseconds and at least 2^(i-1)
+		 */
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+
+		void add(long duration, long byteCount) {
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(duration, 0)));
+			count.increment();
+			nanos.add(duration);
+			bytes.add(byteCount);
+		}
+
+		void addAll(Series other) {
+			for (int i = 0; i < 64; i++) {
+				buckets.addAndGet(i, other.buckets.get(i));
+			}
+			count.add(other.getCount());
+			nanos.add(other.getNanos());
+			bytes.add(other.getBytes());
+			errors.add(other.getErrors());
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * @return total time of all recordings
+		 */
+		public long getNanos() {
+			return nanos.sum();
+		}
+
+		public long getBytes() {
+			return bytes.sum();
+		}
+
+		public long getErrors() {
+			return errors.sum();
+		}
+
+		/**
+		 * @param percentile
+		 *            between 0 and 100
+		 * @return upper bound in nanoseconds of the bucket holding the percentile, within a factor of two of the exact value, 0 without recordings
+		 */
+		public long getPercentile(double percentile) {
+			long total = 0;
+			for (int i = 0; i < 64; i++) {
+				total += buckets.get(i);
+			}
+			long rank = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < 64; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0) {
+					return i == 63 ? Long.MAX_VALUE : 1L << i;
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			long n = getCount();
+			return String.format("count %d, errors %d, bytes %d, mean %d ns, p50 < %d ns, p99 < %d ns, max < %d ns", n, getErrors(), getBytes(),
+					n == 0 ? 0 : getNanos() / n, getPercentile(50), getPercentile(99), getPercentile(100));
+		}
+	}
+}
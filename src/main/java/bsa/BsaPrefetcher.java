@@ -0,0 +1,232 @@
+package bsa;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+
+/**
+ * Reads ahead the folders a load is likely to be followed by. Assets are requested in folder clusters, so when a thread moves on to another folder the rest
+ * of that folder is brought into memory in the background, together with the folder that followed it last time and, for meshes, the folder of the same name
+ * below textures. Optionally the files of those folders are decompressed into a staging cache, such as the asset cache of {@link BsaManager}.<br>
+ * Prefetching is best effort, requests are dropped while the background thread is behind and failures are ignored. Set it with
+ * {@link BsaManager#setPrefetcher(BsaPrefetcher)}.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public class BsaPrefetcher implements AutoCloseable {
+	private static final int MAX_TRANSITIONS = 4096;
+	private static final int MAX_RECENT = 256;
+
+	private final BsaVirtualFileSystem fileSystem;
+	private final int maxReadAhead;
+	private final BsaAssetCache staging;
+	private final int maxStaged;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Folder each folder was last followed by on the same thread, keyed by folder hash
+	 */
+	private final Map<Long, Long> transitions = new LinkedHashMap<>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+			return size() > MAX_TRANSITIONS;
+		}
+	};
+	/**
+	 * Folders read ahead lately, these are not read again
+	 */
+	private final Map<Long, Boolean> recent = new LinkedHashMap<>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+			return size() > MAX_RECENT;
+		}
+	};
+	private final ThreadLocal<long[]> lastFolder = ThreadLocal.withInitial(() -> new long[1]);
+
+	private final LongAdder folders = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder staged = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * Reads ahead without decompressing
+	 *
+	 * @param fileSystem
+	 *            archives predicted folders are looked up in
+	 * @param maxReadAhead
+	 *            bytes read ahead per folder at most
+	 */
+	public BsaPrefetcher(BsaVirtualFileSystem fileSystem, int maxReadAhead) {
+		this(fileSystem, maxReadAhead, null, 0);
+	}
+
+	/**
+	 * @param fileSystem
+	 *            archives predicted folders are looked up in
+	 * @param maxReadAhead
+	 *            bytes read ahead per folder at most
+	 * @param staging
+	 *            cache decompressed files are put in, keyed like {@link BsaManager} keys its asset cache, null to only read ahead
+	 * @param maxStaged
+	 *            files decompressed per folder at most
+	 */
+	public BsaPrefetcher(BsaVirtualFileSystem fileSystem, int maxReadAhead, BsaAssetCache staging, int maxStaged) {
+		this.fileSystem = fileSystem;
+		this.maxReadAhead = maxReadAhead;
+		this.staging = staging;
+		this.maxStaged = maxStaged;
+		executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(64), runnable -> {
+			Thread thread = new Thread(runnable, "BSA prefetch");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}, (runnable, pool) -> dropped.increment());
+	}
+
+	/**
+	 * Tells the prefetcher an entry is being loaded. Loads from the folder the calling thread loaded from last return at once, moving on to another folder
+	 * queues its read ahead.
+	 *
+	 * @param archive
+	 * @param entry
+	 */
+	void accessed(BsaFile archive, int entry) {
+		long folderHash = archive.getEntries().getFolderHash(entry);
+		long[] last = lastFolder.get();
+		long previous = last[0];
+		if (previous == folderHash) {
+			return;
+		}
+		last[0] = folderHash;
+		Long predicted;
+		synchronized (transitions) {
+			if (previous != 0) {
+				transitions.put(previous, folderHash);
+			}
+			predicted = transitions.get(folderHash);
+		}
+		BsaEntryTable entries = archive.getEntries();
+		String folderName = entries.getFolderName(entries.getFolderIndex(entry));
+		executor.execute(() -> {
+			BsaVirtualFileSystem.Snapshot snapshot = fileSystem.snapshot();
+			prefetch(snapshot, folderHash);
+			if (predicted != null) {
+				prefetch(snapshot, predicted);
+			}
+			if (folderName.startsWith("meshes\\")) {
+				prefetch(snapshot, BsaHash.folderHash("textures" + folderName.substring(6)));
+			}
+		});
+	}
+
+	/**
+	 * Reads ahead a folder of the last mounted archive holding it, then stages its files
+	 */
+	private void prefetch(BsaVirtualFileSystem.Snapshot snapshot, long folderHash) {
+		synchronized (recent) {
+			if (recent.put(folderHash, Boolean.TRUE) != null) {
+				return;
+			}
+		}
+		for (int i = snapshot.getArchives().size() - 1; i >= 0; i--) {
+			BsaFile archive = snapshot.getArchives().get(i);
+			BsaEntryTable entries = archive.getEntries();
+			int folder = entries.findFolder(folderHash);
+			if (folder < 0) {
+				continue;
+			}
+			int first = entries.getFolderFirstFile(folder);
+			int count = entries.getFolderFileCount(folder);
+			if (count == 0) {
+				return;
+			}
+			// Files of a folder are usually stored next to each other
+			long start = Long.MAX_VALUE;
+			long end = 0;
+			for (int entry = first; entry < first + count; entry++) {
+				long offset = entries.getOffset(entry);
+				start = Math.min(start, offset);
+				end = Math.max(end, offset + entries.getSize(entry));
+			}
+			int length = (int) Math.min(end - start, maxReadAhead);
+			try {
+				archive.readAhead(start, length);
+				folders.increment();
+				bytes.add(length);
+				if (staging != null) {
+					stage(snapshot, archive, first, Math.min(count, maxStaged));
+				}
+			} catch (IOException | DataFormatException | RuntimeException e) {
+				// Loading the file later reports the problem
+			}
+			return;
+		}
+	}
+
+	private void stage(BsaVirtualFileSystem.Snapshot snapshot, BsaFile archive, int first, int count) throws IOException, DataFormatException {
+		BsaEntryTable entries = archive.getEntries();
+		for (int entry = first; entry < first + count; entry++) {
+			long folderHash = entries.getFolderHash(entry);
+			long fileHash = entries.getFileHash(entry);
+			long key = BsaManager.cacheKey(archive, entry);
+			String path = entries.getPath(entry);
+			// Files another archive wins for would be staged under the wrong contents
+			if (path == null || snapshot.getFile(path, folderHash, fileHash) != archive || staging.peek(key) != null) {
+				continue;
+			}
+			staging.put(key, archive.load(entry));
+			staged.increment();
+		}
+	}
+
+	/**
+	 * @return folders read ahead so far
+	 */
+	public long getFolders() {
+		return folders.sum();
+	}
+
+	/**
+	 * @return bytes read ahead so far
+	 */
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * @return files decompressed into the staging cache so far
+	 */
+	public long getStaged() {
+		return staged.sum();
+	}
+
+	/**
+	 * @return requests dropped because the background thread was behind
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Stops the background thread, queued read ahead is dropped
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "Prefetched folders: " + getFolders() + ", bytes: " + getBytes() + ", staged: " + getStaged() + ", dropped: " + getDropped();
+	}
+}
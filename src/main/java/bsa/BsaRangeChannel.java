@@ -0,0 +1,63 @@
+package bsa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a range of an archive with positional reads, straight into the buffers of the caller. Any number of ranges can be open on the same archive at once,
+ * closing one leaves the archive open.
+ *
+ * @author Yusaf Ali
+ *
+ */
+final class BsaRangeChannel implements ReadableByteChannel {
+	private final BsaFile archive;
+	private long position;
+	private final long end;
+	private volatile boolean open = true;
+
+	/**
+	 * @param archive
+	 * @param position
+	 *            archive offset of the first byte
+	 * @param count
+	 *            number of bytes in the range
+	 */
+	BsaRangeChannel(BsaFile archive, long position, long count) {
+		this.archive = archive;
+		this.position = position;
+		this.end = position + count;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		if (position >= end) {
+			return -1;
+		}
+		int n = (int) Math.min(dst.remaining(), end - position);
+		int limit = dst.limit();
+		dst.limit(dst.position() + n);
+		try {
+			archive.readFully(dst, position);
+		} finally {
+			dst.limit(limit);
+		}
+		position += n;
+		return n;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+}
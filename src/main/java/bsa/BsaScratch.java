@@ -0,0 +1,131 @@
+package bsa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression state kept per thread. Loads on the same thread reuse one Inflater and one buffer for compressed data, so decoding an entry allocates nothing
+ * besides its destination. Writers reuse one Deflater.
+ *
+ * @author Yusaf Ali
+ *
+ */
+final class BsaScratch {
+	/**
+	 * Compressed data larger than this is read into a one off array, so a single huge entry does not stay pinned to the thread
+	 */
+	private static final int MAX_RETAINED = 4 * 1024 * 1024;
+
+	private static final ThreadLocal<BsaScratch> SCRATCH = ThreadLocal.withInitial(BsaScratch::new);
+
+	private final Inflater inflater = new Inflater();
+	/**
+	 * Embedded name with its length byte followed by the original size
+	 */
+	private final ByteBuffer prefix = ByteBuffer.allocate(1 + 255 + 4).order(ByteOrder.LITTLE_ENDIAN);
+	private ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+	private Deflater deflater;
+
+	private BsaScratch() {
+	}
+
+	/**
+	 * @return scratch of the calling thread, must not be handed to other threads
+	 */
+	static BsaScratch get() {
+		return SCRATCH.get();
+	}
+
+	/**
+	 * @return cleared prefix buffer limited to length bytes
+	 */
+	ByteBuffer prefix(int length) {
+		prefix.clear().limit(length);
+		return prefix;
+	}
+
+	/**
+	 * @return cleared heap buffer limited to length bytes, grown if needed
+	 */
+	ByteBuffer input(int length) {
+		if (length > input.capacity()) {
+			if (length > MAX_RETAINED) {
+				return ByteBuffer.allocate(length);
+			}
+			input = ByteBuffer.allocate(Math.max(length, Math.min(input.capacity() * 2, MAX_RETAINED)));
+		}
+		input.clear().limit(length);
+		return input;
+	}
+
+	/**
+	 * Inflates a whole zlib stream from src into dst, calling inflate until the stream is finished
+	 *
+	 * @param src
+	 *            compressed stream, consumed
+	 * @param dst
+	 *            heap or direct buffer, filled from its position up to its limit at most
+	 * @return number of bytes written to dst
+	 * @throws DataFormatException
+	 *             if the stream is corrupt, truncated or larger than the remaining bytes of dst
+	 */
+	int inflate(ByteBuffer src, ByteBuffer dst) throws DataFormatException {
+		inflater.reset();
+		try {
+			inflater.setInput(src);
+			int total = 0;
+			while (!inflater.finished()) {
+				int n = inflater.inflate(dst);
+				total += n;
+				if (n == 0) {
+					if (inflater.needsDictionary()) {
+						throw new DataFormatException("Zlib streams with dictionary are not supported");
+					}
+					if (inflater.needsInput()) {
+						throw new DataFormatException("Truncated zlib stream");
+					}
+					if (!dst.hasRemaining()) {
+						throw new DataFormatException("Zlib stream exceeds original size");
+					}
+				}
+			}
+			return total;
+		} finally {
+			// Drops the reference to src
+			inflater.reset();
+		}
+	}
+
+	/**
+	 * Compresses data into a zlib stream
+	 *
+	 * @param data
+	 * @return compressed stream
+	 */
+	byte[] deflate(byte[] data) {
+		if (deflater == null) {
+			deflater = new Deflater();
+		}
+		deflater.reset();
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] out = new byte[Math.max(64, data.length / 2)];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				length += deflater.deflate(out, length, out.length - length);
+			}
+			return Arrays.copyOf(out, length);
+		} finally {
+			// Drops the reference to data
+			deflater.reset();
+		}
+	}
+}
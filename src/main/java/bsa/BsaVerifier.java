@@ -0,0 +1,392 @@
+package bsa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+
+/**
+ * Checks every entry of archives without loading them for use. Entries are read front to back in chunks of a few megabytes, like {@link BsaManager#extract},
+ * and chunks are checked in parallel on an executor. For every entry it checks that
+ * <ul>
+ * <li>offset and size lie within the archive file</li>
+ * <li>folder and file hashes match the hashes of the folder and file names</li>
+ * <li>an embedded name matches the path of the entry</li>
+ * <li>compressed data decodes to exactly its original size</li>
+ * </ul>
+ * Hashes and embedded names can only be checked in archives with file names. BA2 archives are indexed under hashes computed from their name table, so
+ * their hashes are not checked.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public class BsaVerifier {
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	private static final int MAX_GAP = 64 * 1024;
+	private static final int MAX_RATIO = 1032;
+
+	/**
+	 * What is wrong with an entry
+	 */
+	public enum Kind {
+		OUT_OF_BOUNDS, HASH_MISMATCH, NAME_MISMATCH, CORRUPT, READ_ERROR
+	}
+
+	private final Executor executor;
+	private final int maxChunks;
+
+	/**
+	 * Checks on the common fork join pool
+	 */
+	public BsaVerifier() {
+		this(ForkJoinPool.commonPool(), 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param executor
+	 *            checks chunks of entries
+	 * @param maxChunks
+	 *            number of chunks read ahead of the executor at most
+	 */
+	public BsaVerifier(Executor executor, int maxChunks) {
+		this.executor = executor;
+		this.maxChunks = maxChunks;
+	}
+
+	/**
+	 * Verifies all archives in the directory given as argument and prints the report as JSON, exits with status 1 if a problem was found
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		Report report = new BsaVerifier().verifyDirectory(new File(args.length > 0 ? args[0] : "."));
+		System.out.println(report.toJson());
+		System.exit(report.isValid() ? 0 : 1);
+	}
+
+	/**
+	 * Verifies all archives in a directory, such as the data folder of a mod install
+	 *
+	 * @param directory
+	 * @return report over all archives, archives that can not be parsed are reported as a read error of the whole archive
+	 * @throws InterruptedIOException
+	 */
+	public Report verifyDirectory(File directory) throws InterruptedIOException {
+		File[] files = directory.listFiles((dir, name) -> name.toLowerCase().endsWith(".bsa") || name.toLowerCase().endsWith(".ba2"));
+		Report report = new Report();
+		if (files == null) {
+			return report;
+		}
+		for (File file : files) {
+			try (BsaFile archive = BsaFile.open(file)) {
+				verify(archive, report);
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException | RuntimeException e) {
+				report.add(new Problem(file.toString(), null, -1, Kind.READ_ERROR, String.valueOf(e)));
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * @param archives
+	 * @return report over all archives
+	 * @throws InterruptedIOException
+	 */
+	public Report verify(Collection<BsaFile> archives) throws InterruptedIOException {
+		Report report = new Report();
+		for (BsaFile archive : archives) {
+			verify(archive, report);
+		}
+		return report;
+	}
+
+	private void verify(BsaFile archive, Report report) throws InterruptedIOException {
+		report.archives.incrementAndGet();
+		long fileSize = new File(archive.getFilePath()).length();
+		BsaEntryTable entries = archive.getEntries();
+		List<Integer> sorted = new ArrayList<>(entries.size());
+		for (int entry = 0; entry < entries.size(); entry++) {
+			report.entries.incrementAndGet();
+			long offset = entries.getOffset(entry);
+			if (offset + entries.getSize(entry) > fileSize || entries.getSize(entry) < 0) {
+				report.add(problem(archive, entry, Kind.OUT_OF_BOUNDS, "Entry of " + entries.getSize(entry) + " bytes at " + offset + " exceeds archive of "
+						+ fileSize + " bytes"));
+				continue;
+			}
+			checkHashes(archive, entry, report);
+			sorted.add(entry);
+		}
+		sorted.sort(Comparator.comparingLong(entry -> entries.getOffset(entry)));
+		Semaphore inFlight = new Semaphore(maxChunks);
+		List<CompletableFuture<Void>> pending = new ArrayList<>();
+		try {
+			int i = 0;
+			while (i < sorted.size()) {
+				long start = entries.getOffset(sorted.get(i));
+				long end = start + entries.getSize(sorted.get(i));
+				int j = i + 1;
+				while (j < sorted.size()) {
+					long offset = entries.getOffset(sorted.get(j));
+					long entryEnd = offset + entries.getSize(sorted.get(j));
+					if (offset - end > MAX_GAP || Math.max(end, entryEnd) - start > CHUNK_SIZE) {
+						break;
+					}
+					end = Math.max(end, entryEnd);
+					j++;
+				}
+				try {
+					inFlight.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while verifying " + archive.getName());
+				}
+				List<Integer> part = sorted.subList(i, j);
+				byte[] chunk = new byte[(int) (end - start)];
+				try {
+					archive.readFully(ByteBuffer.wrap(chunk), start);
+				} catch (IOException e) {
+					inFlight.release();
+					for (int entry : part) {
+						report.add(problem(archive, entry, Kind.READ_ERROR, String.valueOf(e)));
+					}
+					i = j;
+					continue;
+				}
+				long chunkStart = start;
+				pending.add(CompletableFuture.runAsync(() -> {
+					try {
+						for (int entry : part) {
+							checkData(archive, entry, chunk, (int) (entries.getOffset(entry) - chunkStart), report);
+						}
+					} finally {
+						inFlight.release();
+					}
+				}, executor));
+				report.bytes.addAndGet(chunk.length);
+				i = j;
+			}
+		} finally {
+			CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+		}
+	}
+
+	private static void checkHashes(BsaFile archive, int entry, Report report) {
+		BsaEntryTable entries = archive.getEntries();
+		// Hashes of BA2 entries are computed from their names when the archive is read, they always match
+		if (archive instanceof Ba2File || !entries.hasName(entry)) {
+			return;
+		}
+		String folder = entries.getFolderName(entries.getFolderIndex(entry));
+		String name = entries.getLowerName(entry);
+		if (BsaHash.folderHash(folder) != entries.getFolderHash(entry)) {
+			report.add(problem(archive, entry, Kind.HASH_MISMATCH, "Folder hash " + Long.toHexString(entries.getFolderHash(entry)) + " is not the hash of "
+					+ folder));
+		}
+		if (BsaHash.fileHash(name) != entries.getFileHash(entry)) {
+			report.add(problem(archive, entry, Kind.HASH_MISMATCH, "File hash " + Long.toHexString(entries.getFileHash(entry)) + " is not the hash of " + name));
+		}
+	}
+
+	private static void checkData(BsaFile archive, int entry, byte[] chunk, int offset, Report report) {
+		BsaEntryTable entries = archive.getEntries();
+		int size = entries.getSize(entry);
+		if (archive.embeddedNames() && size > 0) {
+			int length = chunk[offset] & 0xff;
+			if (length + 1 > size) {
+				report.add(problem(archive, entry, Kind.NAME_MISMATCH, "Embedded name of " + length + " bytes exceeds entry of " + size + " bytes"));
+				return;
+			}
+			String path = entries.getPath(entry);
+			String embedded = new String(chunk, offset + 1, length, StandardCharsets.ISO_8859_1).toLowerCase().replace('/', '\\');
+			// Files at the root have no folder in front of their embedded name
+			if (path != null && !embedded.equals(path) && !("\\" + embedded).equals(path)) {
+				report.add(problem(archive, entry, Kind.NAME_MISMATCH, "Embedded name is " + embedded));
+			}
+		}
+		// BA2 archives keep original sizes in their records, not in front of the data
+		if (entries.isCompressed(entry) && !(archive instanceof Ba2File)) {
+			int prefixLength = archive.embeddedNames() ? (chunk[offset] & 0xff) + 1 : 0;
+			if (prefixLength + 4 > size) {
+				report.add(problem(archive, entry, Kind.CORRUPT, "Compressed entry of " + size + " bytes has no original size"));
+				return;
+			}
+			int originalSize = ByteBuffer.wrap(chunk, offset + prefixLength, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+			// Neither zlib nor LZ4 compress by more than about 1:1032
+			if (originalSize < 0 || originalSize / MAX_RATIO > size) {
+				report.add(problem(archive, entry, Kind.CORRUPT, "Original size of " + originalSize + " bytes is impossible for " + size + " stored bytes"));
+				return;
+			}
+		}
+		try {
+			archive.decodeStored(entry, chunk, offset);
+		} catch (DataFormatException | RuntimeException e) {
+			report.add(problem(archive, entry, Kind.CORRUPT, String.valueOf(e.getMessage() != null ? e.getMessage() : e)));
+		}
+	}
+
+	private static Problem problem(BsaFile archive, int entry, Kind kind, String message) {
+		BsaEntryTable entries = archive.getEntries();
+		String path = entries.getPath(entry);
+		if (path == null) {
+			path = String.format("%016x:%016x", entries.getFolderHash(entry), entries.getFileHash(entry));
+		}
+		return new Problem(archive.getName(), path, entries.getOffset(entry), kind, message);
+	}
+
+	/**
+	 * One problem of one entry
+	 */
+	public static final class Problem {
+		private final String archive;
+		private final String path;
+		private final long offset;
+		private final Kind kind;
+		private final String message;
+
+		Problem(String archive, String path, long offset, Kind kind, String message) {
+			this.archive = archive;
+			this.path = path;
+			this.offset = offset;
+			this.kind = kind;
+			this.message = message;
+		}
+
+		public String getArchive() {
+			return archive;
+		}
+
+		/**
+		 * @return path of the entry, folder and file hash in hex for archives without names, null for problems of the whole archive
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return offset of the entry in the archive, -1 for problems of the whole archive
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " " + archive + (path == null ? "" : " " + path) + ": " + message;
+		}
+	}
+
+	/**
+	 * Problems found over all verified archives, filled from all checking threads
+	 */
+	public static final class Report {
+		private final List<Problem> problems = Collections.synchronizedList(new ArrayList<>());
+		private final AtomicLong archives = new AtomicLong();
+		private final AtomicLong entries = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+
+		void add(Problem problem) {
+			problems.add(problem);
+		}
+
+		/**
+		 * @return true if no problem was found
+		 */
+		public boolean isValid() {
+			return problems.isEmpty();
+		}
+
+		/**
+		 * @return problems sorted by archive and offset
+		 */
+		public List<Problem> getProblems() {
+			List<Problem> sorted;
+			synchronized (problems) {
+				sorted = new ArrayList<>(problems);
+			}
+			sorted.sort(Comparator.comparing(Problem::getArchive).thenComparingLong(Problem::getOffset));
+			return sorted;
+		}
+
+		public long getArchives() {
+			return archives.get();
+		}
+
+		public long getEntries() {
+			return entries.get();
+		}
+
+		/**
+		 * @return bytes read from the archives
+		 */
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		/**
+		 * @return the report as a JSON object with counts and an array of problems, for tools checking an install
+		 */
+		public String toJson() {
+			StringBuilder json = new StringBuilder();
+			json.append("{\"archives\":").append(getArchives()).append(",\"entries\":").append(getEntries()).append(",\"bytes\":").append(getBytes())
+					.append(",\"valid\":").append(isValid()).append(",\"problems\":[");
+			List<Problem> sorted = getProblems();
+			for (int i = 0; i < sorted.size(); i++) {
+				Problem problem = sorted.get(i);
+				json.append(i == 0 ? "" : ",").append("{\"kind\":\"").append(problem.kind).append("\",\"archive\":");
+				quote(json, problem.archive).append(",\"path\":");
+				if (problem.path == null) {
+					json.append("null");
+				} else {
+					quote(json, problem.path);
+				}
+				json.append(",\"offset\":").append(problem.offset).append(",\"message\":");
+				quote(json, problem.message).append('}');
+			}
+			return json.append("]}").toString();
+		}
+
+		private static StringBuilder quote(StringBuilder json, String s) {
+			json.append('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '"' || c == '\\') {
+					json.append('\\').append(c);
+				} else if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+			return json.append('"');
+		}
+
+		@Override
+		public String toString() {
+			return "Verified " + getArchives() + " archives, " + getEntries() + " entries, " + getBytes() + " bytes, " + problems.size() + " problems";
+		}
+	}
+}
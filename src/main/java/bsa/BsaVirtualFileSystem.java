@@ -0,0 +1,328 @@
+package bsa;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Resolves paths across mounted archives, an archive mounted later wins over those mounted before it for files they share.<br>
+ * Every mount, unmount or override publishes a new immutable {@link Snapshot} through an atomic reference. Lookups read the current snapshot without
+ * locking and never see a half built index, while changes are serialised among themselves. Snapshots share one index of the archives mounted when it was
+ * built, archives mounted since are asked newest first before it and unmounted ones are skipped. The index is only rebuilt once those outgrow it.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public class BsaVirtualFileSystem {
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
+
+	/**
+	 * @return the archives and index as of now, later changes are not visible in it
+	 */
+	public Snapshot snapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * @param filename
+	 *            path of a file inside the archives
+	 * @return the last mounted archive holding the file, null if no archive holds it
+	 */
+	public BsaFile getFile(String filename) {
+		return snapshot.get().getFile(filename);
+	}
+
+	/**
+	 * Mounts an archive after all mounted archives, see {@link #mount(Collection)}
+	 *
+	 * @param bsaFile
+	 * @return the archive it replaced, null if none
+	 */
+	public BsaFile mount(BsaFile bsaFile) {
+		List<BsaFile> replaced = mount(List.of(bsaFile));
+		return replaced.isEmpty() ? null : replaced.get(0);
+	}
+
+	/**
+	 * Mounts archives after all mounted archives in the given order, publishing one snapshot for all of them. An archive with the name of a mounted archive
+	 * replaces it.
+	 *
+	 * @param bsaFiles
+	 * @return replaced archives that are no longer mounted, they are not closed as snapshots taken before may still read from them
+	 */
+	public synchronized List<BsaFile> mount(Collection<BsaFile> bsaFiles) {
+		Snapshot current = snapshot.get();
+		List<BsaFile> order = new ArrayList<>(Arrays.asList(current.order));
+		List<BsaFile> replaced = new ArrayList<>();
+		for (BsaFile bsaFile : bsaFiles) {
+			// Also covers the same name given twice in one call, the later one is kept
+			order.removeIf(mounted -> nameOf(mounted).equals(nameOf(bsaFile)) && replaced.add(mounted));
+			order.add(bsaFile);
+		}
+		// An archive mounted again under its own name is not replaced
+		replaced.removeIf(bsaFile -> order.stream().anyMatch(mounted -> mounted == bsaFile));
+		Map<String, BsaFile> overrides = current.overrides;
+		if (!replaced.isEmpty()) {
+			overrides = new HashMap<>(overrides);
+			overrides.values().removeIf(bsaFile -> replaced.stream().anyMatch(removed -> removed == bsaFile));
+		}
+		snapshot.set(current.with(order.toArray(new BsaFile[0]), overrides));
+		return replaced;
+	}
+
+	/**
+	 * Removes an archive, its files resolve to the archives mounted before it again. The archive is not closed.
+	 *
+	 * @param bsaFile
+	 * @return false if the archive was not mounted
+	 */
+	public synchronized boolean unmount(BsaFile bsaFile) {
+		Snapshot current = snapshot.get();
+		List<BsaFile> order = new ArrayList<>(Arrays.asList(current.order));
+		if (!order.remove(bsaFile)) {
+			return false;
+		}
+		Map<String, BsaFile> overrides = new HashMap<>(current.overrides);
+		overrides.values().removeIf(bsaFile::equals);
+		snapshot.set(current.with(order.toArray(new BsaFile[0]), overrides));
+		return true;
+	}
+
+	/**
+	 * Removes the archive mounted under name, see {@link #unmount(BsaFile)}
+	 *
+	 * @param name
+	 *            file name of the archive such as Skyrim - Textures.bsa
+	 * @return the removed archive, null if none was mounted under name
+	 */
+	public synchronized BsaFile unmount(String name) {
+		BsaFile bsaFile = snapshot.get().getArchive(name);
+		if (bsaFile != null) {
+			unmount(bsaFile);
+		}
+		return bsaFile;
+	}
+
+	/**
+	 * Resolves a file to the given archive regardless of mount order, as long as that archive holds the file. The path may use either separator.
+	 *
+	 * @param filename
+	 * @param bsaFile
+	 *            null to resolve the file by mount order again
+	 */
+	public synchronized void override(String filename, BsaFile bsaFile) {
+		Snapshot current = snapshot.get();
+		Map<String, BsaFile> overrides = new HashMap<>(current.overrides);
+		if (bsaFile == null) {
+			overrides.remove(overrideKey(filename));
+		} else {
+			overrides.put(overrideKey(filename), bsaFile);
+		}
+		snapshot.set(new Snapshot(current.order, current.archives, current.base, current.unmounted, current.overlay, overrides));
+	}
+
+	/**
+	 * @return lower case path with backslashes, so overrides resolve for either separator like hashed lookups do
+	 */
+	private static String overrideKey(String filename) {
+		return filename.toLowerCase().replace('/', '\\');
+	}
+
+	/**
+	 * @return file name of the archive such as Skyrim - Textures.bsa
+	 */
+	static String nameOf(BsaFile bsaFile) {
+		return new File(bsaFile.getFilePath()).getName();
+	}
+
+	/**
+	 * Immutable view of the mounted archives. Holding on to a snapshot keeps lookups consistent with each other while archives are mounted elsewhere.
+	 */
+	public static final class Snapshot {
+		static final Snapshot EMPTY = new Snapshot(new BsaFile[0], Map.of());
+		/**
+		 * Number of archives mounted or unmounted since the index was built above which it is rebuilt
+		 */
+		private static final int MAX_OVERLAY = 16;
+
+		private final BsaFile[] order;
+		private final Map<String, BsaFile> archives;
+		private final Index base;
+		/**
+		 * Positions in the index of archives that are no longer mounted
+		 */
+		private final boolean[] unmounted;
+		/**
+		 * Position in order of the first archive mounted after the index was built, archives before it are the mounted archives of the index in their order
+		 */
+		private final int overlay;
+		private final Map<String, BsaFile> overrides;
+		private volatile BsaFolderTree folderTree;
+
+		/**
+		 * Builds the index of all archives in order
+		 */
+		private Snapshot(BsaFile[] order, Map<String, BsaFile> overrides) {
+			this(order, namesOf(order), new Index(order), new boolean[order.length], order.length, overrides);
+		}
+
+		private Snapshot(BsaFile[] order, Map<String, BsaFile> archives, Index base, boolean[] unmounted, int overlay, Map<String, BsaFile> overrides) {
+			this.order = order;
+			this.archives = archives;
+			this.base = base;
+			this.unmounted = unmounted;
+			this.overlay = overlay;
+			this.overrides = Map.copyOf(overrides);
+		}
+
+		/**
+		 * @return a snapshot of the archives in order, sharing the index of this one while few archives were mounted or unmounted since it was built
+		 */
+		private Snapshot with(BsaFile[] order, Map<String, BsaFile> overrides) {
+			// Archives of the index that are still mounted keep their order in front of those mounted since
+			int overlay = 0;
+			int last = -1;
+			boolean[] unmounted = new boolean[base.archives.length];
+			Arrays.fill(unmounted, true);
+			while (overlay < order.length) {
+				Integer position = base.positions.get(order[overlay]);
+				if (position == null || position <= last) {
+					break;
+				}
+				unmounted[position] = false;
+				last = position;
+				overlay++;
+			}
+			int removed = 0;
+			for (boolean gone : unmounted) {
+				if (gone) {
+					removed++;
+				}
+			}
+			long overlayRecords = recordsOf(Arrays.copyOfRange(order, overlay, order.length));
+			if (order.length - overlay + removed > MAX_OVERLAY || overlayRecords > base.records) {
+				return new Snapshot(order, overrides);
+			}
+			return new Snapshot(order, namesOf(order), base, unmounted, overlay, overrides);
+		}
+
+		private static long recordsOf(BsaFile[] bsaFiles) {
+			long records = 0;
+			for (BsaFile bsaFile : bsaFiles) {
+				records += bsaFile.getEntries().size();
+			}
+			return records;
+		}
+
+		private static Map<String, BsaFile> namesOf(BsaFile[] bsaFiles) {
+			Map<String, BsaFile> names = new HashMap<>();
+			for (BsaFile bsaFile : bsaFiles) {
+				names.put(nameOf(bsaFile), bsaFile);
+			}
+			return Collections.unmodifiableMap(names);
+		}
+
+		/**
+		 * @param filename
+		 *            path of a file inside the archives
+		 * @return the last mounted archive holding the file, null if no archive holds it
+		 */
+		public BsaFile getFile(String filename) {
+			return getFile(filename, BsaHash.folderHashOfPath(filename), BsaHash.fileHashOfPath(filename));
+		}
+
+		BsaFile getFile(String filename, long folderHash, long fileHash) {
+			if (!overrides.isEmpty()) {
+				BsaFile overridden = overrides.get(overrideKey(filename));
+				// An override only wins for files its archive holds
+				if (overridden != null && overridden.getEntries().find(folderHash, fileHash) >= 0) {
+					return overridden;
+				}
+			}
+			for (int i = order.length - 1; i >= overlay; i--) {
+				if (order[i].getEntries().find(folderHash, fileHash) >= 0) {
+					return order[i];
+				}
+			}
+			int archive = base.index.get(BsaHash.key(folderHash, fileHash));
+			if (archive < 0) {
+				return null;
+			}
+			if (!unmounted[archive] && base.archives[archive].getEntries().find(folderHash, fileHash) >= 0) {
+				return base.archives[archive];
+			}
+			// The archive holding it was unmounted or two different hash pairs share a key, ask archives one by one
+			for (int i = overlay - 1; i >= 0; i--) {
+				if (order[i].getEntries().find(folderHash, fileHash) >= 0) {
+					return order[i];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @param name
+		 *            file name of the archive
+		 * @return the archive mounted under name, null if none is
+		 */
+		public BsaFile getArchive(String name) {
+			return archives.get(name);
+		}
+
+		/**
+		 * @return mounted archives, first mounted first
+		 */
+		public List<BsaFile> getArchives() {
+			return Collections.unmodifiableList(Arrays.asList(order));
+		}
+
+		/**
+		 * @return folders and files of all mounted archives for prefix, extension and glob queries, built on first use
+		 */
+		public BsaFolderTree getFolderTree() {
+			BsaFolderTree tree = folderTree;
+			if (tree == null) {
+				tree = new BsaFolderTree(order);
+				folderTree = tree;
+			}
+			return tree;
+		}
+
+		/**
+		 * @return files resolved to an archive regardless of mount order, keyed by lower case path with backslashes
+		 */
+		public Map<String, BsaFile> getOverrides() {
+			return overrides;
+		}
+	}
+
+	/**
+	 * Folder and file hash keys of every record of some archives mapped to the position of the last archive holding it, never changed once built
+	 */
+	private static final class Index {
+		private final BsaFile[] archives;
+		private final Map<BsaFile, Integer> positions = new IdentityHashMap<>();
+		private final BsaHashIndex index;
+		private final long records;
+
+		Index(BsaFile[] archives) {
+			this.archives = archives;
+			records = Snapshot.recordsOf(archives);
+			index = new BsaHashIndex((int) Math.min(records, Integer.MAX_VALUE / 2));
+			for (int i = 0; i < archives.length; i++) {
+				positions.put(archives[i], i);
+				BsaEntryTable entries = archives[i].getEntries();
+				for (int entry = 0; entry < entries.size(); entry++) {
+					index.put(BsaHash.key(entries.getFolderHash(entry), entries.getFileHash(entry)), i);
+				}
+			}
+		}
+	}
+}
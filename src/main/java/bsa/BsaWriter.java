@@ -0,0 +1,376 @@
+package bsa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * Packs files into version 104 or 105 archives with the header, folder record, file record and file name block layout {@link BsaFile} reads. Folders and
+ * files are sorted by their hashes as the games expect.<br>
+ * Files are read and compressed in parallel on an executor, zlib for version 104 and LZ4 frames for version 105, while the calling thread writes them in
+ * archive order through a single channel. Only a few files per processor are held in memory at once.
+ *
+ * @author Yusaf Ali
+ *
+ */
+public class BsaWriter {
+	private static final int HEADER_SIZE = 4 * 9;
+
+	private final int version;
+	private boolean compressed = true;
+	private boolean embedNames;
+	private Executor executor = ForkJoinPool.commonPool();
+	/**
+	 * Sources keyed by lower case folder path and file name
+	 */
+	private final Map<String, Map<String, Source>> folders = new HashMap<>();
+
+	/**
+	 * Contents of a file, read when it is compressed
+	 */
+	@FunctionalInterface
+	private interface Source {
+		byte[] read() throws IOException;
+	}
+
+	/**
+	 * @param version
+	 *            104 for Oblivion style zlib archives as used by Fallout 3, New Vegas and Skyrim LE, 105 for Skyrim SE LZ4 archives
+	 */
+	public BsaWriter(int version) {
+		if (version != 104 && version != 105) {
+			throw new IllegalArgumentException("Only version 104 and 105 archives can be written, not " + version);
+		}
+		this.version = version;
+	}
+
+	/**
+	 * Packs all files below directory, see {@link #addDirectory(File)}
+	 *
+	 * @param directory
+	 * @param out
+	 * @param version
+	 *            104 or 105
+	 * @param compressed
+	 * @return size of the written archive
+	 * @throws IOException
+	 */
+	public static long pack(File directory, File out, int version, boolean compressed) throws IOException {
+		BsaWriter writer = new BsaWriter(version);
+		writer.setCompressed(compressed);
+		writer.addDirectory(directory);
+		return writer.write(out);
+	}
+
+	/**
+	 * @param compressed
+	 *            true to compress files, which is the default. Files that do not get smaller are stored uncompressed regardless.
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	/**
+	 * @param embedNames
+	 *            true to prefix the data of every file with its path, as some Skyrim archives do. Off by default.
+	 */
+	public void setEmbedNames(boolean embedNames) {
+		this.embedNames = embedNames;
+	}
+
+	/**
+	 * @param executor
+	 *            reads and compresses files, defaults to the common fork join pool
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Adds a file that is read from disk when the archive is written
+	 *
+	 * @param path
+	 *            folder and file name inside the archive such as textures\armor\iron.dds, case is ignored
+	 * @param file
+	 */
+	public void add(String path, File file) {
+		put(path, () -> Files.readAllBytes(file.toPath()));
+	}
+
+	/**
+	 * Adds a file from memory, data must not be modified until the archive is written
+	 *
+	 * @param path
+	 *            folder and file name inside the archive, case is ignored
+	 * @param data
+	 */
+	public void add(String path, byte[] data) {
+		put(path, () -> data);
+	}
+
+	/**
+	 * Adds every regular file below directory by its path relative to directory
+	 *
+	 * @param directory
+	 * @return number of files added
+	 * @throws IOException
+	 */
+	public int addDirectory(File directory) throws IOException {
+		Path root = directory.toPath();
+		int added = 0;
+		try (Stream<Path> paths = Files.walk(root)) {
+			for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+				add(root.relativize(path).toString(), path.toFile());
+				added++;
+			}
+		}
+		return added;
+	}
+
+	private void put(String path, Source source) {
+		String normalized = path.toLowerCase().replace('/', '\\');
+		while (normalized.startsWith("\\")) {
+			normalized = normalized.substring(1);
+		}
+		int separator = normalized.lastIndexOf('\\');
+		String folder = separator < 0 ? "" : normalized.substring(0, separator);
+		String name = normalized.substring(separator + 1);
+		// Folder names are bstrings with a null character, embedded names bstrings without
+		if (folder.length() + 1 > 255 || name.isEmpty() || (embedNames && normalized.length() > 255)) {
+			throw new IllegalArgumentException("Path can not be stored in an archive: " + path);
+		}
+		folders.computeIfAbsent(folder, f -> new HashMap<>()).put(name, source);
+	}
+
+	/**
+	 * Writes all added files to out. The archive is written to a temporary file next to out first, which then replaces out.
+	 *
+	 * @param out
+	 * @return size of the written archive
+	 * @throws IOException
+	 *             if a file can not be read, two paths share the same hashes or the archive exceeds 4 GB
+	 */
+	public long write(File out) throws IOException {
+		List<Folder> sorted = sortedFolders();
+		int fileCount = 0;
+		long folderNamesLength = 0;
+		long fileNamesLength = 0;
+		int fileFlags = 0;
+		for (Folder folder : sorted) {
+			folderNamesLength += folder.name.length() + 1;
+			for (Entry entry : folder.files) {
+				fileCount++;
+				fileNamesLength += entry.name.length() + 1;
+				fileFlags |= FileFlagType.of(entry.name).flag();
+			}
+		}
+		int folderRecordSize = version == 105 ? 24 : 16;
+		long recordsEnd = HEADER_SIZE + (long) sorted.size() * folderRecordSize;
+		long dataStart = recordsEnd + folderNamesLength + sorted.size() + (long) fileCount * 16 + fileNamesLength;
+		if (dataStart > Integer.MAX_VALUE) {
+			throw new IOException("Too many files for one archive");
+		}
+
+		File temp = new File(out.getPath() + ".tmp");
+		boolean written = false;
+		long size;
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			size = writeFiles(channel, sorted, dataStart);
+			ByteBuffer header = ByteBuffer.allocate((int) dataStart).order(ByteOrder.LITTLE_ENDIAN);
+			int archiveFlags = 0x1 | 0x2 | (compressed ? 0x4 : 0) | (embedNames ? 0x100 : 0);
+			header.putInt(0x415342).putInt(version).putInt(HEADER_SIZE).putInt(archiveFlags).putInt(sorted.size()).putInt(fileCount)
+					.putInt((int) folderNamesLength).putInt((int) fileNamesLength).putInt(fileFlags);
+			long recordsPosition = recordsEnd;
+			for (Folder folder : sorted) {
+				// Folder offsets point at the folder name and count the file name block as well
+				header.putLong(folder.hash).putInt(folder.files.size());
+				if (version == 105) {
+					header.putInt(0).putLong(recordsPosition + fileNamesLength);
+				} else {
+					header.putInt((int) (recordsPosition + fileNamesLength));
+				}
+				recordsPosition += 1 + folder.name.length() + 1 + folder.files.size() * 16;
+			}
+			for (Folder folder : sorted) {
+				header.put((byte) (folder.name.length() + 1)).put(folder.name.getBytes(StandardCharsets.ISO_8859_1)).put((byte) 0);
+				for (Entry entry : folder.files) {
+					header.putLong(entry.hash).putInt(entry.size).putInt(entry.offset);
+				}
+			}
+			for (Folder folder : sorted) {
+				for (Entry entry : folder.files) {
+					header.put(entry.name.getBytes(StandardCharsets.ISO_8859_1)).put((byte) 0);
+				}
+			}
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			written = true;
+		} finally {
+			if (!written) {
+				Files.deleteIfExists(temp.toPath());
+			}
+		}
+		Files.move(temp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return size;
+	}
+
+	/**
+	 * Compresses files ahead on the executor and writes them in archive order, filling in offset and size of every entry
+	 *
+	 * @return end of the last file
+	 */
+	private long writeFiles(FileChannel channel, List<Folder> sorted, long dataStart) throws IOException {
+		List<Entry> order = new ArrayList<>();
+		for (Folder folder : sorted) {
+			order.addAll(folder.files);
+		}
+		int ahead = 2 * Runtime.getRuntime().availableProcessors();
+		ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+		int submitted = 0;
+		long position = dataStart;
+		try {
+			for (Entry entry : order) {
+				while (submitted < order.size() && pending.size() < ahead) {
+					Entry next = order.get(submitted++);
+					pending.add(CompletableFuture.supplyAsync(() -> store(next), executor));
+				}
+				byte[] stored = join(pending.poll());
+				if (position + stored.length > 0xFFFFFFFFL) {
+					throw new IOException("Archive exceeds 4 GB");
+				}
+				entry.offset = (int) position;
+				ByteBuffer buffer = ByteBuffer.wrap(stored);
+				while (buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+			}
+		} finally {
+			pending.forEach(future -> future.cancel(false));
+		}
+		return position;
+	}
+
+	/**
+	 * Reads and compresses a file, runs on the executor
+	 *
+	 * @return the file as stored in the archive, its size in the file record is set as well
+	 */
+	private byte[] store(Entry entry) {
+		byte[] data;
+		try {
+			data = entry.source.read();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		byte[] prefix = new byte[0];
+		if (embedNames) {
+			byte[] path = (entry.folder.isEmpty() ? entry.name : entry.folder + "\\" + entry.name).getBytes(StandardCharsets.ISO_8859_1);
+			prefix = new byte[1 + path.length];
+			prefix[0] = (byte) path.length;
+			System.arraycopy(path, 0, prefix, 1, path.length);
+		}
+		byte[] packed = compressed ? (version == 105 ? Lz4FrameEncoder.encode(data) : BsaScratch.get().deflate(data)) : null;
+		// Compression is toggled per file by bit 30 of the size, files that do not get smaller are stored as they are
+		boolean storeCompressed = packed != null && packed.length + 4 < data.length;
+		int length = prefix.length + (storeCompressed ? 4 + packed.length : data.length);
+		if (length >= 1 << 30) {
+			throw new UncheckedIOException(new IOException("File too large for an archive: " + entry.folder + "\\" + entry.name));
+		}
+		byte[] stored = new byte[length];
+		System.arraycopy(prefix, 0, stored, 0, prefix.length);
+		if (storeCompressed) {
+			ByteBuffer.wrap(stored, prefix.length, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(data.length);
+			System.arraycopy(packed, 0, stored, prefix.length + 4, packed.length);
+		} else {
+			System.arraycopy(data, 0, stored, prefix.length, data.length);
+		}
+		entry.size = length | (storeCompressed != compressed ? 1 << 30 : 0);
+		return stored;
+	}
+
+	private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return folders sorted by hash, each with its files sorted by hash
+	 * @throws IOException
+	 *             if two folders or two files of a folder share the same hash
+	 */
+	private List<Folder> sortedFolders() throws IOException {
+		List<Folder> sorted = new ArrayList<>();
+		for (Map.Entry<String, Map<String, Source>> folderFiles : folders.entrySet()) {
+			Folder folder = new Folder(folderFiles.getKey());
+			folderFiles.getValue().forEach((name, source) -> folder.files.add(new Entry(folder.name, name, source)));
+			folder.files.sort(Comparator.comparing(entry -> entry.hash, Long::compareUnsigned));
+			for (int i = 1; i < folder.files.size(); i++) {
+				if (folder.files.get(i).hash == folder.files.get(i - 1).hash) {
+					throw new IOException("Files share the same hash: " + folder.name + "\\" + folder.files.get(i - 1).name + ", " + folder.files.get(i).name);
+				}
+			}
+			sorted.add(folder);
+		}
+		sorted.sort(Comparator.comparing(folder -> folder.hash, Long::compareUnsigned));
+		for (int i = 1; i < sorted.size(); i++) {
+			if (sorted.get(i).hash == sorted.get(i - 1).hash) {
+				throw new IOException("Folders share the same hash: " + sorted.get(i - 1).name + ", " + sorted.get(i).name);
+			}
+		}
+		return sorted;
+	}
+
+	private static final class Folder {
+		final String name;
+		final long hash;
+		final List<Entry> files = new ArrayList<>();
+
+		Folder(String name) {
+			this.name = name;
+			this.hash = BsaHash.folderHash(name);
+		}
+	}
+
+	private static final class Entry {
+		final String folder;
+		final String name;
+		final long hash;
+		final Source source;
+		int offset;
+		int size;
+
+		Entry(String folder, String name, Source source) {
+			this.folder = folder;
+			this.name = name;
+			this.hash = BsaHash.fileHash(name);
+			this.source = source;
+		}
+	}
+}
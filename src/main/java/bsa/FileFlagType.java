@@ -3,6 +3,51 @@ package bsa;
 public enum FileFlagType {
 	Meshes, Textures, Menus, Sounds, Voices, Shaders, Trees, Fonts, Miscellaneous;
 
+	/**
+	 * @return bit of this type in the file flags of an archive header
+	 */
+	public int flag() {
+		return 1 << ordinal();
+	}
+
+	/**
+	 * @param filename
+	 * @return type of a file by its extension, files of unknown extensions are {@link #Miscellaneous}
+	 */
+	public static FileFlagType of(String filename) {
+		String extension = filename.substring(filename.lastIndexOf('.') + 1).toLowerCase();
+		switch (extension) {
+		case "nif":
+		case "kf":
+			return Meshes;
+		case "dds":
+			return Textures;
+		case "xml":
+		case "swf":
+			return Menus;
+		case "wav":
+		case "xwm":
+			return Sounds;
+		case "mp3":
+		case "ogg":
+		case "fuz":
+		case "lip":
+			return Voices;
+		case "txt":
+		case "html":
+		case "bat":
+		case "scc":
+			return Shaders;
+		case "spt":
+			return Trees;
+		case "tex":
+		case "fnt":
+			return Fonts;
+		default:
+			return Miscellaneous;
+		}
+	}
+
 	public static FileFlagType get(long l) {
 		if ((l & 0x1) == 0x1)
 			return Meshes;
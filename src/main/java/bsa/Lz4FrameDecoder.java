@@ -0,0 +1,269 @@
+package bsa;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+/**
+ * Decodes LZ4 frames as stored in version 105 archives directly into a presized destination, without streams or intermediate buffers. Checksums are skipped,
+ * dictionary frames are not supported.
+ *
+ * @author Yusaf Ali
+ *
+ */
+final class Lz4FrameDecoder {
+	private static final int MAGIC = 0x184D2204;
+	private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+	private static final int MIN_MATCH = 4;
+
+	private Lz4FrameDecoder() {
+	}
+
+	/**
+	 * Decodes all frames of src into dst
+	 *
+	 * @param src
+	 * @param srcOff
+	 * @param srcLen
+	 * @param dst
+	 * @param dstOff
+	 * @param dstLen
+	 *            room in dst, decoding more than this fails
+	 * @return number of bytes written to dst
+	 * @throws DataFormatException
+	 *             if src is not a valid LZ4 frame or decodes to more than dstLen bytes
+	 */
+	static int decode(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws DataFormatException {
+		return decodeFrames(src, srcOff, srcLen, dst, null, dstOff, dstOff + dstLen) - dstOff;
+	}
+
+	/**
+	 * Decodes all frames of src into dst starting at its position, the position is advanced past the written bytes. Heap buffers are decoded through their
+	 * backing array.
+	 *
+	 * @return number of bytes written to dst
+	 * @throws DataFormatException
+	 *             if src is not a valid LZ4 frame or decodes to more than remaining bytes of dst
+	 */
+	static int decode(byte[] src, int srcOff, int srcLen, ByteBuffer dst) throws DataFormatException {
+		int n;
+		if (dst.hasArray()) {
+			n = decode(src, srcOff, srcLen, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+		} else {
+			n = decodeFrames(src, srcOff, srcLen, null, dst, dst.position(), dst.limit()) - dst.position();
+		}
+		dst.position(dst.position() + n);
+		return n;
+	}
+
+	/**
+	 * Decodes a single block without frame, as stored in BA2 archives, into dst starting at its position. The position is advanced past the written bytes.
+	 *
+	 * @return number of bytes written to dst
+	 * @throws DataFormatException
+	 *             if src is not a valid LZ4 block or decodes to more than remaining bytes of dst
+	 */
+	static int decodeRawBlock(byte[] src, int srcOff, int srcLen, ByteBuffer dst) throws DataFormatException {
+		int start = dst.position();
+		int end;
+		if (dst.hasArray()) {
+			int base = dst.arrayOffset();
+			end = decodeBlock(src, srcOff, srcOff + srcLen, dst.array(), base + start, base + start, base + dst.limit()) - base;
+		} else {
+			end = decodeBlock(src, srcOff, srcOff + srcLen, dst, start, start, dst.limit());
+		}
+		dst.position(end);
+		return end - start;
+	}
+
+	/**
+	 * Walks frames and blocks, writing into either dstArray or dstBuffer
+	 *
+	 * @return position in destination after the last frame
+	 */
+	private static int decodeFrames(byte[] src, int srcOff, int srcLen, byte[] dstArray, ByteBuffer dstBuffer, int dstStart, int dstEnd)
+			throws DataFormatException {
+		int sp = srcOff;
+		int srcEnd = srcOff + srcLen;
+		int dp = dstStart;
+		while (sp < srcEnd) {
+			int magic = readInt(src, sp, srcEnd);
+			sp += 4;
+			if ((magic & 0xFFFFFFF0) == SKIPPABLE_MAGIC) {
+				long skipped = Integer.toUnsignedLong(readInt(src, sp, srcEnd));
+				sp += 4;
+				if (skipped > srcEnd - sp) {
+					throw new DataFormatException("Skippable LZ4 frame exceeds the data");
+				}
+				sp += (int) skipped;
+				continue;
+			}
+			if (magic != MAGIC) {
+				throw new DataFormatException("Not an LZ4 frame");
+			}
+			int flags = byteAt(src, sp, srcEnd);
+			sp += 2; // flags and block descriptor
+			if ((flags & 0xC0) != 0x40) {
+				throw new DataFormatException("Unsupported LZ4 frame version");
+			}
+			if ((flags & 0x01) != 0) {
+				throw new DataFormatException("LZ4 frames with dictionary are not supported");
+			}
+			boolean blockChecksum = (flags & 0x10) != 0;
+			boolean contentChecksum = (flags & 0x04) != 0;
+			if ((flags & 0x08) != 0) {
+				sp += 8; // content size
+			}
+			sp++; // header checksum
+			// Blocks may refer back to earlier blocks of the same frame, all of which are already in the destination
+			while (true) {
+				int blockSize = readInt(src, sp, srcEnd);
+				sp += 4;
+				if (blockSize == 0) {
+					break;
+				}
+				boolean stored = (blockSize & 0x80000000) != 0;
+				blockSize &= 0x7FFFFFFF;
+				if (blockSize > srcEnd - sp) {
+					throw new DataFormatException("Truncated LZ4 block");
+				}
+				if (stored) {
+					if (blockSize > dstEnd - dp) {
+						throw new DataFormatException("LZ4 frame exceeds destination size");
+					}
+					if (dstArray != null) {
+						System.arraycopy(src, sp, dstArray, dp, blockSize);
+					} else {
+						for (int i = 0; i < blockSize; i++) {
+							dstBuffer.put(dp + i, src[sp + i]);
+						}
+					}
+					dp += blockSize;
+				} else if (dstArray != null) {
+					dp = decodeBlock(src, sp, sp + blockSize, dstArray, dstStart, dp, dstEnd);
+				} else {
+					dp = decodeBlock(src, sp, sp + blockSize, dstBuffer, dstStart, dp, dstEnd);
+				}
+				sp += blockSize;
+				if (blockChecksum) {
+					sp += 4;
+				}
+			}
+			if (contentChecksum) {
+				sp += 4;
+			}
+		}
+		return dp;
+	}
+
+	/**
+	 * Decodes one compressed block, matches may refer back as far as dstStart
+	 *
+	 * @return position in dst after the block
+	 */
+	static int decodeBlock(byte[] src, int sp, int srcEnd, byte[] dst, int dstStart, int dp, int dstEnd) throws DataFormatException {
+		while (sp < srcEnd) {
+			int token = src[sp++] & 0xff;
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					b = byteAt(src, sp++, srcEnd);
+					literals += b;
+				} while (b == 255);
+			}
+			if (literals > srcEnd - sp || literals > dstEnd - dp) {
+				throw new DataFormatException("Corrupt LZ4 block, literals out of bounds");
+			}
+			System.arraycopy(src, sp, dst, dp, literals);
+			sp += literals;
+			dp += literals;
+			if (sp == srcEnd) {
+				// Last sequence has literals only
+				break;
+			}
+			int offset = byteAt(src, sp, srcEnd) | (byteAt(src, sp + 1, srcEnd) << 8);
+			sp += 2;
+			int match = token & 0x0f;
+			if (match == 15) {
+				int b;
+				do {
+					b = byteAt(src, sp++, srcEnd);
+					match += b;
+				} while (b == 255);
+			}
+			match += MIN_MATCH;
+			int from = dp - offset;
+			if (offset == 0 || from < dstStart || match > dstEnd - dp) {
+				throw new DataFormatException("Corrupt LZ4 block, match out of bounds");
+			}
+			if (offset >= match) {
+				System.arraycopy(dst, from, dst, dp, match);
+				dp += match;
+			} else {
+				// Overlapping match repeats the last offset bytes
+				for (int end = dp + match; dp < end;) {
+					dst[dp++] = dst[from++];
+				}
+			}
+		}
+		return dp;
+	}
+
+	private static int decodeBlock(byte[] src, int sp, int srcEnd, ByteBuffer dst, int dstStart, int dp, int dstEnd) throws DataFormatException {
+		while (sp < srcEnd) {
+			int token = src[sp++] & 0xff;
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					b = byteAt(src, sp++, srcEnd);
+					literals += b;
+				} while (b == 255);
+			}
+			if (literals > srcEnd - sp || literals > dstEnd - dp) {
+				throw new DataFormatException("Corrupt LZ4 block, literals out of bounds");
+			}
+			for (int i = 0; i < literals; i++) {
+				dst.put(dp + i, src[sp + i]);
+			}
+			sp += literals;
+			dp += literals;
+			if (sp == srcEnd) {
+				break;
+			}
+			int offset = byteAt(src, sp, srcEnd) | (byteAt(src, sp + 1, srcEnd) << 8);
+			sp += 2;
+			int match = token & 0x0f;
+			if (match == 15) {
+				int b;
+				do {
+					b = byteAt(src, sp++, srcEnd);
+					match += b;
+				} while (b == 255);
+			}
+			match += MIN_MATCH;
+			int from = dp - offset;
+			if (offset == 0 || from < dstStart || match > dstEnd - dp) {
+				throw new DataFormatException("Corrupt LZ4 block, match out of bounds");
+			}
+			for (int end = dp + match; dp < end;) {
+				dst.put(dp++, dst.get(from++));
+			}
+		}
+		return dp;
+	}
+
+	private static int byteAt(byte[] src, int position, int end) throws DataFormatException {
+		if (position >= end) {
+			throw new DataFormatException("Truncated LZ4 frame");
+		}
+		return src[position] & 0xff;
+	}
+
+	private static int readInt(byte[] src, int position, int end) throws DataFormatException {
+		if (end - position < 4) {
+			throw new DataFormatException("Truncated LZ4 frame");
+		}
+		return (src[position] & 0xff) | (src[position + 1] & 0xff) << 8 | (src[position + 2] & 0xff) << 16 | (src[position + 3] & 0xff) << 24;
+	}
+}
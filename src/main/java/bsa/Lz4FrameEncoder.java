@@ -0,0 +1,143 @@
+package bsa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Writes LZ4 frames as stored in version 105 archives. Blocks of 64 KB are compressed independently with greedy matching on a single hash table, which
+ * compresses a little worse than the reference compressor at comparable decoding speed. The frame header checksum is written, block and content checksums
+ * are not.
+ *
+ * @author Yusaf Ali
+ *
+ */
+final class Lz4FrameEncoder {
+	private static final int MAGIC = 0x184D2204;
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final int HASH_BITS = 12;
+	private static final int MIN_MATCH = 4;
+	/**
+	 * The last 5 bytes of a block are always literals, and the last match starts 12 bytes before the end at the latest
+	 */
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_FIND_LIMIT = 12;
+
+	private Lz4FrameEncoder() {
+	}
+
+	/**
+	 * @param data
+	 * @return a single LZ4 frame holding data, blocks that do not compress are stored as they are
+	 */
+	static byte[] encode(byte[] data) {
+		int blocks = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		ByteBuffer out = ByteBuffer.allocate(7 + data.length + blocks * 4 + 4).order(ByteOrder.LITTLE_ENDIAN);
+		int flags = 0x40 | 0x20; // version 1, independent blocks
+		int blockDescriptor = 0x40; // 64 KB blocks
+		out.putInt(MAGIC).put((byte) flags).put((byte) blockDescriptor);
+		out.put((byte) (xxHash32(new byte[] { (byte) flags, (byte) blockDescriptor }) >>> 8));
+		byte[] block = new byte[BLOCK_SIZE + BLOCK_SIZE / 255 + 16];
+		int[] table = new int[1 << HASH_BITS];
+		for (int off = 0; off < data.length; off += BLOCK_SIZE) {
+			int len = Math.min(BLOCK_SIZE, data.length - off);
+			int compressedLength = compressBlock(data, off, len, block, table);
+			if (compressedLength >= len) {
+				out.putInt(len | 0x80000000).put(data, off, len);
+			} else {
+				out.putInt(compressedLength).put(block, 0, compressedLength);
+			}
+		}
+		out.putInt(0);
+		return Arrays.copyOf(out.array(), out.position());
+	}
+
+	/**
+	 * @return length of the compressed block in dst
+	 */
+	private static int compressBlock(byte[] src, int off, int len, byte[] dst, int[] table) {
+		Arrays.fill(table, -1);
+		int end = off + len;
+		int matchLimit = end - LAST_LITERALS;
+		int findLimit = end - MATCH_FIND_LIMIT;
+		int anchor = off;
+		int ip = off;
+		int dp = 0;
+		while (ip < findLimit) {
+			int sequence = readInt(src, ip);
+			int slot = (sequence * -1640531535) >>> (32 - HASH_BITS);
+			int ref = table[slot];
+			table[slot] = ip;
+			if (ref < off || ip - ref > 0xFFFF || readInt(src, ref) != sequence) {
+				ip++;
+				continue;
+			}
+			int matchLength = MIN_MATCH;
+			while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+				matchLength++;
+			}
+			dp = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, dp);
+			ip += matchLength;
+			anchor = ip;
+		}
+		return writeSequence(src, anchor, end - anchor, 0, 0, dst, dp);
+	}
+
+	/**
+	 * Writes literals followed by a match, a match length of 0 writes the closing literals only
+	 */
+	private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchLength, byte[] dst, int dp) {
+		int tokenPosition = dp++;
+		int token = Math.min(literals, 15) << 4;
+		dp = writeLength(literals, dst, dp);
+		System.arraycopy(src, literalStart, dst, dp, literals);
+		dp += literals;
+		if (matchLength > 0) {
+			dst[dp++] = (byte) offset;
+			dst[dp++] = (byte) (offset >>> 8);
+			token |= Math.min(matchLength - MIN_MATCH, 15);
+			dp = writeLength(matchLength - MIN_MATCH, dst, dp);
+		}
+		dst[tokenPosition] = (byte) token;
+		return dp;
+	}
+
+	private static int writeLength(int length, byte[] dst, int dp) {
+		if (length < 15) {
+			return dp;
+		}
+		int rest = length - 15;
+		while (rest >= 255) {
+			dst[dp++] = (byte) 255;
+			rest -= 255;
+		}
+		dst[dp++] = (byte) rest;
+		return dp;
+	}
+
+	private static int readInt(byte[] src, int position) {
+		return (src[position] & 0xff) | (src[position + 1] & 0xff) << 8 | (src[position + 2] & 0xff) << 16 | (src[position + 3] & 0xff) << 24;
+	}
+
+	/**
+	 * xxHash32 with seed 0 of inputs shorter than 16 bytes, enough for frame header checksums
+	 */
+	static int xxHash32(byte[] input) {
+		int hash = 0x165667B1 + input.length;
+		int i = 0;
+		for (; i + 4 <= input.length; i += 4) {
+			hash += readInt(input, i) * 0xC2B2AE3D;
+			hash = Integer.rotateLeft(hash, 17) * 0x27D4EB2F;
+		}
+		for (; i < input.length; i++) {
+			hash += (input[i] & 0xff) * 0x165667B1;
+			hash = Integer.rotateLeft(hash, 11) * 0x9E3779B1;
+		}
+		hash ^= hash >>> 15;
+		hash *= 0x85EBCA77;
+		hash ^= hash >>> 13;
+		hash *= 0xC2B2AE3D;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
@@ -0,0 +1,212 @@
+package bsa;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+
+/**
+ * Decodes LZ4 frames block by block while they are read, so memory stays bounded by the block size of the frame no matter how large the entry is. The last
+ * 64 KB of output are kept for blocks that refer back into earlier ones. Buffers are sized by the original size of the entry where that is smaller, small
+ * entries do not pay for 4 MB blocks. Checksums are skipped, dictionary frames are not supported.
+ *
+ * @author Yusaf Ali
+ *
+ */
+final class Lz4FrameInputStream extends InputStream {
+	private static final int MAGIC = 0x184D2204;
+	private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+	private static final int WINDOW = 64 * 1024;
+
+	private final InputStream in;
+	private final int originalSize;
+	private byte[] compressed = new byte[0];
+	/**
+	 * Window of earlier output followed by the current block
+	 */
+	private byte[] decoded = new byte[0];
+	private int position;
+	private int end;
+
+	private boolean inFrame;
+	private boolean blockChecksum;
+	private boolean contentChecksum;
+	private int maxBlockSize;
+	private boolean finished;
+
+	/**
+	 * @param in
+	 *            compressed frames
+	 * @param originalSize
+	 *            decompressed size of the entry
+	 */
+	Lz4FrameInputStream(InputStream in, int originalSize) {
+		this.in = in;
+		this.originalSize = originalSize;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position == end && !fill()) {
+			return -1;
+		}
+		return decoded[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (position == end && !fill()) {
+			return -1;
+		}
+		int n = Math.min(len, end - position);
+		System.arraycopy(decoded, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return end - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		finished = true;
+		in.close();
+	}
+
+	/**
+	 * Decodes the next block, reading frame headers as they come
+	 *
+	 * @return false at the end of the last frame
+	 */
+	private boolean fill() throws IOException {
+		while (!finished) {
+			if (!inFrame && !readFrameHeader()) {
+				finished = true;
+				return false;
+			}
+			int blockSize = readInt();
+			if (blockSize == 0) {
+				if (contentChecksum) {
+					skipInput(4);
+				}
+				inFrame = false;
+				continue;
+			}
+			boolean stored = (blockSize & 0x80000000) != 0;
+			blockSize &= 0x7FFFFFFF;
+			if (blockSize > maxBlockSize) {
+				throw new IOException(new DataFormatException("LZ4 block exceeds maximum block size"));
+			}
+			if (compressed.length < blockSize) {
+				compressed = new byte[blockSize];
+			}
+			readFully(compressed, blockSize);
+			// Keep only the window in front of the new block
+			if (end > WINDOW) {
+				System.arraycopy(decoded, end - WINDOW, decoded, 0, WINDOW);
+				end = WINDOW;
+			}
+			// Blocks may not decode past the entry, whose original size bounds the buffer
+			int blockEnd = (int) Math.min(decoded.length, (long) end + maxBlockSize);
+			if (stored) {
+				if (blockSize > blockEnd - end) {
+					throw new IOException(new DataFormatException("Stored LZ4 block exceeds the original size"));
+				}
+				System.arraycopy(compressed, 0, decoded, end, blockSize);
+				position = end;
+				end += blockSize;
+			} else {
+				try {
+					position = end;
+					end = Lz4FrameDecoder.decodeBlock(compressed, 0, blockSize, decoded, 0, end, blockEnd);
+				} catch (DataFormatException e) {
+					throw new IOException(e);
+				}
+			}
+			if (blockChecksum) {
+				skipInput(4);
+			}
+			if (end > position) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the next frame descriptor, skipping skippable frames
+	 *
+	 * @return false if the stream ends before another frame
+	 */
+	private boolean readFrameHeader() throws IOException {
+		while (true) {
+			int first = in.read();
+			if (first < 0) {
+				return false;
+			}
+			int magic = first | readByte() << 8 | readByte() << 16 | readByte() << 24;
+			if ((magic & 0xFFFFFFF0) == SKIPPABLE_MAGIC) {
+				skipInput(Integer.toUnsignedLong(readInt()));
+				continue;
+			}
+			if (magic != MAGIC) {
+				throw new IOException(new DataFormatException("Not an LZ4 frame"));
+			}
+			int flags = readByte();
+			int blockDescriptor = readByte();
+			if ((flags & 0xC0) != 0x40) {
+				throw new IOException(new DataFormatException("Unsupported LZ4 frame version"));
+			}
+			if ((flags & 0x01) != 0) {
+				throw new IOException(new DataFormatException("LZ4 frames with dictionary are not supported"));
+			}
+			blockChecksum = (flags & 0x10) != 0;
+			contentChecksum = (flags & 0x04) != 0;
+			if ((flags & 0x08) != 0) {
+				skipInput(8); // content size
+			}
+			skipInput(1); // header checksum
+			int sizeId = (blockDescriptor >> 4) & 0x7;
+			if (sizeId < 4) {
+				throw new IOException(new DataFormatException("Invalid LZ4 block size"));
+			}
+			maxBlockSize = 1 << (8 + 2 * sizeId);
+			// Neither the window nor a block can hold more than the whole entry
+			int capacity = Math.min(WINDOW, originalSize) + Math.min(maxBlockSize, originalSize);
+			if (decoded.length < capacity) {
+				byte[] grown = new byte[capacity];
+				System.arraycopy(decoded, 0, grown, 0, end);
+				decoded = grown;
+			}
+			inFrame = true;
+			return true;
+		}
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Truncated LZ4 frame");
+		}
+		return b;
+	}
+
+	private int readInt() throws IOException {
+		return readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+	}
+
+	private void readFully(byte[] b, int len) throws IOException {
+		if (in.readNBytes(b, 0, len) < len) {
+			throw new EOFException("Truncated LZ4 block");
+		}
+	}
+
+	private void skipInput(long n) throws IOException {
+		in.skipNBytes(n);
+	}
+}
@@ -0,0 +1,254 @@
+package bsa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes general and texture .ba2 archives and reads them back through {@link Ba2File}
+ *
+ * @author Yusaf Ali
+ */
+public class Ba2FileTest {
+	private static final int BC1 = 71;
+	private static final int BC7 = 98;
+	private static final int R8G8B8A8 = 28;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void roundTripsGeneralFiles() throws Exception {
+		Random random = new Random(4);
+		byte[] noise = new byte[4000];
+		random.nextBytes(noise);
+		Map<String, byte[]> files = new LinkedHashMap<>();
+		files.put("meshes\\armor\\iron.nif", "iron armor mesh ".repeat(3000).getBytes(StandardCharsets.US_ASCII));
+		files.put("meshes\\armor\\noise.nif", noise);
+		files.put("sound\\empty.wav", new byte[0]);
+		files.put("readme.txt", "top level file".getBytes(StandardCharsets.US_ASCII));
+		File out = folder.newFile("general.ba2");
+		writeGeneral(out, files);
+
+		try (BsaFile bsaFile = BsaFile.open(out)) {
+			assertTrue(bsaFile instanceof Ba2File);
+			assertFalse(((Ba2File) bsaFile).isTextureArchive());
+			assertEquals(1, bsaFile.getVersion());
+			assertEquals(files.size(), bsaFile.getFilenames().size());
+			assertFalse(bsaFile.contains("meshes\\armor\\steel.nif"));
+			for (Map.Entry<String, byte[]> e : files.entrySet()) {
+				String path = e.getKey();
+				assertTrue(path, bsaFile.contains(path.replace('\\', '/').toUpperCase()));
+				assertEquals(path, e.getValue().length, bsaFile.getLoadedSize(path));
+				assertArrayEquals(path, e.getValue(), bsaFile.load(path));
+				try (InputStream in = bsaFile.openStream(path)) {
+					assertArrayEquals(path, e.getValue(), in.readAllBytes());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void writesLegacyHeaderForBc1() throws Exception {
+		byte[] levels = levels(2688);
+		File out = folder.newFile("textures.ba2");
+		writeTexture(out, "textures\\iron.dds", 64, 64, 3, BC1, false, levels, 2048, 640);
+
+		try (BsaFile bsaFile = BsaFile.open(out)) {
+			assertTrue(((Ba2File) bsaFile).isTextureArchive());
+			byte[] dds = bsaFile.load("textures\\iron.dds");
+			assertEquals(BsaDdsHeader.SIZE + levels.length, dds.length);
+			ByteBuffer header = ByteBuffer.wrap(dds).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(0x20534444, header.getInt(0)); // "DDS "
+			assertEquals(64, header.getInt(12));
+			assertEquals(64, header.getInt(16));
+			assertEquals(3, header.getInt(28));
+			assertEquals(0x31545844, header.getInt(84)); // DXT1
+			assertEquals(0x401008, header.getInt(108));
+			assertEquals(0, header.getInt(112));
+			assertArrayEquals(levels, Arrays.copyOfRange(dds, BsaDdsHeader.SIZE, dds.length));
+			BsaDdsHeader parsed = BsaDdsHeader.parse(ByteBuffer.wrap(dds), dds.length);
+			assertEquals(0x31545844, parsed.getFourCC());
+			assertEquals(1, parsed.getSlices());
+
+			BsaDdsHeader.Mips mips = bsaFile.loadMips("textures\\iron.dds", 1, 5);
+			assertEquals(2, mips.getLevelCount());
+			assertArrayEquals(Arrays.copyOfRange(levels, 2048, 2688), mips.getData());
+		}
+	}
+
+	@Test
+	public void writesDx10HeaderForCubemaps() throws Exception {
+		byte[] faces = levels(6 * 320);
+		File out = folder.newFile("cube.ba2");
+		writeTexture(out, "textures\\sky.dds", 16, 16, 2, BC7, true, faces, faces.length);
+
+		try (BsaFile bsaFile = BsaFile.open(out)) {
+			byte[] dds = bsaFile.load("textures\\sky.dds");
+			assertEquals(BsaDdsHeader.DX10_SIZE + faces.length, dds.length);
+			ByteBuffer header = ByteBuffer.wrap(dds).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(0x30315844, header.getInt(84)); // DX10
+			assertEquals(0xfe00, header.getInt(112));
+			assertEquals(BC7, header.getInt(128));
+			assertEquals(3, header.getInt(132));
+			assertEquals(0x4, header.getInt(136));
+			assertEquals(1, header.getInt(140));
+			assertArrayEquals(faces, Arrays.copyOfRange(dds, BsaDdsHeader.DX10_SIZE, dds.length));
+			BsaDdsHeader parsed = BsaDdsHeader.parse(ByteBuffer.wrap(dds), dds.length);
+			assertEquals(6, parsed.getSlices());
+
+			BsaDdsHeader.Mips mips = bsaFile.loadMips("textures\\sky.dds", 1, 1);
+			for (int face = 0; face < 6; face++)
+				assertArrayEquals(Arrays.copyOfRange(faces, face * 320 + 256, face * 320 + 320),
+						Arrays.copyOfRange(mips.getData(), mips.getOffset(face, 1), mips.getOffset(face, 1) + 64));
+		}
+	}
+
+	@Test
+	public void decodesLargeTexturesOnChunkExecutor() throws Exception {
+		byte[] levels = new byte[262144 + 65536];
+		for (int i = 0; i < levels.length; i++)
+			levels[i] = (byte) (i / 7 % 251);
+		File out = folder.newFile("large.ba2");
+		writeTexture(out, "textures\\large.dds", 256, 256, 2, R8G8B8A8, false, levels, 200000, 62144, 65536);
+
+		AtomicInteger executed = new AtomicInteger();
+		Ba2File.setChunkExecutor(task -> {
+			executed.incrementAndGet();
+			ForkJoinPool.commonPool().execute(task);
+		});
+		try (BsaFile bsaFile = BsaFile.open(out)) {
+			byte[] dds = bsaFile.load("textures\\large.dds");
+			assertArrayEquals(levels, Arrays.copyOfRange(dds, BsaDdsHeader.DX10_SIZE, dds.length));
+			assertEquals(2, executed.get());
+		} finally {
+			Ba2File.setChunkExecutor(ForkJoinPool.commonPool());
+		}
+	}
+
+	@Test
+	public void rejectsNegativeChunkSizes() throws Exception {
+		File out = folder.newFile("negative.ba2");
+		writeTexture(out, "textures\\iron.dds", 64, 64, 3, BC1, false, levels(2688), 2688);
+		byte[] bytes = Files.readAllBytes(out.toPath());
+		// Unpacked size of the only chunk, after the header, the texture record and the offset and packed size of the chunk
+		ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(24 + 24 + 12, -2688);
+		Files.write(out.toPath(), bytes);
+		try {
+			BsaFile.open(out).close();
+			fail("Opened archive with a negative chunk size");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid chunk"));
+		}
+	}
+
+	/**
+	 * @return distinct bytes for every level, compressible but not trivially so
+	 */
+	private static byte[] levels(int size) {
+		byte[] levels = new byte[size];
+		for (int i = 0; i < size; i++)
+			levels[i] = (byte) (i * 31 / 5);
+		return levels;
+	}
+
+	/**
+	 * Writes a version 1 GNRL archive, files that shrink are stored zlib compressed
+	 */
+	static void writeGeneral(File out, Map<String, byte[]> files) throws IOException {
+		List<String> paths = new ArrayList<>(files.keySet());
+		List<byte[]> stored = new ArrayList<>();
+		for (byte[] data : files.values()) {
+			byte[] compressed = deflate(data);
+			stored.add(compressed.length < data.length ? compressed : null);
+		}
+		ByteBuffer records = buffer(36 * paths.size());
+		long offset = 24 + records.capacity();
+		for (int i = 0; i < paths.size(); i++) {
+			byte[] data = files.get(paths.get(i));
+			byte[] compressed = stored.get(i);
+			records.putInt(0).putInt(0).putInt(0).putInt(0);
+			records.putLong(offset).putInt(compressed == null ? 0 : compressed.length).putInt(data.length).putInt(0xBAADF00D);
+			offset += compressed == null ? data.length : compressed.length;
+		}
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (int i = 0; i < paths.size(); i++)
+			data.write(stored.get(i) == null ? files.get(paths.get(i)) : stored.get(i));
+		write(out, 0x4c524e47, paths, records, data.toByteArray());
+	}
+
+	/**
+	 * Writes a version 1 DX10 archive holding one texture, split into zlib compressed chunks of the given unpacked sizes
+	 */
+	static void writeTexture(File out, String path, int width, int height, int mipCount, int format, boolean cubeMap, byte[] levels, int... chunkSizes)
+			throws IOException {
+		ByteBuffer records = buffer(24 + 24 * chunkSizes.length);
+		records.putInt(0).putInt(0).putInt(0).put((byte) 0).put((byte) chunkSizes.length).putShort((short) 24);
+		records.putShort((short) height).putShort((short) width).put((byte) mipCount).put((byte) format).putShort((short) (cubeMap ? 1 : 0));
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		long offset = 24 + records.capacity();
+		int from = 0;
+		for (int chunkSize : chunkSizes) {
+			byte[] compressed = deflate(Arrays.copyOfRange(levels, from, from + chunkSize));
+			records.putLong(offset + data.size()).putInt(compressed.length).putInt(chunkSize).putShort((short) 0).putShort((short) 0).putInt(0xBAADF00D);
+			data.write(compressed);
+			from += chunkSize;
+		}
+		write(out, 0x30315844, List.of(path), records, data.toByteArray());
+	}
+
+	private static void write(File out, int type, List<String> paths, ByteBuffer records, byte[] data) throws IOException {
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+		for (String path : paths) {
+			byte[] name = path.getBytes(StandardCharsets.ISO_8859_1);
+			names.write(buffer(2).putShort((short) name.length).array());
+			names.write(name);
+		}
+		ByteBuffer header = buffer(24).putInt(0x58445442).putInt(1).putInt(type).putInt(paths.size());
+		header.putLong(24 + records.capacity() + data.length);
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		archive.write(header.array());
+		archive.write(records.array());
+		archive.write(data);
+		archive.write(names.toByteArray());
+		Files.write(out.toPath(), archive.toByteArray());
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater();
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] compressed = new byte[data.length + 64];
+		int length = deflater.deflate(compressed);
+		deflater.end();
+		return Arrays.copyOf(compressed, length);
+	}
+
+	private static ByteBuffer buffer(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
@@ -0,0 +1,92 @@
+package bsa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Capacity classes and the pooled byte limit of {@link BsaBufferPool}
+ *
+ * @author Yusaf Ali
+ */
+public class BsaBufferPoolTest {
+
+	@Test
+	public void roundsUpToCapacityClasses() {
+		BsaBufferPool pool = new BsaBufferPool(1 << 20);
+		int[][] sizes = { { 0, 4096 }, { 1, 4096 }, { 4096, 4096 }, { 4097, 8192 }, { 100000, 131072 }, { 131072, 131072 } };
+		for (int[] size : sizes) {
+			ByteBuffer buffer = pool.acquire(size[0]);
+			assertTrue(buffer.isDirect());
+			assertEquals(0, buffer.position());
+			assertEquals(size[0], buffer.limit());
+			assertEquals(size[1], buffer.capacity());
+		}
+		assertEquals(sizes.length, pool.getAllocations());
+	}
+
+	@Test
+	public void reusesReleasedBufferOfItsClass() {
+		BsaBufferPool pool = new BsaBufferPool(1 << 20);
+		ByteBuffer buffer = pool.acquire(5000);
+		buffer.position(100);
+		pool.release(buffer);
+		assertEquals(8192, pool.getPooledBytes());
+		// Another size of the same class gets the same buffer, cleared
+		ByteBuffer reused = pool.acquire(8000);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(8000, reused.limit());
+		assertEquals(0, pool.getPooledBytes());
+		// Smaller and larger classes do not
+		pool.release(reused);
+		assertNotSame(buffer, pool.acquire(4096));
+		assertNotSame(buffer, pool.acquire(8193));
+		assertEquals(1, pool.getReuses());
+		assertEquals(3, pool.getAllocations());
+	}
+
+	@Test
+	public void dropsBuffersBeyondLimit() {
+		BsaBufferPool pool = new BsaBufferPool(3 * 4096);
+		ByteBuffer[] buffers = new ByteBuffer[4];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = pool.acquire(4096);
+		for (ByteBuffer buffer : buffers)
+			pool.release(buffer);
+		assertEquals(3 * 4096, pool.getPooledBytes());
+		// A larger buffer does not fit next to them either
+		pool.release(pool.acquire(8192));
+		assertEquals(3 * 4096, pool.getPooledBytes());
+		for (int i = 0; i < 4; i++)
+			pool.acquire(4096);
+		assertEquals(3, pool.getReuses());
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	@Test
+	public void ignoresForeignBuffers() {
+		BsaBufferPool pool = new BsaBufferPool(1 << 20);
+		pool.release(ByteBuffer.allocate(4096));
+		pool.release(ByteBuffer.allocateDirect(5000));
+		pool.release(ByteBuffer.allocateDirect(1024));
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	@Test
+	public void clearDropsPooledBuffers() {
+		BsaBufferPool pool = new BsaBufferPool(1 << 20);
+		pool.release(pool.acquire(4096));
+		pool.release(pool.acquire(65536));
+		assertEquals(4096 + 65536, pool.getPooledBytes());
+		pool.clear();
+		assertEquals(0, pool.getPooledBytes());
+		pool.acquire(4096);
+		assertEquals(0, pool.getReuses());
+	}
+}
@@ -0,0 +1,75 @@
+package bsa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Hashing and duplicate detection of {@link BsaContentIndex}
+ *
+ * @author Yusaf Ali
+ */
+public class BsaContentIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void hashesXxh64ReferenceVectors() {
+		assertEquals(0xEF46DB3751D8E999L, hash(""));
+		assertEquals(0xD24EC4F1A98C6E5BL, hash("a"));
+		assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+		assertEquals(0xFBCEA83C8A378BF1L, hash("Nobody inspects the spammish repetition"));
+	}
+
+	@Test
+	public void findsDuplicatesAcrossArchives() throws IOException {
+		byte[] shared = "shared mesh data ".repeat(500).getBytes(StandardCharsets.US_ASCII);
+		byte[] unique = "unique mesh data ".repeat(500).getBytes(StandardCharsets.US_ASCII);
+		try (BsaFile first = archive(false, Map.of("meshes\\shared.nif", shared, "meshes\\first.nif", unique));
+				BsaFile second = archive(true, Map.of("meshes\\copy\\shared.nif", shared))) {
+			BsaContentIndex index = new BsaContentIndex();
+			index.update(List.of(first, second));
+			assertEquals(2, index.getArchives());
+			assertEquals(3, index.getEntries());
+			assertEquals(2, index.getUniqueFiles());
+			assertEquals(1, index.getDuplicateEntries());
+
+			long fingerprint = index.getFingerprint(first, "meshes\\shared.nif");
+			assertNotEquals(0, fingerprint);
+			// Embedded names are not part of the contents
+			assertEquals(fingerprint, index.getFingerprint(second, "meshes/copy/shared.nif"));
+			assertNotEquals(fingerprint, index.getFingerprint(first, "meshes\\first.nif"));
+			assertEquals(0, index.getFingerprint(first, "meshes\\missing.nif"));
+
+			index.update(List.of(first));
+			assertEquals(1, index.getArchives());
+			assertEquals(0, index.getDuplicateEntries());
+			assertEquals(0, index.getFingerprint(second, "meshes\\copy\\shared.nif"));
+		}
+	}
+
+	private BsaFile archive(boolean embedNames, Map<String, byte[]> files) throws IOException {
+		BsaWriter writer = new BsaWriter(105);
+		writer.setEmbedNames(embedNames);
+		for (Map.Entry<String, byte[]> e : files.entrySet())
+			writer.add(e.getKey(), e.getValue());
+		File out = folder.newFile();
+		writer.write(out);
+		return new BsaFile(out);
+	}
+
+	private static long hash(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+		return BsaContentIndex.hash(bytes, 0, bytes.length, 0);
+	}
+}
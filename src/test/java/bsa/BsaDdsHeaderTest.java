@@ -0,0 +1,151 @@
+package bsa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Level layout of {@link BsaDdsHeader} for block compressed, array, cube and per pixel formats, and {@link BsaFile#loadMips(String, int, int)} on stored
+ * and compressed entries
+ *
+ * @author Yusaf Ali
+ */
+public class BsaDdsHeaderTest {
+	private static final int DXT1 = 0x31545844;
+	private static final int DX10 = 0x30315844;
+	private static final int DDPF_FOURCC = 0x4;
+	private static final int DDPF_RGB = 0x40;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void laysOutBc1Levels() throws DataFormatException {
+		BsaDdsHeader header = parse(header(64, 64, 7, DDPF_FOURCC, DXT1, 0, 0, 0, 0, 0), 128 + 2744);
+		assertTrue(header.isBlockCompressed());
+		assertEquals(BsaDdsHeader.SIZE, header.getDataOffset());
+		assertEquals(1, header.getSlices());
+		long[] sizes = { 2048, 512, 128, 32, 8, 8, 8 };
+		long offset = BsaDdsHeader.SIZE;
+		for (int level = 0; level < sizes.length; level++) {
+			assertEquals(sizes[level], header.getLevelSize(level));
+			assertEquals(offset, header.getLevelOffset(0, level));
+			offset += sizes[level];
+		}
+		assertEquals(2744, header.getSliceSize());
+		assertEquals(1, header.getLevelWidth(6));
+	}
+
+	@Test
+	public void laysOutDx10CubeArraySliceBySlice() throws DataFormatException {
+		// BC7, two cubes of 8x8 with two levels
+		BsaDdsHeader header = parse(header(8, 8, 2, DDPF_FOURCC, DX10, 0, 0, 98, 0x4, 2), 148 + 12 * 80);
+		assertEquals(98, header.getDxgiFormat());
+		assertEquals(BsaDdsHeader.DX10_SIZE, header.getDataOffset());
+		assertEquals(12, header.getSlices());
+		assertEquals(64, header.getLevelSize(0));
+		assertEquals(16, header.getLevelSize(1));
+		assertEquals(80, header.getSliceSize());
+		assertEquals(148 + 3 * 80 + 64, header.getLevelOffset(3, 1));
+		assertEquals(148 + 11 * 80, header.getLevelOffset(11, 0));
+	}
+
+	@Test
+	public void laysOutLegacyCubeByFaceBits() throws DataFormatException {
+		// Only the positive faces
+		BsaDdsHeader header = parse(header(4, 4, 1, DDPF_FOURCC, DXT1, 0, 0x200 | 0x400 | 0x1000 | 0x4000, 0, 0, 0), 128 + 3 * 8);
+		assertEquals(3, header.getSlices());
+		assertEquals(128 + 16, header.getLevelOffset(2, 0));
+	}
+
+	@Test
+	public void laysOutPerPixelFormats() throws DataFormatException {
+		// 32 bit RGBA described by bit count, rows of odd widths are not padded
+		BsaDdsHeader rgba = parse(header(10, 6, 3, DDPF_RGB, 0, 32, 0, 0, 0, 0), 128 + 308);
+		assertFalse(rgba.isBlockCompressed());
+		assertEquals(240, rgba.getLevelSize(0));
+		assertEquals(60, rgba.getLevelSize(1));
+		assertEquals(8, rgba.getLevelSize(2));
+		assertEquals(128 + 300, rgba.getLevelOffset(0, 2));
+
+		// DXGI R8 and the D3D float format A32B32G32R32F given as FourCC
+		assertEquals(25, parse(header(5, 5, 1, DDPF_FOURCC, DX10, 0, 0, 61, 0, 1), 148 + 25).getLevelSize(0));
+		assertEquals(256, parse(header(4, 4, 1, DDPF_FOURCC, 116, 0, 0, 0, 0, 0), 128 + 256).getLevelSize(0));
+	}
+
+	@Test(expected = DataFormatException.class)
+	public void rejectsFileTooSmallForLevels() throws DataFormatException {
+		parse(header(64, 64, 7, DDPF_FOURCC, DXT1, 0, 0, 0, 0, 0), 128 + 2743);
+	}
+
+	@Test(expected = DataFormatException.class)
+	public void rejectsUnknownDxgiFormat() throws DataFormatException {
+		parse(header(4, 4, 1, DDPF_FOURCC, DX10, 0, 0, 200, 0, 1), 1 << 20);
+	}
+
+	@Test
+	public void loadsMipsOfStoredAndCompressedEntries() throws IOException, DataFormatException {
+		byte[] header = header(8, 8, 2, DDPF_FOURCC, DX10, 0, 0, 98, 0x4, 2);
+		byte[] texture = Arrays.copyOf(header, header.length + 12 * 80);
+		for (int i = header.length; i < texture.length; i++)
+			texture[i] = (byte) (i * 7 / 3);
+		for (int version : new int[] { 104, 105 }) {
+			for (boolean compressed : new boolean[] { false, true }) {
+				BsaWriter writer = new BsaWriter(version);
+				writer.setCompressed(compressed);
+				writer.setEmbedNames(version == 105);
+				writer.add("textures\\sky.dds", texture);
+				File out = folder.newFile();
+				writer.write(out);
+				try (BsaFile bsaFile = new BsaFile(out)) {
+					String context = version + (compressed ? " compressed" : " stored");
+					assertEquals(context, compressed, bsaFile.getEntries().isCompressed(0));
+					BsaDdsHeader.Mips mips = bsaFile.loadMips("textures\\sky.dds", 1, 3);
+					assertEquals(context, 1, mips.getLevelCount());
+					assertEquals(context, 12 * 16, mips.getData().length);
+					for (int slice = 0; slice < 12; slice++) {
+						int from = 148 + slice * 80 + 64;
+						assertArrayEquals(context, Arrays.copyOfRange(texture, from, from + 16),
+								Arrays.copyOfRange(mips.getData(), mips.getOffset(slice, 1), mips.getOffset(slice, 1) + 16));
+					}
+					BsaDdsHeader.Mips all = bsaFile.loadMips("textures\\sky.dds", 0, 2);
+					assertEquals(context, 12 * 80, all.getData().length);
+					assertArrayEquals(context, Arrays.copyOfRange(texture, 148, texture.length), all.getData());
+					assertEquals(context, 0, bsaFile.loadMips("textures\\sky.dds", 0, 0).getData().length);
+					assertEquals(context, 12, bsaFile.getDdsHeader("textures\\sky.dds").getSlices());
+				}
+			}
+		}
+	}
+
+	private static BsaDdsHeader parse(byte[] header, long fileSize) throws DataFormatException {
+		return BsaDdsHeader.parse(ByteBuffer.wrap(header), fileSize);
+	}
+
+	/**
+	 * @return DDS header with a DX10 extension if fourCC is DX10
+	 */
+	private static byte[] header(int width, int height, int mipCount, int pixelFlags, int fourCC, int bitCount, int caps2, int dxgiFormat, int miscFlag,
+			int arraySize) {
+		ByteBuffer header = ByteBuffer.allocate(fourCC == DX10 ? BsaDdsHeader.DX10_SIZE : BsaDdsHeader.SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0, 0x20534444).putInt(4, 124).putInt(8, 0x1 | 0x2 | 0x4 | 0x1000 | 0x20000);
+		header.putInt(12, height).putInt(16, width).putInt(28, mipCount);
+		header.putInt(76, 32).putInt(80, pixelFlags).putInt(84, fourCC).putInt(88, bitCount);
+		header.putInt(108, 0x1000).putInt(112, caps2);
+		if (fourCC == DX10)
+			header.putInt(128, dxgiFormat).putInt(132, 3).putInt(136, miscFlag).putInt(140, arraySize);
+		return header.array();
+	}
+}
@@ -0,0 +1,62 @@
+package bsa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Lookups and record conversion of {@link BsaEntryTable}
+ *
+ * @author Yusaf Ali
+ */
+public class BsaEntryTableTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void findsEntriesOfWrittenArchive() throws IOException {
+		BsaWriter writer = new BsaWriter(104);
+		// Stored sizes equal the file sizes
+		writer.setCompressed(false);
+		for (int i = 0; i < 50; i++)
+			writer.add("textures\\f" + i % 5 + "\\file" + i + ".dds", new byte[i]);
+		File out = folder.newFile();
+		writer.write(out);
+		try (BsaFile bsaFile = new BsaFile(out)) {
+			BsaEntryTable entries = bsaFile.getEntries();
+			assertEquals(50, entries.size());
+			for (int i = 0; i < 50; i++) {
+				String path = "textures\\f" + i % 5 + "\\file" + i + ".dds";
+				int entry = entries.find(path);
+				assertTrue(path, entry >= 0);
+				assertEquals(entry, entries.find(BsaHash.folderHashOfPath(path), BsaHash.fileHashOfPath(path)));
+				assertEquals(entry, entries.find(path.replace('\\', '/')));
+				assertEquals(i, entries.getSize(entry));
+			}
+			assertEquals(-1, entries.find("textures\\f0\\file1.dds"));
+			assertEquals(-1, entries.find("textures\\f9\\file0.dds"));
+		}
+	}
+
+	@Test
+	public void convertsEntriesBelow4GbToRecords() {
+		BsaEntryTable entries = new BsaEntryTable(1);
+		int entry = entries.add(0, 1234, 0xFFFFFFF0L, 16, true);
+		BsaFileRecord record = entries.toRecord(entry);
+		assertEquals(0xFFFFFFF0L, record.getOffset() & 0xFFFFFFFFL);
+		assertEquals(16, entries.getSize(entry));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void refusesRecordsBeyond4Gb() {
+		BsaEntryTable entries = new BsaEntryTable(1);
+		entries.toRecord(entries.add(0, 1234, 1L << 32, 16, false));
+	}
+}
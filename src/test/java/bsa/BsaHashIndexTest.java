@@ -0,0 +1,65 @@
+package bsa;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Puts, replacements and copies of {@link BsaHashIndex}
+ *
+ * @author Yusaf Ali
+ */
+public class BsaHashIndexTest {
+
+	@Test
+	public void getsPutValues() {
+		BsaHashIndex index = new BsaHashIndex(1000);
+		for (int i = 0; i < 1000; i++)
+			index.put(key(i), i);
+		assertEquals(1000, index.size());
+		for (int i = 0; i < 1000; i++)
+			assertEquals(i, index.get(key(i)));
+		assertEquals(-1, index.get(key(1000)));
+		assertEquals(-1, index.get(0));
+	}
+
+	@Test
+	public void replacesExistingKeys() {
+		BsaHashIndex index = new BsaHashIndex(4);
+		index.put(42, 1);
+		index.put(42, 0);
+		assertEquals(1, index.size());
+		assertEquals(0, index.get(42));
+	}
+
+	@Test
+	public void collidingKeysStayApart() {
+		// Same slot hash for every key, all of them probe linearly
+		BsaHashIndex index = new BsaHashIndex(8);
+		for (int i = 0; i < 8; i++)
+			index.put(((long) i << 32) | i, i);
+		for (int i = 0; i < 8; i++)
+			assertEquals(i, index.get(((long) i << 32) | i));
+	}
+
+	@Test
+	public void copyLeavesSourceUnchanged() {
+		BsaHashIndex from = new BsaHashIndex(10);
+		for (int i = 0; i < 10; i++)
+			from.put(key(i), i);
+		BsaHashIndex copy = new BsaHashIndex(from, 100);
+		for (int i = 10; i < 110; i++)
+			copy.put(key(i), i);
+		copy.put(key(0), 7);
+		assertEquals(110, copy.size());
+		assertEquals(10, from.size());
+		assertEquals(0, from.get(key(0)));
+		assertEquals(7, copy.get(key(0)));
+		assertEquals(109, copy.get(key(109)));
+		assertEquals(-1, from.get(key(109)));
+	}
+
+	private static long key(int i) {
+		return BsaHash.key(BsaHash.folderHashOfPath("meshes\\" + i + "\\a.nif"), BsaHash.fileHashOfPath("meshes\\" + i + "\\a.nif"));
+	}
+}
@@ -0,0 +1,67 @@
+package bsa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Scanning and watching of {@link BsaLooseFiles}
+ *
+ * @author Yusaf Ali
+ */
+public class BsaLooseFilesTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void indexesExistingFilesIgnoringCaseAndSeparator() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Path textures = Files.createDirectories(root.resolve("Textures/Armor"));
+		Files.write(textures.resolve("Iron.DDS"), new byte[] { 1 });
+		Files.write(root.resolve("Skyrim - Meshes.bsa"), new byte[] { 1 });
+		try (BsaLooseFiles loose = new BsaLooseFiles(root.toFile())) {
+			assertEquals(1, loose.size());
+			File file = loose.getFile("textures\\armor\\iron.dds");
+			assertNotNull(file);
+			assertEquals(textures.resolve("Iron.DDS").toFile().getCanonicalPath(), file.getCanonicalPath());
+			assertNotNull(loose.getFile("TEXTURES/ARMOR/IRON.DDS"));
+			assertNull(loose.getFile("textures\\armor\\steel.dds"));
+		}
+	}
+
+	@Test
+	public void followsCreatedAndDeletedFiles() throws Exception {
+		Path root = folder.getRoot().toPath();
+		try (BsaLooseFiles loose = new BsaLooseFiles(root.toFile())) {
+			assertEquals(0, loose.size());
+			Path nested = Files.createDirectories(root.resolve("meshes/a/b"));
+			Files.write(nested.resolve("x.nif"), new byte[] { 1 });
+			waitFor(() -> loose.getFile("meshes\\a\\b\\x.nif") != null);
+
+			Files.delete(nested.resolve("x.nif"));
+			waitFor(() -> loose.getFile("meshes\\a\\b\\x.nif") == null);
+			assertEquals(0, loose.size());
+		}
+	}
+
+	/**
+	 * Polls until condition holds, watch events arrive on another thread after a delay that depends on the platform
+	 */
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 200 && !condition.getAsBoolean(); i++)
+			Thread.sleep(50);
+		if (!condition.getAsBoolean())
+			throw new AssertionError("Loose files did not follow the change within 10 seconds");
+	}
+}
@@ -0,0 +1,175 @@
+package bsa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Damages archives written by {@link BsaWriter} and checks that {@link BsaVerifier} reports every kind of problem
+ *
+ * @author Yusaf Ali
+ */
+public class BsaVerifierTest {
+
+	private static final String LAST = "textures\\last.dds";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void intactArchiveIsValid() throws IOException {
+		File archive = archive(true);
+		BsaVerifier.Report report = new BsaVerifier().verifyDirectory(archive.getParentFile());
+		assertTrue(report.getProblems().toString(), report.isValid());
+		assertEquals(1, report.getArchives());
+		assertEquals(3, report.getEntries());
+	}
+
+	@Test
+	public void truncatedEntryIsOutOfBounds() throws IOException {
+		File archive = archive(false);
+		long offset = offset(archive, LAST);
+		try (RandomAccessFile raf = new RandomAccessFile(archive, "rw")) {
+			raf.setLength(offset + 8);
+		}
+		assertOnly(archive, BsaVerifier.Kind.OUT_OF_BOUNDS, LAST);
+	}
+
+	@Test
+	public void offsetBeyondArchiveIsOutOfBounds() throws IOException {
+		File archive = archive(false);
+		long offset = offset(archive, LAST);
+		// The offset of the last entry only occurs in its file record
+		byte[] bytes = Files.readAllBytes(archive.toPath());
+		int record = indexOf(bytes, ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) offset).array(), (int) offset);
+		ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(record, bytes.length + 1000);
+		Files.write(archive.toPath(), bytes);
+		assertOnly(archive, BsaVerifier.Kind.OUT_OF_BOUNDS, LAST);
+	}
+
+	@Test
+	public void damagedDataIsCorrupt() throws IOException {
+		File archive = archive(false);
+		long offset = offset(archive, LAST);
+		try (RandomAccessFile raf = new RandomAccessFile(archive, "rw")) {
+			// Keep the original size, replace the frame after it
+			raf.seek(offset + 4);
+			raf.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 });
+		}
+		assertOnly(archive, BsaVerifier.Kind.CORRUPT, LAST);
+	}
+
+	@Test
+	public void impossibleOriginalSizeIsCorrupt() throws IOException {
+		File archive = archive(false);
+		long offset = offset(archive, LAST);
+		try (RandomAccessFile raf = new RandomAccessFile(archive, "rw")) {
+			raf.seek(offset);
+			raf.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0x7fffff00).array());
+		}
+		BsaVerifier.Problem problem = assertOnly(archive, BsaVerifier.Kind.CORRUPT, LAST);
+		assertTrue(problem.getMessage(), problem.getMessage().startsWith("Original size"));
+	}
+
+	@Test
+	public void wrongEmbeddedNameIsReported() throws IOException {
+		File archive = archive(true);
+		long offset = offset(archive, LAST);
+		try (RandomAccessFile raf = new RandomAccessFile(archive, "rw")) {
+			// Length byte, then "textures\last.dds"
+			raf.seek(offset + 1 + "textures\\".length());
+			raf.write('x');
+		}
+		BsaVerifier.Problem problem = assertOnly(archive, BsaVerifier.Kind.NAME_MISMATCH, LAST);
+		assertEquals("Embedded name is textures\\xast.dds", problem.getMessage());
+	}
+
+	@Test
+	public void embeddedNameBeyondEntryIsReported() throws IOException {
+		File archive = archive(true);
+		long offset = offset(archive, LAST);
+		try (RandomAccessFile raf = new RandomAccessFile(archive, "rw")) {
+			raf.seek(offset);
+			raf.write(0xff);
+		}
+		assertOnly(archive, BsaVerifier.Kind.NAME_MISMATCH, LAST);
+	}
+
+	@Test
+	public void jsonEscapesStrings() {
+		BsaVerifier.Report report = new BsaVerifier.Report();
+		report.add(new BsaVerifier.Problem("a\"b.bsa", "meshes\\a.nif", 12, BsaVerifier.Kind.CORRUPT, "line\nbreak\ttab"));
+		report.add(new BsaVerifier.Problem("c.bsa", null, -1, BsaVerifier.Kind.READ_ERROR, "unreadable"));
+		assertEquals("{\"archives\":0,\"entries\":0,\"bytes\":0,\"valid\":false,\"problems\":["
+				+ "{\"kind\":\"CORRUPT\",\"archive\":\"a\\\"b.bsa\",\"path\":\"meshes\\\\a.nif\",\"offset\":12,\"message\":\"line\\u000abreak\\u0009tab\"},"
+				+ "{\"kind\":\"READ_ERROR\",\"archive\":\"c.bsa\",\"path\":null,\"offset\":-1,\"message\":\"unreadable\"}]}", report.toJson());
+	}
+
+	/**
+	 * @return a compressed version 104 archive whose last entry is {@link #LAST}
+	 */
+	private File archive(boolean embedNames) throws IOException {
+		Random random = new Random(20);
+		byte[] noise = new byte[3000];
+		random.nextBytes(noise);
+		BsaWriter writer = new BsaWriter(104);
+		writer.setEmbedNames(embedNames);
+		writer.add("meshes\\a.nif", "mesh ".repeat(500).getBytes());
+		writer.add("meshes\\noise.nif", noise);
+		writer.add(LAST, "texture ".repeat(2000).getBytes());
+		File out = new File(folder.newFolder(), "damaged.bsa");
+		writer.write(out);
+		try (BsaFile bsaFile = new BsaFile(out)) {
+			BsaEntryTable entries = bsaFile.getEntries();
+			for (int entry = 0; entry < entries.size(); entry++)
+				assertTrue(entries.getOffset(entry) <= offset(bsaFile, LAST));
+		}
+		return out;
+	}
+
+	private static long offset(File archive, String path) throws IOException {
+		try (BsaFile bsaFile = new BsaFile(archive)) {
+			return offset(bsaFile, path);
+		}
+	}
+
+	private static long offset(BsaFile bsaFile, String path) {
+		BsaEntryTable entries = bsaFile.getEntries();
+		return entries.getOffset(entries.find(path));
+	}
+
+	private static int indexOf(byte[] bytes, byte[] pattern, int end) {
+		for (int i = 0; i + pattern.length <= end; i++) {
+			boolean match = true;
+			for (int j = 0; j < pattern.length && match; j++)
+				match = bytes[i + j] == pattern[j];
+			if (match)
+				return i;
+		}
+		throw new AssertionError("Pattern not found");
+	}
+
+	private static BsaVerifier.Problem assertOnly(File archive, BsaVerifier.Kind kind, String path) throws IOException {
+		BsaVerifier.Report report = new BsaVerifier().verifyDirectory(archive.getParentFile());
+		assertFalse(report.isValid());
+		List<BsaVerifier.Problem> problems = report.getProblems();
+		assertEquals(problems.toString(), 1, problems.size());
+		BsaVerifier.Problem problem = problems.get(0);
+		assertEquals(problem.toString(), kind, problem.getKind());
+		assertEquals(path, problem.getPath());
+		return problem;
+	}
+}
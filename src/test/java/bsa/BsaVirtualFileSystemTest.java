@@ -0,0 +1,164 @@
+package bsa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Mount order, overrides and snapshots of {@link BsaVirtualFileSystem}
+ *
+ * @author Yusaf Ali
+ */
+public class BsaVirtualFileSystemTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<BsaFile> opened = new ArrayList<>();
+
+	@After
+	public void closeArchives() throws IOException {
+		for (BsaFile bsaFile : opened)
+			bsaFile.close();
+	}
+
+	@Test
+	public void laterMountWins() throws IOException {
+		BsaFile base = archive("base.bsa", "meshes\\a.nif", "meshes\\b.nif");
+		BsaFile patch = archive("patch.bsa", "meshes\\b.nif", "meshes\\c.nif");
+		BsaVirtualFileSystem vfs = new BsaVirtualFileSystem();
+		vfs.mount(base);
+		vfs.mount(patch);
+		assertSame(base, vfs.getFile("meshes\\a.nif"));
+		assertSame(patch, vfs.getFile("meshes\\b.nif"));
+		assertSame(patch, vfs.getFile("MESHES/C.NIF"));
+		assertNull(vfs.getFile("meshes\\d.nif"));
+	}
+
+	@Test
+	public void snapshotIgnoresLaterChanges() throws IOException {
+		BsaFile base = archive("base.bsa", "meshes\\a.nif");
+		BsaFile patch = archive("patch.bsa", "meshes\\a.nif", "meshes\\b.nif");
+		BsaVirtualFileSystem vfs = new BsaVirtualFileSystem();
+		vfs.mount(base);
+		BsaVirtualFileSystem.Snapshot before = vfs.snapshot();
+		vfs.mount(patch);
+		assertSame(base, before.getFile("meshes\\a.nif"));
+		assertNull(before.getFile("meshes\\b.nif"));
+		assertEquals(1, before.getArchives().size());
+		assertSame(patch, vfs.getFile("meshes\\a.nif"));
+
+		vfs.unmount(patch);
+		assertSame(base, vfs.getFile("meshes\\a.nif"));
+		assertNull(vfs.getFile("meshes\\b.nif"));
+		assertNull(vfs.snapshot().getArchive("patch.bsa"));
+	}
+
+	@Test
+	public void overrideIgnoresSeparatorAndCase() throws IOException {
+		BsaFile base = archive("base.bsa", "meshes\\a.nif");
+		BsaFile patch = archive("patch.bsa", "meshes\\a.nif");
+		BsaVirtualFileSystem vfs = new BsaVirtualFileSystem();
+		vfs.mount(base);
+		vfs.mount(patch);
+		vfs.override("Meshes/A.nif", base);
+		assertSame(base, vfs.getFile("meshes\\a.nif"));
+		assertSame(base, vfs.getFile("meshes/a.nif"));
+		vfs.override("meshes\\a.nif", null);
+		assertSame(patch, vfs.getFile("meshes/a.nif"));
+	}
+
+	@Test
+	public void overrideFallsThroughWhenArchiveLacksFile() throws IOException {
+		BsaFile base = archive("base.bsa", "meshes\\a.nif");
+		BsaFile other = archive("other.bsa", "meshes\\b.nif");
+		BsaVirtualFileSystem vfs = new BsaVirtualFileSystem();
+		vfs.mount(base);
+		vfs.override("meshes\\a.nif", other);
+		assertSame(base, vfs.getFile("meshes\\a.nif"));
+	}
+
+	@Test
+	public void mountsOneByOneResolveLikeOneMount() throws IOException {
+		List<BsaFile> archives = new ArrayList<>();
+		for (int i = 0; i < 40; i++)
+			archives.add(archive("a" + i + ".bsa", "meshes\\shared.nif", "meshes\\" + i + ".nif", "meshes\\pair" + i / 2 + ".nif"));
+		BsaVirtualFileSystem oneByOne = new BsaVirtualFileSystem();
+		for (BsaFile bsaFile : archives) {
+			oneByOne.mount(bsaFile);
+			assertSame(bsaFile, oneByOne.getFile("meshes\\shared.nif"));
+		}
+		BsaVirtualFileSystem atOnce = new BsaVirtualFileSystem();
+		atOnce.mount(archives);
+		for (int i = 0; i < 40; i++) {
+			assertSame(archives.get(i), oneByOne.getFile("meshes\\" + i + ".nif"));
+			assertSame(atOnce.getFile("meshes\\pair" + i / 2 + ".nif"), oneByOne.getFile("meshes\\pair" + i / 2 + ".nif"));
+		}
+		assertEquals(archives, oneByOne.snapshot().getArchives());
+	}
+
+	@Test
+	public void unmountFallsBackToEarlierArchives() throws IOException {
+		List<BsaFile> archives = new ArrayList<>();
+		for (int i = 0; i < 5; i++)
+			archives.add(archive("a" + i + ".bsa", "meshes\\shared.nif", "meshes\\" + i + ".nif"));
+		BsaVirtualFileSystem vfs = new BsaVirtualFileSystem();
+		vfs.mount(archives);
+		for (int i = 4; i > 0; i--) {
+			assertTrue(vfs.unmount(archives.get(i)));
+			assertSame(archives.get(i - 1), vfs.getFile("meshes\\shared.nif"));
+			assertNull(vfs.getFile("meshes\\" + i + ".nif"));
+		}
+		// Mounted again after the others it wins again
+		vfs.mount(archives.get(3));
+		vfs.mount(archives.get(0));
+		assertSame(archives.get(0), vfs.getFile("meshes\\shared.nif"));
+		assertSame(archives.get(3), vfs.getFile("meshes\\3.nif"));
+		assertEquals(Arrays.asList(archives.get(3), archives.get(0)), vfs.snapshot().getArchives());
+	}
+
+	@Test
+	public void replacedArchiveIsHandedBack() throws IOException {
+		BsaFile base = archive("base.bsa", "meshes\\a.nif");
+		BsaFile other = archive("other.bsa", "meshes\\a.nif");
+		File newer = folder.newFolder();
+		BsaFile replacement = archive(newer, "base.bsa", "meshes\\b.nif");
+		BsaVirtualFileSystem vfs = new BsaVirtualFileSystem();
+		vfs.mount(Arrays.asList(base, other));
+		vfs.override("meshes\\a.nif", base);
+		BsaVirtualFileSystem.Snapshot before = vfs.snapshot();
+		assertNull(vfs.mount(other));
+		assertSame(base, vfs.mount(replacement));
+		assertSame(other, vfs.getFile("meshes\\a.nif"));
+		assertSame(replacement, vfs.getFile("meshes\\b.nif"));
+		assertTrue(vfs.snapshot().getOverrides().isEmpty());
+		assertSame(base, before.getFile("meshes\\a.nif"));
+	}
+
+	private BsaFile archive(String name, String... paths) throws IOException {
+		return archive(folder.getRoot(), name, paths);
+	}
+
+	private BsaFile archive(File directory, String name, String... paths) throws IOException {
+		BsaWriter writer = new BsaWriter(105);
+		for (String path : paths)
+			writer.add(path, path.getBytes());
+		File out = new File(directory, name);
+		writer.write(out);
+		BsaFile bsaFile = new BsaFile(out);
+		opened.add(bsaFile);
+		return bsaFile;
+	}
+}
@@ -0,0 +1,124 @@
+package bsa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes archives with {@link BsaWriter} and reads them back through {@link BsaFile}
+ *
+ * @author Yusaf Ali
+ */
+public class BsaWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void roundTripsZlib104() throws Exception {
+		roundTrip(104, true, false);
+	}
+
+	@Test
+	public void roundTripsLz4105() throws Exception {
+		roundTrip(105, true, false);
+	}
+
+	@Test
+	public void roundTripsEmbeddedNames() throws Exception {
+		roundTrip(104, true, true);
+		roundTrip(105, true, true);
+	}
+
+	@Test
+	public void roundTripsUncompressed() throws Exception {
+		roundTrip(104, false, false);
+		roundTrip(105, false, true);
+	}
+
+	@Test
+	public void missingFileIsNotFound() throws Exception {
+		BsaWriter writer = new BsaWriter(105);
+		writer.add("meshes\\a.nif", new byte[] { 1, 2, 3 });
+		File out = folder.newFile();
+		writer.write(out);
+		try (BsaFile bsaFile = new BsaFile(out)) {
+			assertFalse(bsaFile.contains("meshes\\b.nif"));
+			assertFalse(bsaFile.contains("textures\\a.nif"));
+		}
+	}
+
+	private void roundTrip(int version, boolean compressed, boolean embedNames) throws IOException, DataFormatException {
+		Map<String, byte[]> files = files();
+		BsaWriter writer = new BsaWriter(version);
+		writer.setCompressed(compressed);
+		writer.setEmbedNames(embedNames);
+		for (Map.Entry<String, byte[]> e : files.entrySet())
+			writer.add(e.getKey(), e.getValue());
+		File out = folder.newFile();
+		long size = writer.write(out);
+		assertEquals(out.length(), size);
+
+		for (boolean mapped : new boolean[] { false, true }) {
+			try (BsaFile bsaFile = new BsaFile(out, mapped)) {
+				assertEquals(version, bsaFile.getVersion());
+				assertEquals(files.size(), bsaFile.getFilenames().size());
+				for (Map.Entry<String, byte[]> e : files.entrySet()) {
+					String path = e.getKey();
+					byte[] expected = e.getValue();
+					assertTrue(path, bsaFile.contains(path));
+					assertTrue(path, bsaFile.contains(path.replace('\\', '/').toUpperCase()));
+					assertEquals(path, expected.length, bsaFile.getLoadedSize(path));
+					assertArrayEquals(path, expected, bsaFile.load(path));
+					try (InputStream in = bsaFile.openStream(path)) {
+						assertArrayEquals(path, expected, in.readAllBytes());
+					}
+					ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+					assertEquals(path, expected.length, bsaFile.load(path, direct));
+					direct.flip();
+					byte[] read = new byte[direct.remaining()];
+					direct.get(read);
+					assertArrayEquals(path, expected, read);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return files covering empty, incompressible, compressible and multi block data in several folders
+	 */
+	private static Map<String, byte[]> files() {
+		Random random = new Random(104105);
+		Map<String, byte[]> files = new LinkedHashMap<>();
+		files.put("meshes\\empty.nif", new byte[0]);
+		byte[] noise = new byte[5000];
+		random.nextBytes(noise);
+		files.put("meshes\\armor\\noise.nif", noise);
+		files.put("textures\\armor\\iron.dds", repeat("iron armor texture ", 20000));
+		byte[] mixed = new byte[300000];
+		for (int i = 0; i < mixed.length; i++)
+			mixed[i] = (byte) (i % 1000 < 500 ? random.nextInt(4) : i);
+		files.put("textures\\armor\\mixed.dds", mixed);
+		files.put("readme.txt", "top level file".getBytes(StandardCharsets.US_ASCII));
+		return files;
+	}
+
+	private static byte[] repeat(String text, int times) {
+		return text.repeat(times).getBytes(StandardCharsets.US_ASCII);
+	}
+}
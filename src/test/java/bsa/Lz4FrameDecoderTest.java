@@ -0,0 +1,95 @@
+package bsa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+/**
+ * Decodes frames from {@link Lz4FrameEncoder} through {@link Lz4FrameDecoder}, and checks that corrupt frames are rejected
+ *
+ * @author Yusaf Ali
+ */
+public class Lz4FrameDecoderTest {
+
+	private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+
+	@Test
+	public void roundTripsArrays() throws DataFormatException {
+		for (byte[] data : samples()) {
+			byte[] frame = Lz4FrameEncoder.encode(data);
+			byte[] decoded = new byte[data.length];
+			assertEquals(data.length, Lz4FrameDecoder.decode(frame, 0, frame.length, decoded, 0, decoded.length));
+			assertArrayEquals(data, decoded);
+		}
+	}
+
+	@Test
+	public void roundTripsDirectBuffers() throws DataFormatException {
+		for (byte[] data : samples()) {
+			byte[] frame = Lz4FrameEncoder.encode(data);
+			ByteBuffer decoded = ByteBuffer.allocateDirect(data.length);
+			assertEquals(data.length, Lz4FrameDecoder.decode(frame, 0, frame.length, decoded));
+			decoded.flip();
+			byte[] read = new byte[decoded.remaining()];
+			decoded.get(read);
+			assertArrayEquals(data, read);
+		}
+	}
+
+	@Test
+	public void skipsSkippableFrames() throws DataFormatException {
+		byte[] data = samples()[2];
+		byte[] frame = concat(skippable(3, 3), Lz4FrameEncoder.encode(data));
+		byte[] decoded = new byte[data.length];
+		assertEquals(data.length, Lz4FrameDecoder.decode(frame, 0, frame.length, decoded, 0, decoded.length));
+		assertArrayEquals(data, decoded);
+	}
+
+	@Test(expected = DataFormatException.class)
+	public void rejectsOutputBeyondDestination() throws DataFormatException {
+		byte[] data = samples()[2];
+		byte[] frame = Lz4FrameEncoder.encode(data);
+		Lz4FrameDecoder.decode(frame, 0, frame.length, new byte[data.length - 1], 0, data.length - 1);
+	}
+
+	@Test(expected = DataFormatException.class)
+	public void rejectsSkippableFrameWithNegativeLength() throws DataFormatException {
+		byte[] frame = concat(skippable(0xFFFFFFF0, 0), Lz4FrameEncoder.encode(new byte[] { 1, 2, 3 }));
+		Lz4FrameDecoder.decode(frame, 0, frame.length, new byte[3], 0, 3);
+	}
+
+	@Test(expected = DataFormatException.class)
+	public void rejectsSkippableFrameBeyondData() throws DataFormatException {
+		byte[] frame = skippable(100, 4);
+		Lz4FrameDecoder.decode(frame, 0, frame.length, new byte[16], 0, 16);
+	}
+
+	static byte[][] samples() {
+		Random random = new Random(9);
+		byte[] noise = new byte[70000];
+		random.nextBytes(noise);
+		byte[] text = "the quick brown fox jumps over the lazy dog ".repeat(5000).getBytes();
+		byte[] zeros = new byte[200000];
+		return new byte[][] { new byte[0], noise, text, zeros, Arrays.copyOf(text, 7) };
+	}
+
+	/**
+	 * @return a skippable frame header claiming length bytes, followed by padding bytes of content
+	 */
+	static byte[] skippable(int length, int padding) {
+		return ByteBuffer.allocate(8 + padding).order(ByteOrder.LITTLE_ENDIAN).putInt(SKIPPABLE_MAGIC).putInt(length).array();
+	}
+
+	static byte[] concat(byte[] a, byte[] b) {
+		byte[] joined = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, joined, a.length, b.length);
+		return joined;
+	}
+}
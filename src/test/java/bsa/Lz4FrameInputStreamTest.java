@@ -0,0 +1,65 @@
+package bsa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+/**
+ * Streams frames from {@link Lz4FrameEncoder} through {@link Lz4FrameInputStream}, and checks that blocks beyond the original size are rejected
+ *
+ * @author Yusaf Ali
+ */
+public class Lz4FrameInputStreamTest {
+
+	@Test
+	public void roundTripsStreams() throws IOException {
+		for (byte[] data : Lz4FrameDecoderTest.samples()) {
+			byte[] frame = Lz4FrameEncoder.encode(data);
+			try (InputStream in = new Lz4FrameInputStream(new ByteArrayInputStream(frame), data.length)) {
+				assertArrayEquals(data, in.readAllBytes());
+			}
+		}
+	}
+
+	@Test
+	public void rejectsStoredBlockBeyondOriginalSize() throws IOException {
+		byte[] noise = new byte[4096];
+		new Random(13).nextBytes(noise);
+		byte[] frame = Lz4FrameEncoder.encode(noise);
+		try (InputStream in = new Lz4FrameInputStream(new ByteArrayInputStream(frame), 1024)) {
+			in.readAllBytes();
+			fail("stored block larger than the original size was accepted");
+		} catch (IOException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof DataFormatException);
+		}
+	}
+
+	@Test
+	public void rejectsCompressedBlockBeyondOriginalSize() throws IOException {
+		byte[] frame = Lz4FrameEncoder.encode(Arrays.copyOf(Lz4FrameDecoderTest.samples()[2], 60000));
+		try (InputStream in = new Lz4FrameInputStream(new ByteArrayInputStream(frame), 1000)) {
+			in.readAllBytes();
+			fail("compressed block larger than the original size was accepted");
+		} catch (IOException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof DataFormatException);
+		}
+	}
+
+	@Test
+	public void skipsSkippableFrames() throws IOException {
+		byte[] data = Lz4FrameDecoderTest.samples()[2];
+		byte[] frame = Lz4FrameDecoderTest.concat(Lz4FrameDecoderTest.skippable(3, 3), Lz4FrameEncoder.encode(data));
+		try (InputStream in = new Lz4FrameInputStream(new ByteArrayInputStream(frame), data.length)) {
+			assertArrayEquals(data, in.readAllBytes());
+		}
+	}
+}